@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+
+/**
+ * Fixture of EndToEndBenchmark.
+ */
+public final class EndToEndFixture {
+  private EndToEndFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns a free TCP port.
+   * @return a free TCP port.
+   */
+  public static int freePort() {
+    try (var socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Starts a server that answers "hello" on "/hello" and a JSON object on "/json".
+   * @param implementation "JExpress", "JExpressNio" or "JExpressNioH2c" (JExpress with the NIO transport)
+   *                       or "JExpress8"
+   * @param port the TCP port of the server
+   * @return the server that must be closed.
+   */
+  public static AutoCloseable server(String implementation, int port) {
+    return switch (implementation) {
+      case "JExpress" -> {
+        var app = JExpress.express();
+        app.get("/hello", (request, response) -> response.send("hello"));
+        app.get("/json", (request, response) -> response.json("{\"hello\": \"world\"}"));
+        yield app.listen(port);
+      }
+      case "JExpressNio", "JExpressNioH2c" -> {
+        var app = JExpress.express();
+        app.get("/hello", (request, response) -> response.send("hello"));
+        app.get("/json", (request, response) -> response.json("{\"hello\": \"world\"}"));
+        yield app.listen(JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio()));
+      }
+      case "JExpress8" -> {
+        var app = JExpress8.express();
+        app.get("/hello", (request, response) -> response.send("hello"));
+        app.get("/json", (request, response) -> response.json("{\"hello\": \"world\"}"));
+        yield app.listen(port);
+      }
+      default -> throw new IllegalArgumentException("unknown implementation " + implementation);
+    };
+  }
+}
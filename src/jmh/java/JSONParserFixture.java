@@ -0,0 +1,254 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Double.parseDouble;
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.regex.Pattern.compile;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.IntStream.rangeClosed;
+
+/**
+ * Fixture of JSONParserBenchmark.
+ */
+public final class JSONParserFixture {
+  private JSONParserFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns a JSON array of objects of at least the given size in bytes.
+   * @param size the minimal size of the text in bytes
+   * @return a JSON array of objects of at least the given size in bytes.
+   */
+  public static String text(int size) {
+    var builder = new StringBuilder("[");
+    for(var i = 0; builder.length() < size; i++) {
+      if (i != 0) {
+        builder.append(",\n");
+      }
+      builder.append("""
+          {"id": %d, "name": "user%d", "admin": %b, "score": %d.5, "address": null, "tags": ["foo", "bar"]}\
+          """.formatted(i, i, i % 2 == 0, i));
+    }
+    return builder.append("]").toString();
+  }
+
+  /**
+   * Returns the JSON parser of JExpress.
+   * @return the JSON parser of JExpress.
+   */
+  public static Function<String, Object> parser() {
+    return JExpress.JSONParser::parse;
+  }
+
+  /**
+   * Returns the JSON parser of JExpress that parses the UTF-8 bytes.
+   * @return the JSON parser of JExpress that parses the UTF-8 bytes.
+   */
+  public static Function<byte[], Object> bytesParser() {
+    return JExpress.JSONParser::parse;
+  }
+
+  /**
+   * Returns the text encoded in UTF-8.
+   * @param text a text
+   * @return the text encoded in UTF-8.
+   */
+  public static byte[] bytes(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  /**
+   * Returns the regex based JSON parser used before.
+   * @return the regex based JSON parser used before.
+   */
+  public static Function<String, Object> regexParser() {
+    return ToyJSONParser::parse;
+  }
+
+  // The regex based parser used before JSONParser
+  private static final class ToyJSONParser {
+    private ToyJSONParser() {
+      throw new AssertionError();
+    }
+
+    enum Kind {
+      NULL("(null)"),
+      TRUE("(true)"),
+      FALSE("(false)"),
+      DOUBLE("([0-9]*\\.[0-9]*)"),
+      INTEGER("([0-9]+)"),
+      STRING("\"([^\\\"]*)\""),
+      LEFT_CURLY("(\\{)"),
+      RIGHT_CURLY("(\\})"),
+      LEFT_BRACKET("(\\[)"),
+      RIGHT_BRACKET("(\\])"),
+      COLON("(\\:)"),
+      COMMA("(\\,)"),
+      BLANK("([ \t]+)")
+      ;
+
+      private final String regex;
+
+      Kind(String regex) {
+        this.regex = regex;
+      }
+
+      private static final Kind[] VALUES = values();
+    }
+
+    private record Token(Kind kind, String text, int location) {
+      private boolean is(Kind kind) {
+        return this.kind == kind;
+      }
+
+      private String expect(Kind kind) {
+        if (this.kind != kind) {
+          throw error(kind);
+        }
+        return text;
+      }
+
+      public IllegalStateException error(Kind... expectedKinds) {
+        return new IllegalStateException("expect " + Arrays.stream(expectedKinds)
+            .map(Kind::name).collect(joining(", ")) + " but recognized " + kind + " at " + location);
+      }
+    }
+
+    private record Lexer(Matcher matcher) {
+      private Token next() {
+        for(;;) {
+          if (!matcher.find()) {
+            throw new IllegalStateException("no token recognized");
+          }
+          var index = rangeClosed(1, matcher.groupCount()).filter(i -> matcher.group(i) != null).findFirst().orElseThrow();
+          var kind = Kind.VALUES[index - 1];
+          if (kind != Kind.BLANK) {
+            return new Token(kind, matcher.group(index), matcher.start(index));
+          }
+        }
+      }
+    }
+
+    private static final Pattern PATTERN = compile(Arrays.stream(Kind.VALUES)
+        .map(k -> k.regex).collect(joining("|")));
+
+    /**
+     * Parse a JSON text.
+     *
+     * @param input a JSON text
+     * @return a Java object corresponding to the text
+     */
+    public static Object parse(String input) {
+      var lexer = new Lexer(PATTERN.matcher(input));
+      try {
+        return parse(lexer);
+      } catch(IllegalStateException e) {
+        throw new IllegalStateException(e.getMessage() + "\n while parsing " + input, e);
+      }
+    }
+
+    private static Object parse(Lexer lexer) {
+      var token = lexer.next();
+      return switch(token.kind) {
+        case LEFT_CURLY -> {
+          var object = new HashMap<String, Object>();
+          parseObject(lexer, object);
+          yield object;
+        }
+        case LEFT_BRACKET -> {
+          var array = new ArrayList<>();
+          parseArray(lexer, array);
+          yield array;
+        }
+        default -> throw token.error(Kind.LEFT_CURLY, Kind.LEFT_BRACKET);
+      };
+    }
+
+    private static void parseObjectValue(Token token, Lexer lexer, Map<String, Object> jsonObject, String key) {
+      switch (token.kind) {
+        case NULL -> jsonObject.put(key, null);
+        case FALSE -> jsonObject.put(key, false);
+        case TRUE -> jsonObject.put(key, true);
+        case INTEGER -> jsonObject.put(key, parseInt(token.text));
+        case DOUBLE -> jsonObject.put(key, parseDouble(token.text));
+        case STRING -> jsonObject.put(key, token.text);
+        case LEFT_CURLY -> {
+          var map = new HashMap<String, Object>();
+          parseObject(lexer, map);
+          jsonObject.put(key, map);
+        }
+        case LEFT_BRACKET -> {
+          var list = new ArrayList<Object>();
+          parseArray(lexer, list);
+          jsonObject.put(key, list);
+        }
+        default -> throw token.error(Kind.NULL, Kind.FALSE, Kind.TRUE, Kind.INTEGER, Kind.DOUBLE, Kind.STRING, Kind.LEFT_BRACKET, Kind.RIGHT_CURLY);
+      }
+    }
+
+    private static void parseArrayValue(Token token, Lexer lexer, List<Object> jsonArray) {
+      switch (token.kind) {
+        case NULL -> jsonArray.add(null);
+        case FALSE -> jsonArray.add(false);
+        case TRUE -> jsonArray.add(true);
+        case INTEGER -> jsonArray.add(parseInt(token.text));
+        case DOUBLE -> jsonArray.add(parseDouble(token.text));
+        case STRING -> jsonArray.add(token.text);
+        case LEFT_CURLY -> {
+          var map = new HashMap<String, Object>();
+          parseObject(lexer, map);
+          jsonArray.add(map);
+        }
+        case LEFT_BRACKET -> {
+          var list = new ArrayList<>();
+          parseArray(lexer, list);
+          jsonArray.add(list);
+        }
+        default -> throw token.error(Kind.NULL, Kind.FALSE, Kind.TRUE, Kind.INTEGER, Kind.DOUBLE, Kind.STRING, Kind.LEFT_BRACKET, Kind.RIGHT_CURLY);
+      }
+    }
+
+    private static void parseObject(Lexer lexer, Map<String, Object> jsonObject) {
+      var token = lexer.next();
+      if (token.is(Kind.RIGHT_CURLY)) {
+        return;
+      }
+      for(;;) {
+        var key = token.expect(Kind.STRING);
+        lexer.next().expect(Kind.COLON);
+        token = lexer.next();
+        parseObjectValue(token, lexer, jsonObject, key);
+        token = lexer.next();
+        if (token.is(Kind.RIGHT_CURLY)) {
+          return;
+        }
+        token.expect(Kind.COMMA);
+        token = lexer.next();
+      }
+    }
+
+    private static void parseArray(Lexer lexer, List<Object> jsonArray) {
+      var token = lexer.next();
+      if (token.is(Kind.RIGHT_BRACKET)) {
+        return;
+      }
+      for(;;) {
+        parseArrayValue(token, lexer, jsonArray);
+        token = lexer.next();
+        if (token.is(Kind.RIGHT_BRACKET)) {
+          return;
+        }
+        token.expect(Kind.COMMA);
+        token = lexer.next();
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Fixture of JSONPrettyPrinterBenchmark.
+ */
+public final class JSONPrettyPrinterFixture {
+  private JSONPrettyPrinterFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * A record to serialize.
+   * @param id an id
+   * @param name a name
+   * @param admin true if admin
+   * @param score a score
+   */
+  public record User(int id, String name, boolean admin, double score) {}
+
+  private static User user(int i) {
+    return new User(i, "user" + i, i % 2 == 0, i * 1.5);
+  }
+
+  private static Map<String, Object> map(int i) {
+    return Map.of("id", i, "name", "user" + i, "admin", i % 2 == 0, "score", i * 1.5);
+  }
+
+  /**
+   * Returns a supplier of values to serialize, a list of records, a list of maps or
+   * a stream of records, a new stream is created each time the supplier is called.
+   * @param shape "records", "maps" or "stream"
+   * @param count the number of elements
+   * @return a supplier of values to serialize.
+   */
+  public static Supplier<Object> values(String shape, int count) {
+    return switch (shape) {
+      case "records" -> {
+        List<User> users = IntStream.range(0, count).mapToObj(JSONPrettyPrinterFixture::user).toList();
+        yield () -> users;
+      }
+      case "maps" -> {
+        List<Map<String, Object>> maps = IntStream.range(0, count).mapToObj(JSONPrettyPrinterFixture::map).toList();
+        yield () -> maps;
+      }
+      case "stream" -> () -> IntStream.range(0, count).mapToObj(JSONPrettyPrinterFixture::user);
+      default -> throw new IllegalArgumentException("unknown shape " + shape);
+    };
+  }
+
+  /**
+   * Returns the JSON printer of JExpress.
+   * @return the JSON printer of JExpress.
+   */
+  public static Function<Object, String> printer() {
+    return JExpress.JSONPrettyPrinter::toJSON;
+  }
+}
@@ -0,0 +1,90 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Fixture of RecordJSONBenchmark.
+ */
+public final class RecordJSONFixture {
+  private RecordJSONFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * A record to serialize.
+   * @param id an id
+   * @param name a name
+   * @param admin true if admin
+   * @param score a score
+   */
+  public record User(int id, String name, boolean admin, double score) {}
+
+  /**
+   * Returns a list of users.
+   * @param count the number of users
+   * @return a list of users.
+   */
+  public static List<User> users(int count) {
+    return IntStream.range(0, count).mapToObj(i -> new User(i, "user" + i, i % 2 == 0, i * 1.5)).toList();
+  }
+
+  /**
+   * Returns the JSON printer of JExpress.
+   * @return the JSON printer of JExpress.
+   */
+  public static Function<Object, String> printer() {
+    return JExpress.JSONPrettyPrinter::toJSON;
+  }
+
+  /**
+   * Returns a JSON printer that uses reflection for each record, like the previous implementation.
+   * @return a JSON printer that uses reflection for each record.
+   */
+  public static Function<Object, String> reflectivePrinter() {
+    return ReflectiveJSONPrinter::toJSON;
+  }
+
+  private static final class ReflectiveJSONPrinter {
+    private static String toJSON(Object o) {
+      if (o instanceof List<?> list) {
+        return list.stream().map(ReflectiveJSONPrinter::toJSONItem).collect(joining(", ", "[", "]"));
+      }
+      if (o instanceof Record record) {
+        return toJSONObject(record);
+      }
+      throw new IllegalStateException("unknown json object " + o);
+    }
+    private static String toJSONItem(Object item) {
+      if (item == null) {
+        return "null";
+      }
+      if (item instanceof String) {
+        return "\"" + item + '"';
+      }
+      if (item instanceof Boolean || item instanceof Integer || item instanceof Double) {
+        return item.toString();
+      }
+      return toJSON(item);
+    }
+    private static Object accessor(Method accessor, Record record) {
+      try {
+        return accessor.invoke(record);
+      } catch (IllegalAccessException e) {
+        throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+      } catch (InvocationTargetException e) {
+        throw new UndeclaredThrowableException(e.getCause());
+      }
+    }
+    private static String toJSONObject(Record record) {
+      return Arrays.stream(record.getClass().getRecordComponents())
+          .map(c -> "\"" + c.getName() + "\": " + toJSONItem(accessor(c.getAccessor(), record)))
+          .collect(joining(", ", "{", "}"));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.function.Function;
+
+/**
+ * Fixture of RoutingBenchmark.
+ */
+public final class RoutingFixture {
+  private RoutingFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the path of a request that matches the route at an index.
+   * @param index the index of the route
+   * @return the path of a request that matches the route at an index.
+   */
+  public static String path(int index) {
+    return "/api/resource" + index + "/42";
+  }
+
+  /**
+   * Returns a function that dispatches a GET request to an application with a number of routes
+   * and returns the status of the response, the request and the response are not sent on the network.
+   * @param routes the number of routes
+   * @return a function that dispatches a GET request and returns the status of the response.
+   */
+  public static Function<String, Integer> dispatcher(int routes) {
+    var app = JExpress.express();
+    for(var i = 0; i < routes; i++) {
+      app.get("/api/resource" + i + "/:id", (request, response) -> response.send(request.param("id")));
+    }
+    var handler = app.handler();
+    return path -> {
+      var exchange = new FakeExchange("GET", URI.create(path));
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return exchange.responseCode;
+    };
+  }
+
+  // an exchange that is not backed by a connection, the response body is discarded
+  private static final class FakeExchange extends HttpExchange {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(0);
+
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private int responseCode = -1;
+
+    private FakeExchange(String method, URI uri) {
+      this.method = method;
+      this.uri = uri;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return InputStream.nullInputStream();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) {
+      this.responseCode = responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return ADDRESS;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return ADDRESS;
+    }
+
+    @Override
+    public String getProtocol() {
+      return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return null;
+    }
+  }
+}
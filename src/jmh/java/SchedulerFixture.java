@@ -0,0 +1,33 @@
+/**
+ * Fixture of SchedulerBenchmark.
+ */
+public final class SchedulerFixture {
+  private SchedulerFixture() {
+    throw new AssertionError();
+  }
+
+  // a CPU-bound computation that the JIT can not remove
+  private static long work(long seed) {
+    var value = seed;
+    for(var i = 0; i < 200_000; i++) {
+      value = value * 6364136223846793005L + 1442695040888963407L;
+    }
+    return value;
+  }
+
+  /**
+   * Starts a server that runs a CPU-bound computation on "/work/:seed" using a work-stealing scheduler,
+   * the pool of carrier threads is owned by the server.
+   * @param parallelism the number of carrier threads
+   * @param port the TCP port of the server
+   * @return the server that must be closed.
+   */
+  public static AutoCloseable server(int parallelism, int port) {
+    var app = JExpress.express();
+    app.scheduler(JExpress.Scheduler.workStealing(parallelism));
+    app.get("/work/:seed", (request, response) -> {
+      response.send("" + work(Long.parseLong(request.param("seed"))));
+    });
+    return app.listen(port);
+  }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Fixture of TlsHandshakeBenchmark.
+ */
+public final class TlsFixture {
+  private TlsFixture() {
+    throw new AssertionError();
+  }
+
+  private static final char[] PASSWORD = "changeit".toCharArray();
+
+  /**
+   * Returns a new key store containing a self-signed RSA certificate for localhost generated by keytool.
+   * @return a new key store containing a self-signed RSA certificate for localhost.
+   */
+  public static KeyStore keyStore() {
+    try {
+      var directory = Files.createTempDirectory("jexpress");
+      var keyStoreFile = directory.resolve("localhost.p12");
+      try {
+        var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        var process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost",
+            "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+            "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(), "-storepass", new String(PASSWORD))
+            .redirectErrorStream(true)
+            .start();
+        var output = new String(process.getInputStream().readAllBytes(), UTF_8);
+        if (process.waitFor() != 0) {
+          throw new IOException("keytool failed " + output);
+        }
+        var keyStore = KeyStore.getInstance("PKCS12");
+        try (var input = Files.newInputStream(keyStoreFile)) {
+          keyStore.load(input, PASSWORD);
+        }
+        return keyStore;
+      } finally {
+        Files.deleteIfExists(keyStoreFile);
+        Files.delete(directory);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (InterruptedException | GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns a new SSL context of a client that trusts the certificate of a key store.
+   * @param keyStore the key store of the server
+   * @return a new SSL context of a client that trusts the certificate of a key store.
+   */
+  public static SSLContext clientContext(KeyStore keyStore) {
+    try {
+      var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(keyStore);
+      var context = SSLContext.getInstance("TLS");
+      context.init(null, trustManagerFactory.getTrustManagers(), null);
+      return context;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Starts a TLS server that answers "hello" on "/hello" on the loopback interface.
+   * @param port the TCP port of the server
+   * @param keyStore the key store containing the certificate and the private key of the server
+   * @return the server that must be closed.
+   */
+  public static AutoCloseable server(int port, KeyStore keyStore) {
+    SSLContext context;
+    try {
+      var keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(keyStore, PASSWORD);
+      context = SSLContext.getInstance("TLS");
+      context.init(keyManagerFactory.getKeyManagers(), null, null);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+    var app = JExpress.express();
+    app.get("/hello", (request, response) -> response.send("hello"));
+    return app.listenSecure(JExpress.ServerOptions.of(port)
+        .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)),
+        JExpress.TlsOptions.of(context));
+  }
+}
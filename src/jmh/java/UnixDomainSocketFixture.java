@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+
+/**
+ * Fixture of UnixDomainSocketBenchmark.
+ */
+public final class UnixDomainSocketFixture {
+  private UnixDomainSocketFixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns a new address of the loopback interface or a new unix domain socket address.
+   * @param transport "tcp" or "uds"
+   * @return a new address of the loopback interface or a new unix domain socket address.
+   */
+  public static SocketAddress address(String transport) {
+    return switch (transport) {
+      case "tcp" -> new InetSocketAddress(InetAddress.getLoopbackAddress(), EndToEndFixture.freePort());
+      case "uds" -> {
+        try {
+          yield UnixDomainSocketAddress.of(Files.createTempDirectory("jexpress").resolve("http.sock"));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      default -> throw new IllegalArgumentException("unknown transport " + transport);
+    };
+  }
+
+  /**
+   * Starts a server that answers "hello" on "/hello" using the NIO transport.
+   * @param address the address of the loopback interface or the unix domain socket address of the server
+   * @return the server that must be closed, closing the server deletes the directory of the socket file.
+   */
+  public static AutoCloseable server(SocketAddress address) {
+    var app = JExpress.express();
+    app.get("/hello", (request, response) -> response.send("hello"));
+    if (address instanceof UnixDomainSocketAddress unixAddress) {
+      var server = app.listen(unixAddress.getPath());
+      return () -> {
+        server.close();
+        Files.delete(unixAddress.getPath().getParent());
+      };
+    }
+    return app.listen(JExpress.ServerOptions.of(((InetSocketAddress) address).getPort())
+        .withAddress((InetSocketAddress) address)
+        .withTransport(JExpress.Transport.nio()));
+  }
+}
@@ -0,0 +1,70 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.concurrent.TimeUnit;
+
+// Measures a request on the loopback interface, from the HTTP client to the handler and back,
+// for JExpress with the HTTP server of the JDK and with the NIO transport, and for JExpress8,
+// all in HTTP/1.1, and for JExpress with the NIO transport in HTTP/2 without TLS (JExpressNioH2c).
+// Note that JExpress8 prints each request on System.err.
+// By default, the JDK HttpServer does not set TCP_NODELAY, so each response waits ~40 ms
+// for a delayed ACK, the benchmark enables it to measure the server and not the TCP stack
+// (the NIO transport always enables TCP_NODELAY).
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+  @Param({"JExpress", "JExpressNio", "JExpressNioH2c", "JExpress8"})
+  private String implementation;
+
+  private AutoCloseable server;
+  private HttpClient client;
+  private HttpRequest hello;
+  private HttpRequest json;
+
+  @Setup
+  public void setup() {
+    int port = Fixture.call("EndToEndFixture", "freePort");
+    server = Fixture.call("EndToEndFixture", "server", implementation, port);
+    // the client defaults to HTTP/2 and upgrades the connections to h2c on the NIO transport
+    var version = implementation.equals("JExpressNioH2c")? HttpClient.Version.HTTP_2: HttpClient.Version.HTTP_1_1;
+    client = HttpClient.newBuilder().version(version).build();
+    hello = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/hello")).build();
+    json = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/json")).build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Benchmark
+  public String hello() throws IOException, InterruptedException {
+    return client.send(hello, BodyHandlers.ofString()).body();
+  }
+
+  @Benchmark
+  public String json() throws IOException, InterruptedException {
+    return client.send(json, BodyHandlers.ofString()).body();
+  }
+}
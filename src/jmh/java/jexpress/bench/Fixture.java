@@ -0,0 +1,38 @@
+package jexpress.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * JMH does not allow benchmarks in the unnamed package and a class of a named package
+ * can not access to the classes of the unnamed package, so the code to benchmark is exposed
+ * by fixture classes of the unnamed package that are looked up by reflection during the setup.
+ */
+final class Fixture {
+  private Fixture() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Calls a public static method of a fixture class of the unnamed package.
+   * @param className the name of the fixture class
+   * @param methodName the name of the static method
+   * @param args the arguments of the method
+   * @return the value returned by the method
+   * @param <T> the type of the returned value
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T call(String className, String methodName, Object... args) {
+    try {
+      var method = Arrays.stream(Class.forName(className).getMethods())
+          .filter(m -> m.getName().equals(methodName) && m.getParameterCount() == args.length)
+          .findFirst()
+          .orElseThrow(() -> new NoSuchMethodError(className + "." + methodName));
+      return (T) method.invoke(null, args);
+    } catch (ClassNotFoundException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    } catch (InvocationTargetException e) {
+      throw new AssertionError(e.getCause());
+    }
+  }
+}
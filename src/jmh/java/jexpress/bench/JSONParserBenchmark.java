@@ -0,0 +1,59 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Compares the recursive descent JSON parser with the regex based parser used before
+// on 1 KB, 100 KB and 10 MB texts.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class JSONParserBenchmark {
+  @Param({"1024", "102400", "10485760"})
+  private int size;
+
+  private String text;
+  private byte[] bytes;
+  private Function<String, Object> parser;
+  private Function<byte[], Object> bytesParser;
+  private Function<String, Object> regexParser;
+
+  @Setup
+  public void setup() {
+    text = Fixture.call("JSONParserFixture", "text", size);
+    bytes = Fixture.call("JSONParserFixture", "bytes", text);
+    parser = Fixture.call("JSONParserFixture", "parser");
+    bytesParser = Fixture.call("JSONParserFixture", "bytesParser");
+    regexParser = Fixture.call("JSONParserFixture", "regexParser");
+  }
+
+  @Benchmark
+  public Object recursiveDescent() {
+    return parser.apply(text);
+  }
+
+  @Benchmark
+  public Object recursiveDescentBytes() {
+    return bytesParser.apply(bytes);
+  }
+
+  @Benchmark
+  public Object regex() {
+    return regexParser.apply(text);
+  }
+}
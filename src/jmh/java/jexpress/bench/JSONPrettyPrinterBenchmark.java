@@ -0,0 +1,46 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Measures the JSON printer on a list of records, a list of maps and a stream of records.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class JSONPrettyPrinterBenchmark {
+  @Param({"records", "maps", "stream"})
+  private String shape;
+
+  @Param({"1", "1000"})
+  private int count;
+
+  private Supplier<Object> values;
+  private Function<Object, String> printer;
+
+  @Setup
+  public void setup() {
+    values = Fixture.call("JSONPrettyPrinterFixture", "values", shape, count);
+    printer = Fixture.call("JSONPrettyPrinterFixture", "printer");
+  }
+
+  @Benchmark
+  public String toJSON() {
+    return printer.apply(values.get());
+  }
+}
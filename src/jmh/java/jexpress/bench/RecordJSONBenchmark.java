@@ -0,0 +1,50 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Compares the serialization of records using method handles cached in a ClassValue
+// with the serialization using reflection for each record.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RecordJSONBenchmark {
+  @Param({"1", "100"})
+  private int count;
+
+  private Object users;
+  private Function<Object, String> printer;
+  private Function<Object, String> reflectivePrinter;
+
+  @Setup
+  public void setup() {
+    users = Fixture.call("RecordJSONFixture", "users", count);
+    printer = Fixture.call("RecordJSONFixture", "printer");
+    reflectivePrinter = Fixture.call("RecordJSONFixture", "reflectivePrinter");
+  }
+
+  @Benchmark
+  public String classValue() {
+    return printer.apply(users);
+  }
+
+  @Benchmark
+  public String reflection() {
+    return reflectivePrinter.apply(users);
+  }
+}
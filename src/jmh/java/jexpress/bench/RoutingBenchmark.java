@@ -0,0 +1,57 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Measures the dispatch of a request, from the HTTP exchange to the handler of the route,
+// with 10, 100 and 1000 routes, for the first and the last registered routes and a path without route.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+  @Param({"10", "100", "1000"})
+  private int routes;
+
+  private Function<String, Integer> dispatcher;
+  private String firstPath;
+  private String lastPath;
+  private String unknownPath;
+
+  @Setup
+  public void setup() {
+    dispatcher = Fixture.call("RoutingFixture", "dispatcher", routes);
+    firstPath = Fixture.call("RoutingFixture", "path", 0);
+    lastPath = Fixture.call("RoutingFixture", "path", routes - 1);
+    unknownPath = Fixture.call("RoutingFixture", "path", routes);
+  }
+
+  @Benchmark
+  public int firstRoute() {
+    return dispatcher.apply(firstPath);
+  }
+
+  @Benchmark
+  public int lastRoute() {
+    return dispatcher.apply(lastPath);
+  }
+
+  @Benchmark
+  public int notFound() {
+    return dispatcher.apply(unknownPath);
+  }
+}
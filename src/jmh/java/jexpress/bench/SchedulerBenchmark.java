@@ -0,0 +1,59 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.concurrent.TimeUnit;
+
+// Measures the throughput of CPU-bound handlers when the number of carrier threads
+// of the scheduler grows up to one per core (parallelism 0), 8 client threads send the requests concurrently.
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SchedulerBenchmark {
+  @Param({"1", "2", "4", "0"})  // 0 means one carrier thread per core
+  private int parallelism;
+
+  private AutoCloseable server;
+  private HttpClient client;
+  private HttpRequest work;
+
+  @Setup
+  public void setup() {
+    int port = Fixture.call("EndToEndFixture", "freePort");
+    var carriers = parallelism == 0? Runtime.getRuntime().availableProcessors(): parallelism;
+    server = Fixture.call("SchedulerFixture", "server", carriers, port);
+    client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    work = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/work/42")).build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Benchmark
+  public String work() throws IOException, InterruptedException {
+    return client.send(work, BodyHandlers.ofString()).body();
+  }
+}
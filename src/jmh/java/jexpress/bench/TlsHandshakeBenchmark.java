@@ -0,0 +1,78 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+// Measures a request on a new TLS connection, with a full handshake (full) or with a handshake
+// that resumes the session of the previous connection using a session ticket (resumed).
+// The server uses a self-signed RSA 2048 certificate, the sessions of the client are invalidated
+// after each connection to force a full handshake.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TlsHandshakeBenchmark {
+  @Param({"full", "resumed"})
+  private String handshake;
+
+  private int port;
+  private AutoCloseable server;
+  private SSLContext clientContext;
+  private final byte[] request = "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1);
+
+  @Setup
+  public void setup() {
+    KeyStore keyStore = Fixture.call("TlsFixture", "keyStore");
+    port = Fixture.<Integer>call("EndToEndFixture", "freePort");
+    server = Fixture.call("TlsFixture", "server", port, keyStore);
+    clientContext = Fixture.call("TlsFixture", "clientContext", keyStore);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Benchmark
+  public int hello() throws IOException {
+    int length;
+    try (var socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port)) {
+      socket.setTcpNoDelay(true);
+      socket.getOutputStream().write(request);
+      // the session ticket is sent by the server after the handshake, so the response is read
+      length = socket.getInputStream().readAllBytes().length;
+    }
+    if (handshake.equals("full")) {
+      var sessionContext = clientContext.getClientSessionContext();
+      for (var id : Collections.list(sessionContext.getIds())) {
+        var session = sessionContext.getSession(id);
+        if (session != null) {
+          session.invalidate();
+        }
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,84 @@
+package jexpress.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+// Measures a request on a kept-alive connection to the NIO transport, on the loopback interface (tcp)
+// and on a unix domain socket (uds). The client is a blocking socket channel that writes the request
+// and reads the response, the response has a fixed size because the date has a fixed format.
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class UnixDomainSocketBenchmark {
+  @Param({"tcp", "uds"})
+  private String transport;
+
+  private AutoCloseable server;
+  private SocketChannel channel;
+  private final ByteBuffer request = ByteBuffer.wrap("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(ISO_8859_1));
+  private ByteBuffer response;
+
+  @Setup
+  public void setup() throws IOException {
+    SocketAddress address = Fixture.call("UnixDomainSocketFixture", "address", transport);
+    server = Fixture.call("UnixDomainSocketFixture", "server", address);
+    channel = SocketChannel.open(address);
+
+    // the first response gives the size of the responses
+    write();
+    var buffer = ByteBuffer.allocate(4_096);
+    while (!new String(buffer.array(), 0, buffer.position(), ISO_8859_1).endsWith("\r\n\r\nhello")) {
+      if (channel.read(buffer) == -1) {
+        throw new EOFException();
+      }
+    }
+    response = ByteBuffer.allocate(buffer.position());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    channel.close();
+    server.close();
+  }
+
+  private void write() throws IOException {
+    request.rewind();
+    while (request.hasRemaining()) {
+      channel.write(request);
+    }
+  }
+
+  @Benchmark
+  public byte hello() throws IOException {
+    write();
+    response.clear();
+    while (response.hasRemaining()) {
+      if (channel.read(response) == -1) {
+        throw new EOFException();
+      }
+    }
+    return response.get(response.limit() - 1);
+  }
+}
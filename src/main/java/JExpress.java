@@ -1,52 +1,118 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
 import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.reflect.WildcardType;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.BiConsumer;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
 
-import static java.lang.Double.parseDouble;
-import static java.lang.Integer.parseInt;
 import static java.lang.System.out;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import static java.lang.invoke.MethodHandles.publicLookup;
 import static java.lang.invoke.MethodType.methodType;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Spliterators.spliteratorUnknownSize;
-import static java.util.regex.Pattern.compile;
 import static java.util.stream.Collectors.joining;
-import static java.util.stream.IntStream.rangeClosed;
 
 /**
  * An express.js-like application library, requires Java 17+
@@ -85,10 +151,20 @@ public class JExpress {
      */
     String param(String name);
 
+    /**
+     * Get a route parameter by its position in the route path,
+     * the first parameter of the route has the index 0.
+     * @param index index of the parameter
+     * @return the value of the parameter
+     * @throws IndexOutOfBoundsException if there is no parameter at that index
+     */
+    String param(int index);
+
     /**
      * Returns the body of the request as a JSON array.
      * @return the body of the request as a JSON array.
      * @throws IOException if an I/O error occurs.
+     * @throws IllegalStateException if the body is not a valid JSON text or is not a JSON array
      */
     List<Object> bodyArray() throws IOException;
 
@@ -96,9 +172,31 @@ public class JExpress {
      * Returns the body of the request as a JSON object.
      * @return the body of the request as a JSON object.
      * @throws IOException if an I/O error occurs.
+     * @throws IllegalStateException if the body is not a valid JSON text or is not a JSON object
      */
     Map<String, Object> bodyObject() throws IOException;
 
+    /**
+     * Returns the body of the request, a JSON object, as a record.
+     * The components of the record are bound by name, the unknown keys are ignored
+     * and the missing components are initialized to their default values.
+     * @param type the class of the record
+     * @param <T> the type of the record
+     * @return the body of the request as a record.
+     * @throws IOException if an I/O error occurs.
+     */
+    <T extends Record> T body(Class<T> type) throws IOException;
+
+    /**
+     * Returns the body of the request, a JSON array of objects, as a list of records.
+     * @param type the class of the records
+     * @param <T> the type of the records
+     * @return the body of the request as a list of records.
+     * @throws IOException if an I/O error occurs.
+     * @see #body(Class)
+     */
+    <T extends Record> List<T> bodyList(Class<T> type) throws IOException;
+
     /**
      * Returns the body of the request as an InputStream.
      * @return the body of the request as an InputStream.
@@ -193,6 +291,12 @@ public class JExpress {
     /**
      * Send a file as response.
      * The status is set to 200 if the file is found or 404 if not found.
+     * The headers ETag and Last-Modified are sent, if the request has an If-None-Match
+     * or an If-Modified-Since header and the file has not been modified, the status is set to 304
+     * and the file is not sent.
+     * If the request has a Range header, only the requested ranges are sent with the status 206.
+     * The size and the modification date of the file are checked at each call, so a file rewritten
+     * before the call is never served stale.
      * @param path the path of the file;
      * @throws IOException if an I/O error occurs.
      */
@@ -250,444 +354,6165 @@ public class JExpress {
   }
 
   /**
-   * A server instance
+   * The information logged about a request once it has been processed.
+   *
+   * @param time the time the request was received in milliseconds since the epoch
+   * @param remoteAddress the address of the client
+   * @param method the HTTP method of the request
+   * @param uri the URI of the request
+   * @param protocol the protocol of the request, by example "HTTP/1.1"
+   * @param status the HTTP status of the response or -1 if no response was sent
+   * @param contentLength the length of the body of the response or -1 if unknown
+   * @param duration the time spent to process the request in nanoseconds
    */
-  interface Server extends AutoCloseable {
+  public record LogEntry(long time, InetSocketAddress remoteAddress, String method, URI uri, String protocol,
+                         int status, long contentLength, long duration) {}
+
+  /**
+   * A logger called each time a request has been processed.
+   * A logger is called on the thread that processed the request so it should not block.
+   *
+   * @see #logger(RequestLogger)
+   * @see #accessLog(Path, LogFormat)
+   */
+  @FunctionalInterface
+  public interface RequestLogger {
     /**
-     * Close the server
+     * Logs a processed request.
+     * @param entry the information about the request and its response
      */
-    void close();
+    void log(LogEntry entry);
   }
 
-  private record RequestImpl(HttpExchange exchange, String[] components) implements Request {
-    @Override
-    public String method() {
-      return exchange.getRequestMethod().toUpperCase(Locale.ROOT);
-    }
+  /**
+   * The format of the lines of an access log.
+   */
+  public enum LogFormat {
+    /**
+     * The Common Log Format, by example
+     * <pre>
+     *   127.0.0.1 - - [17/Oct/2026:10:30:00 +0200] "GET /index.html HTTP/1.1" 200 1067
+     * </pre>
+     */
+    COMMON,
+    /**
+     * One JSON object per line, by example
+     * <pre>
+     *   {"time": "2026-10-17T08:30:00Z", "remote": "127.0.0.1", "method": "GET", "uri": "/index.html", "protocol": "HTTP/1.1", "status": 200, "length": 1067, "duration_us": 42}
+     * </pre>
+     */
+    JSON
+  }
 
-    @Override
-    public String path() {
-      return exchange.getRequestURI().getPath();
-    }
+  /**
+   * An access log that writes the log entries to a file asynchronously.
+   * The entries are stored in a bounded buffer and written by batch by a background thread,
+   * if the buffer is full, the entries are dropped instead of slowing down the server.
+   *
+   * @see #accessLog(Path, LogFormat)
+   */
+  public sealed interface AccessLog extends RequestLogger, AutoCloseable {
+    /**
+     * Returns the number of entries dropped because the buffer was full or because the file can not be written.
+     * @return the number of entries dropped because the buffer was full or because the file can not be written.
+     */
+    long dropped();
 
+    /**
+     * Writes the pending entries and closes the file.
+     * @throws IOException if an I/O error occurs, either now or when an entry was written.
+     */
     @Override
-    public String get(String header) {
-      return exchange.getRequestHeaders().getFirst(header);
-    }
+    void close() throws IOException;
+  }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public String param(String name) {
-      return ((Map<String, String>) exchange.getAttribute("params")).getOrDefault(name, "");
-    }
+  /**
+   * The pool of buffers used to write the bodies of the responses.
+   * A buffer is borrowed for the duration of a write and returned to the pool,
+   * if the pool is empty a new buffer is allocated, if the pool is full the buffer is dropped.
+   *
+   * @see #bufferPool()
+   */
+  public sealed interface BufferPool {
+    /**
+     * Returns the size in bytes of a buffer.
+     * @return the size in bytes of a buffer.
+     */
+    int bufferSize();
 
-    @Override
-    public InputStream bodyStream() {
-      return exchange.getRequestBody();
-    }
+    /**
+     * Returns the number of buffers borrowed from the pool.
+     * @return the number of buffers borrowed from the pool.
+     */
+    long hits();
 
-   private Object body() throws IOException {
-      if (!"application/json".equals(get("Content-Type"))) {
-        throw new IllegalStateException("Content-Type is not 'application/json'");
-      }
-      return ToyJSONParser.parse(bodyText());
-   }
+    /**
+     * Returns the number of buffers allocated because the pool was empty.
+     * @return the number of buffers allocated because the pool was empty.
+     */
+    long misses();
+  }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public Map<String, Object> bodyObject() throws IOException {
-      return (Map<String, Object>) body();
+  /**
+   * The scheduler of the virtual threads used to process the requests.
+   * If the virtual threads are not available, the requests are processed directly
+   * by the threads of the scheduler executor or, for the default scheduler,
+   * by the dispatcher thread of the server.
+   *
+   * @see #scheduler(Scheduler)
+   */
+  public sealed interface Scheduler {
+    /**
+     * Returns the default scheduler of the JDK, a ForkJoinPool with one carrier thread per core.
+     * @return the default scheduler of the JDK.
+     */
+    static Scheduler defaultScheduler() {
+      return SchedulerImpl.DEFAULT;
     }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public List<Object> bodyArray() throws IOException {
-      return (List<Object>) body();
+    /**
+     * Returns a scheduler that uses a new work-stealing pool with one carrier thread per core.
+     * Each server creates its own pool when it starts and shutdowns it when it is closed.
+     * @return a scheduler that uses a new work-stealing pool.
+     */
+    static Scheduler workStealing() {
+      return workStealing(Runtime.getRuntime().availableProcessors());
     }
 
-    @Override
-    public String bodyText() throws IOException {
-      try (var in = bodyStream();
-           var reader = new InputStreamReader(in, UTF_8);
-           var buffered = new BufferedReader(reader)) {
-        return buffered.lines().collect(joining("\n"));
+    /**
+     * Returns a scheduler that uses a new work-stealing pool with a fixed number of carrier threads.
+     * Each server creates its own pool when it starts and shutdowns it when it is closed.
+     * @param parallelism the number of carrier threads
+     * @return a scheduler that uses a new work-stealing pool.
+     * @throws IllegalArgumentException if parallelism is not positive
+     */
+    static Scheduler workStealing(int parallelism) {
+      if (parallelism <= 0) {
+        throw new IllegalArgumentException("parallelism <= 0");
       }
+      return new SchedulerImpl(null, parallelism);
     }
-  }
 
-  private record ResponseImpl(HttpExchange exchange) implements Response {
-    @Override
-    public Response status(int status) {
-      exchange.setAttribute("status", status);
-      return this;
+    /**
+     * Returns a scheduler that uses an executor to run the virtual threads.
+     * The executor is not shutdown when a server is closed, the caller keeps it alive
+     * as long as a server uses it.
+     * @param executor the executor providing the carrier threads
+     * @return a scheduler that uses an executor to run the virtual threads.
+     */
+    static Scheduler executor(Executor executor) {
+      return new SchedulerImpl(Objects.requireNonNull(executor), 0);
     }
+  }
 
-    @Override
-    public Response append(String field, String value) {
-      exchange.getResponseHeaders().add(field, value);
-      return this;
+  /**
+   * The threads used by a server to process the requests.
+   *
+   * @see ServerOptions#withThreading(Threading)
+   */
+  public sealed interface Threading {
+    /**
+     * Returns a threading that processes each request in a new virtual thread
+     * using the scheduler of the application.
+     * @return a threading that processes each request in a new virtual thread.
+     * @see JExpress#scheduler(Scheduler)
+     */
+    static Threading virtualThreads() {
+      return VirtualThreading.INSTANCE;
     }
 
-    @Override
-    public Response set(String field, String value) {
-      exchange.getResponseHeaders().set(field, value);
-      return this;
+    /**
+     * Returns a threading that processes the requests with a fixed pool of platform threads,
+     * the pool is created when the server starts and shutdown when the server is closed.
+     * @param threads the number of platform threads
+     * @return a threading that processes the requests with a fixed pool of platform threads.
+     * @throws IllegalArgumentException if the number of threads is not positive
+     */
+    static Threading platformThreads(int threads) {
+      if (threads <= 0) {
+        throw new IllegalArgumentException("threads <= 0");
+      }
+      return new PlatformThreading(threads);
     }
 
-    @Override
-    public Response type(String type) {
-      return set("Content-Type", type);
+    /**
+     * Returns a threading that processes the requests with an executor,
+     * the executor is not shutdown when the server is closed.
+     * @param executor the executor used to process the requests
+     * @return a threading that processes the requests with an executor.
+     */
+    static Threading executor(Executor executor) {
+      return new ExecutorThreading(Objects.requireNonNull(executor));
     }
+  }
 
-    @Override
-    public void json(Object object) throws IOException {
-      json(JSONPrettyPrinter.toJSON(object));
+  /**
+   * The network engine of a server, it accepts the connections, reads the requests and writes the responses.
+   *
+   * @see ServerOptions#withTransport(Transport)
+   */
+  public sealed interface Transport {
+    /**
+     * Returns a transport based on the HTTP server of the JDK ({@code com.sun.net.httpserver}).
+     * @return a transport based on the HTTP server of the JDK.
+     */
+    static Transport httpServer() {
+      return HttpServerTransport.INSTANCE;
     }
 
-    @Override
-    public void json(String json) throws IOException {
-      type("application/json", "utf-8");
-      send(json);
+    /**
+     * Returns a transport based on a selector and non-blocking socket channels,
+     * the requests are parsed from direct buffers, the connections are kept alive between the requests
+     * and the pipelined requests of a connection are processed in order.
+     * TCP_NODELAY is enabled on all connections and the files are sent using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     * <p>
+     * The transport also speaks HTTP/2 without TLS (h2c), either with prior knowledge or after an upgrade
+     * from HTTP/1.1 (this is what {@link java.net.http.HttpClient} does for a {@code http://} URI),
+     * the header fields are compressed with HPACK, the bodies are sent in the limits of the flow control windows
+     * and the streams of a connection are processed concurrently, each one by a thread of the executor
+     * (a virtual thread by default).
+     * <p>
+     * The idle connections and the clients too slow to send a request or to receive a response
+     * are closed by the selector thread, see {@link ServerOptions#withTimeouts(TimeoutOptions)}.
+     * @return a transport based on a selector and non-blocking socket channels.
+     * @see #nio(int)
+     */
+    static Transport nio() {
+      return NioTransport.DEFAULT;
     }
 
-    @Override
-    public void send(String body) throws IOException {
-      var content = body.getBytes(UTF_8);
-      var status = (int) exchange.getAttribute("status");
-      var contentLength = content.length;
-      exchange.sendResponseHeaders(status, contentLength);
-      System.err.println("  send " + status + " content-length " + contentLength);
-
-      var headers = exchange.getResponseHeaders();
-      if (!headers.containsKey("Content-Type")) {
-        type("text/html", "utf-8");
-      }
-      try (var output = exchange.getResponseBody()) {
-        output.write(content);
-        output.flush();
+    /**
+     * Returns a transport based on selectors and non-blocking socket channels with several acceptor shards.
+     * Each shard has its own server socket bound to the same address with SO_REUSEPORT and its own selector thread,
+     * so the kernel spreads the new connections among the shards and the connection setup
+     * scales with the number of cores. If SO_REUSEPORT is not supported, the shards accept the connections
+     * of a single server socket.
+     * <p>
+     * The platform threads of {@link Threading#platformThreads(int)} are split among the shards,
+     * each shard has a pool of {@code threads / acceptors} threads and the first {@code threads % acceptors}
+     * shards have one more thread, so there must be at least one thread per shard.
+     * The executor of {@link Threading#executor(Executor)} and the scheduler of the virtual threads
+     * are shared by all the shards.
+     * For example,
+     * <pre>
+     *   app.listen(ServerOptions.of(8080).withTransport(Transport.nio(Runtime.getRuntime().availableProcessors())));
+     * </pre>
+     * @param acceptors the number of shards
+     * @return a transport based on selectors and non-blocking socket channels with several acceptor shards.
+     * @throws IllegalArgumentException if the number of acceptors is not positive
+     * @see #nio()
+     * @see JExpress#listen(ServerOptions)
+     */
+    static Transport nio(int acceptors) {
+      if (acceptors <= 0) {
+        throw new IllegalArgumentException("acceptors <= 0");
       }
+      return acceptors == 1? NioTransport.DEFAULT: new NioTransport(acceptors);
     }
+  }
 
-    @Override
-    public void sendFile(Path path) throws IOException {
-      try (var input = Files.newInputStream(path)) {
-        var headers = exchange.getResponseHeaders();
-        var contentType = headers.getFirst("Content-Type");
-        if (contentType == null) {
-          contentType = Files.probeContentType(path);
-          if (contentType == null) {
-            contentType = "application/octet-stream";
-          }
-          //System.err.println("inferred content type " + contentType);
-          if (contentType.startsWith("text/")) {
-            type(contentType, "utf-8");
-          } else {
-            type(contentType);
-          }
-        }
-
-        var contentLength = Files.size(path);
-        exchange.sendResponseHeaders(200, contentLength);
-        System.err.println("  send file " + 200 + " content-type " + contentType + " content-length " + contentLength);
-
-        try (var output = exchange.getResponseBody()) {
-          var buffer = new byte[8192];
-          int read;
-          while ((read = input.read(buffer)) != -1) {
-            output.write(buffer, 0, read);
-          }
-          output.flush();
-        }
-      } catch (FileNotFoundException e) {
-        var message = "Not Found " + e.getMessage();
-        //System.err.println(message);
-        status(404).send("<html><h2>" + message + "</h2></html>");
+  /**
+   * The options used to start a server.
+   * For example,
+   * <pre>
+   *   app.listen(ServerOptions.of(8080).withBacklog(1_024).withThreading(Threading.platformThreads(64)));
+   * </pre>
+   *
+   * @param address the address and port the server is bound to
+   * @param backlog the maximum number of pending connections or 0 for the system default
+   * @param threading the threads used to process the requests
+   * @param stopTimeout the time given to the pending requests to finish when the server is closed
+   * @param transport the network engine of the server
+   * @param timeouts the timeouts of the connections of the NIO transport
+   * @see #listen(ServerOptions)
+   */
+  public record ServerOptions(InetSocketAddress address, int backlog, Threading threading, Duration stopTimeout,
+                              Transport transport, TimeoutOptions timeouts) {
+    /**
+     * Creates server options.
+     * @throws IllegalArgumentException if the backlog or the stop timeout is negative
+     */
+    public ServerOptions {
+      Objects.requireNonNull(address);
+      Objects.requireNonNull(threading);
+      Objects.requireNonNull(stopTimeout);
+      Objects.requireNonNull(transport);
+      Objects.requireNonNull(timeouts);
+      if (backlog < 0) {
+        throw new IllegalArgumentException("backlog < 0");
+      }
+      if (stopTimeout.isNegative()) {
+        throw new IllegalArgumentException("stopTimeout < 0");
       }
     }
-  }
 
-  private static Function<String[], Optional<Map<String, String>>> matcher(String uri) {
-    var parts = uri.split("/");
-    var length = parts.length;
-    var predicate =  (Predicate<String[]>) components -> components.length >= length;
-    var consumer = (BiConsumer<String[], Map<String,String>>) (_1, _2) -> { /* empty */ };
-    for(var i = 0; i < length; i++) {
-      var index = i;
-      var part = parts[i];
-      if (part.startsWith(":")) {
-        var key = part.substring(1);
-        var c = consumer;
-        consumer = (components, map) -> { c.accept(components, map); map.put(key, components[index]); };
-      } else {
-        predicate = predicate.and(components -> part.equals(components[index]));
-      }
+    /**
+     * Creates server options that use the HTTP server of the JDK.
+     * @param address the address and port the server is bound to
+     * @param backlog the maximum number of pending connections or 0 for the system default
+     * @param threading the threads used to process the requests
+     * @param stopTimeout the time given to the pending requests to finish when the server is closed
+     * @throws IllegalArgumentException if the backlog or the stop timeout is negative
+     * @see Transport#httpServer()
+     */
+    public ServerOptions(InetSocketAddress address, int backlog, Threading threading, Duration stopTimeout) {
+      this(address, backlog, threading, stopTimeout, Transport.httpServer());
     }
 
-    var p =  predicate;
-    var c = consumer;
-    return components -> {
-      if (!p.test(components)) {
-        //System.err.println("do not match " + Arrays.toString(components));
-        return Optional.empty();
-      }
-      var map = new HashMap<String,String>();
-      c.accept(components, map);
-      //System.err.println("match " + Arrays.toString(components) + " " + map);
-      return Optional.of(map);
-    };
-  }
+    /**
+     * Creates server options with the default timeouts.
+     * @param address the address and port the server is bound to
+     * @param backlog the maximum number of pending connections or 0 for the system default
+     * @param threading the threads used to process the requests
+     * @param stopTimeout the time given to the pending requests to finish when the server is closed
+     * @param transport the network engine of the server
+     * @throws IllegalArgumentException if the backlog or the stop timeout is negative
+     * @see TimeoutOptions#of()
+     */
+    public ServerOptions(InetSocketAddress address, int backlog, Threading threading, Duration stopTimeout,
+                         Transport transport) {
+      this(address, backlog, threading, stopTimeout, transport, TimeoutOptions.of());
+    }
 
-  private JExpress() {
-    // empty
-  }
+    /**
+     * Returns the default options for a port, the server is bound to the wildcard address,
+     * uses the system default backlog, virtual threads, the HTTP server of the JDK, the default timeouts
+     * and waits 1 second for the pending requests when closed.
+     * @param port a TCP port
+     * @return the default options for a port.
+     */
+    public static ServerOptions of(int port) {
+      return new ServerOptions(new InetSocketAddress(port), 0, Threading.virtualThreads(), Duration.ofSeconds(1),
+          Transport.httpServer(), TimeoutOptions.of());
+    }
 
-  /**
-   * Creates an Express like application.
-   * @return a new Express like application.
-   */
-  public static JExpress express() {
-    return new JExpress();
-  }
+    /**
+     * Returns new options with a different address.
+     * @param address the address and port the server is bound to
+     * @return new options with a different address.
+     */
+    public ServerOptions withAddress(InetSocketAddress address) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
+    }
 
-  // A Toy JSON parser that do not recognize correctly, unicode characters, escaped strings,
-  // and I'm sure many more features.
-  /*private*/ static class ToyJSONParser {
-    private ToyJSONParser() {
-      throw new AssertionError();
+    /**
+     * Returns new options with a different backlog.
+     * @param backlog the maximum number of pending connections or 0 for the system default
+     * @return new options with a different backlog.
+     */
+    public ServerOptions withBacklog(int backlog) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
     }
 
-    enum Kind {
-      NULL("(null)"),
-      TRUE("(true)"),
-      FALSE("(false)"),
-      DOUBLE("([0-9]*\\.[0-9]*)"),
-      INTEGER("([0-9]+)"),
-      STRING("\"([^\\\"]*)\""),
-      LEFT_CURLY("(\\{)"),
-      RIGHT_CURLY("(\\})"),
-      LEFT_BRACKET("(\\[)"),
-      RIGHT_BRACKET("(\\])"),
-      COLON("(\\:)"),
-      COMMA("(\\,)"),
-      BLANK("([ \t]+)")
-      ;
+    /**
+     * Returns new options with a different threading.
+     * @param threading the threads used to process the requests
+     * @return new options with a different threading.
+     */
+    public ServerOptions withThreading(Threading threading) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
+    }
 
-      private final String regex;
+    /**
+     * Returns new options with a different stop timeout.
+     * @param stopTimeout the time given to the pending requests to finish when the server is closed
+     * @return new options with a different stop timeout.
+     */
+    public ServerOptions withStopTimeout(Duration stopTimeout) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
+    }
 
-      Kind(String regex) {
-        this.regex = regex;
-      }
+    /**
+     * Returns new options with a different transport.
+     * For example,
+     * <pre>
+     *   app.listen(ServerOptions.of(8080).withTransport(Transport.nio()));
+     * </pre>
+     * @param transport the network engine of the server
+     * @return new options with a different transport.
+     */
+    public ServerOptions withTransport(Transport transport) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
+    }
 
-      private static final Kind[] VALUES = values();
+    /**
+     * Returns new options with different timeouts.
+     * For example,
+     * <pre>
+     *   app.listen(ServerOptions.of(8080).withTransport(Transport.nio())
+     *       .withTimeouts(TimeoutOptions.of().withIdleTimeout(Duration.ofSeconds(5))));
+     * </pre>
+     * @param timeouts the timeouts of the connections of the NIO transport
+     * @return new options with different timeouts.
+     */
+    public ServerOptions withTimeouts(TimeoutOptions timeouts) {
+      return new ServerOptions(address, backlog, threading, stopTimeout, transport, timeouts);
     }
+  }
 
-    private record Token(Kind kind, String text, int location) {
-      private boolean is(Kind kind) {
-        return this.kind == kind;
+  /**
+   * The timeouts of the connections of the NIO transport, a connection that times out is closed
+   * by the selector thread, so a slow or stalled client can not keep a connection and a thread forever.
+   * A timeout of 0 means no timeout.
+   * The HTTP server of the JDK uses its own timeouts, configured by the system properties
+   * {@code sun.net.httpserver.idleInterval} and {@code sun.net.httpserver.maxReqTime}.
+   * For example,
+   * <pre>
+   *   TimeoutOptions.of().withHeadTimeout(Duration.ofSeconds(5))
+   * </pre>
+   *
+   * @param idleTimeout the time a connection can stay open without a request
+   * @param headTimeout the time given to a client to send the whole head of a request once it has started
+   * @param bodyTimeout the time a thread can wait for the client, to receive some bytes of the body
+   *                    of a request or to send some bytes of the response
+   * @see ServerOptions#withTimeouts(TimeoutOptions)
+   */
+  public record TimeoutOptions(Duration idleTimeout, Duration headTimeout, Duration bodyTimeout) {
+    /**
+     * Creates timeout options.
+     * @throws IllegalArgumentException if a timeout is negative
+     */
+    public TimeoutOptions {
+      Objects.requireNonNull(idleTimeout);
+      Objects.requireNonNull(headTimeout);
+      Objects.requireNonNull(bodyTimeout);
+      if (idleTimeout.isNegative()) {
+        throw new IllegalArgumentException("idleTimeout < 0");
       }
-
-      private String expect(Kind kind) {
-        if (this.kind != kind) {
-          throw error(kind);
-        }
-        return text;
+      if (headTimeout.isNegative()) {
+        throw new IllegalArgumentException("headTimeout < 0");
       }
-
-      public IllegalStateException error(Kind... expectedKinds) {
-        return new IllegalStateException("expect " + Arrays.stream(expectedKinds)
-            .map(Kind::name).collect(joining(", ")) + " but recognized " + kind + " at " + location);
+      if (bodyTimeout.isNegative()) {
+        throw new IllegalArgumentException("bodyTimeout < 0");
       }
     }
 
-    private record Lexer(Matcher matcher) {
-      private Token next() {
-        for(;;) {
-          if (!matcher.find()) {
-            throw new IllegalStateException("no token recognized");
-          }
-          var index = rangeClosed(1, matcher.groupCount()).filter(i -> matcher.group(i) != null).findFirst().orElseThrow();
-          var kind = Kind.VALUES[index - 1];
-          if (kind != Kind.BLANK) {
-            return new Token(kind, matcher.group(index), matcher.start(index));
-          }
-        }
-      }
+    /**
+     * Returns the default options, a connection is closed after 30 seconds without a request,
+     * if the head of a request is not received in 10 seconds or if the client does not send
+     * or receive any byte of a body for 30 seconds.
+     * @return the default options.
+     */
+    public static TimeoutOptions of() {
+      return new TimeoutOptions(Duration.ofSeconds(30), Duration.ofSeconds(10), Duration.ofSeconds(30));
     }
 
-    private static final Pattern PATTERN = compile(Arrays.stream(Kind.VALUES)
-        .map(k -> k.regex).collect(joining("|")));
-
     /**
-     * Parse a JSON text.
-     *
-     * @param input a JSON text
-     * @return a Java object corresponding to the text
+     * Returns new options with a different idle timeout.
+     * @param idleTimeout the time a connection can stay open without a request
+     * @return new options with a different idle timeout.
      */
-    public static Object parse(String input) {
-      var lexer = new Lexer(PATTERN.matcher(input));
-      try {
-        return parse(lexer);
-      } catch(IllegalStateException e) {
-        throw new IllegalStateException(e.getMessage() + "\n while parsing " + input, e);
-      }
+    public TimeoutOptions withIdleTimeout(Duration idleTimeout) {
+      return new TimeoutOptions(idleTimeout, headTimeout, bodyTimeout);
     }
 
-    private static Object parse(Lexer lexer) {
-      var token = lexer.next();
-      return switch(token.kind) {
-        case LEFT_CURLY -> {
-          var object = new HashMap<String, Object>();
-          parseObject(lexer, object);
-          yield object;
-        }
-        case LEFT_BRACKET -> {
-          var array = new ArrayList<>();
-          parseArray(lexer, array);
-          yield array;
-        }
-        default -> throw token.error(Kind.LEFT_CURLY, Kind.LEFT_BRACKET);
-      };
+    /**
+     * Returns new options with a different head timeout.
+     * @param headTimeout the time given to a client to send the whole head of a request once it has started
+     * @return new options with a different head timeout.
+     */
+    public TimeoutOptions withHeadTimeout(Duration headTimeout) {
+      return new TimeoutOptions(idleTimeout, headTimeout, bodyTimeout);
     }
 
-    private static void parseObjectValue(Token token, Lexer lexer, Map<String, Object> jsonObject, String key) {
-      switch (token.kind) {
-        case NULL -> jsonObject.put(key, null);
-        case FALSE -> jsonObject.put(key, false);
-        case TRUE -> jsonObject.put(key, true);
-        case INTEGER -> jsonObject.put(key, parseInt(token.text));
-        case DOUBLE -> jsonObject.put(key, parseDouble(token.text));
-        case STRING -> jsonObject.put(key, token.text);
-        case LEFT_CURLY -> {
-          var map = new HashMap<String, Object>();
-          parseObject(lexer, map);
-          jsonObject.put(key, map);
-        }
-        case LEFT_BRACKET -> {
-          var list = new ArrayList<Object>();
-          parseArray(lexer, list);
-          jsonObject.put(key, list);
-        }
-        default -> throw token.error(Kind.NULL, Kind.FALSE, Kind.TRUE, Kind.INTEGER, Kind.DOUBLE, Kind.STRING, Kind.LEFT_BRACKET, Kind.RIGHT_CURLY);
-      }
+    /**
+     * Returns new options with a different body timeout.
+     * @param bodyTimeout the time a thread can wait for the client, to receive some bytes of the body
+     *                    of a request or to send some bytes of the response
+     * @return new options with a different body timeout.
+     */
+    public TimeoutOptions withBodyTimeout(Duration bodyTimeout) {
+      return new TimeoutOptions(idleTimeout, headTimeout, bodyTimeout);
     }
+  }
 
-    private static void parseArrayValue(Token token, Lexer lexer, List<Object> jsonArray) {
-      switch (token.kind) {
-        case NULL -> jsonArray.add(null);
-        case FALSE -> jsonArray.add(false);
-        case TRUE -> jsonArray.add(true);
-        case INTEGER -> jsonArray.add(parseInt(token.text));
-        case DOUBLE -> jsonArray.add(parseDouble(token.text));
-        case STRING -> jsonArray.add(token.text);
-        case LEFT_CURLY -> {
-          var map = new HashMap<String, Object>();
-          parseObject(lexer, map);
-          jsonArray.add(map);
-        }
-        case LEFT_BRACKET -> {
-          var list = new ArrayList<>();
-          parseArray(lexer, list);
-          jsonArray.add(list);
-        }
-        default -> throw token.error(Kind.NULL, Kind.FALSE, Kind.TRUE, Kind.INTEGER, Kind.DOUBLE, Kind.STRING, Kind.LEFT_BRACKET, Kind.RIGHT_CURLY);
+  /**
+   * The options used to serve static files.
+   * For example,
+   * <pre>
+   *   app.use(staticFiles(Path.of("public"), StaticOptions.of().withCacheBudget(128 * 1024 * 1024)));
+   * </pre>
+   *
+   * @param cacheBudget the maximum number of bytes of the files kept in memory
+   * @param maxCachedFileSize the size in bytes of the biggest file kept in memory
+   * @param watch true if the cached files are invalidated when they change on disk,
+   *              false if they are checked against the file system at most once per second
+   * @see #staticFiles(Path, StaticOptions)
+   */
+  public record StaticOptions(long cacheBudget, long maxCachedFileSize, boolean watch) {
+    /**
+     * Creates static options.
+     * @throws IllegalArgumentException if the cache budget or the maximum cached file size is negative
+     */
+    public StaticOptions {
+      if (cacheBudget < 0) {
+        throw new IllegalArgumentException("cacheBudget < 0");
+      }
+      if (maxCachedFileSize < 0) {
+        throw new IllegalArgumentException("maxCachedFileSize < 0");
       }
     }
 
-    private static void parseObject(Lexer lexer, Map<String, Object> jsonObject) {
-      var token = lexer.next();
-      if (token.is(Kind.RIGHT_CURLY)) {
-        return;
-      }
-      for(;;) {
-        var key = token.expect(Kind.STRING);
-        lexer.next().expect(Kind.COLON);
-        token = lexer.next();
-        parseObjectValue(token, lexer, jsonObject, key);
-        token = lexer.next();
-        if (token.is(Kind.RIGHT_CURLY)) {
-          return;
-        }
-        token.expect(Kind.COMMA);
-        token = lexer.next();
-      }
+    /**
+     * Returns the default options, a cache of 64 MB for the files of at most 1 MB
+     * invalidated when the files change.
+     * @return the default options.
+     */
+    public static StaticOptions of() {
+      return new StaticOptions(64 * 1024 * 1024, 1024 * 1024, true);
     }
 
-    private static void parseArray(Lexer lexer, List<Object> jsonArray) {
-      var token = lexer.next();
-      if (token.is(Kind.RIGHT_BRACKET)) {
+    /**
+     * Returns new options with a different cache budget.
+     * @param cacheBudget the maximum number of bytes of the files kept in memory
+     * @return new options with a different cache budget.
+     */
+    public StaticOptions withCacheBudget(long cacheBudget) {
+      return new StaticOptions(cacheBudget, maxCachedFileSize, watch);
+    }
+
+    /**
+     * Returns new options with a different maximum cached file size.
+     * @param maxCachedFileSize the size in bytes of the biggest file kept in memory
+     * @return new options with a different maximum cached file size.
+     */
+    public StaticOptions withMaxCachedFileSize(long maxCachedFileSize) {
+      return new StaticOptions(cacheBudget, maxCachedFileSize, watch);
+    }
+
+    /**
+     * Returns new options with a different invalidation strategy.
+     * @param watch true if the cached files are invalidated when they change on disk
+     * @return new options with a different invalidation strategy.
+     */
+    public StaticOptions withWatch(boolean watch) {
+      return new StaticOptions(cacheBudget, maxCachedFileSize, watch);
+    }
+  }
+
+  /**
+   * The options used to compress the responses.
+   * For example,
+   * <pre>
+   *   app.compression(CompressionOptions.of().withThreshold(512));
+   * </pre>
+   *
+   * @param threshold the minimal size in bytes of a body to be compressed
+   * @param level the level of compression, from 0 to 9 or -1 for the default level
+   * @see #compression(CompressionOptions)
+   */
+  public record CompressionOptions(int threshold, int level) {
+    /**
+     * Creates compression options.
+     * @throws IllegalArgumentException if the threshold is negative or the level is not valid
+     */
+    public CompressionOptions {
+      if (threshold < 0) {
+        throw new IllegalArgumentException("threshold < 0");
+      }
+      if (level < -1 || level > 9) {
+        throw new IllegalArgumentException("level not in [-1, 9]");
+      }
+    }
+
+    /**
+     * Returns the default options, the bodies of at least 1 KB are compressed
+     * with the default level.
+     * @return the default options.
+     */
+    public static CompressionOptions of() {
+      return new CompressionOptions(1_024, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Returns new options with a different threshold.
+     * @param threshold the minimal size in bytes of a body to be compressed
+     * @return new options with a different threshold.
+     */
+    public CompressionOptions withThreshold(int threshold) {
+      return new CompressionOptions(threshold, level);
+    }
+
+    /**
+     * Returns new options with a different level.
+     * @param level the level of compression, from 0 to 9 or -1 for the default level
+     * @return new options with a different level.
+     */
+    public CompressionOptions withLevel(int level) {
+      return new CompressionOptions(threshold, level);
+    }
+  }
+
+  /**
+   * The options used to secure a server with TLS.
+   * For example,
+   * <pre>
+   *   app.listenSecure(ServerOptions.of(8443), TlsOptions.of(sslContext).withSessionCacheSize(100_000));
+   * </pre>
+   *
+   * The sessions are resumed with the stateless session tickets of the JDK (TLS 1.3 and TLS 1.2),
+   * enabled by default with the system property {@code jdk.tls.server.enableSessionTicketExtension},
+   * the session cache is used to resume the sessions of the clients that do not support the tickets.
+   *
+   * @param sslContext the SSL context holding the certificate and the private key of the server
+   * @param sessionCacheSize the maximum number of sessions kept by the server or 0 for no limit
+   * @param sessionTimeout the time a session can be resumed or 0 for no limit
+   * @see #listenSecure(ServerOptions, TlsOptions)
+   */
+  public record TlsOptions(SSLContext sslContext, int sessionCacheSize, Duration sessionTimeout) {
+    /**
+     * Creates TLS options.
+     * @throws IllegalArgumentException if the session cache size or the session timeout is negative
+     */
+    public TlsOptions {
+      Objects.requireNonNull(sslContext);
+      Objects.requireNonNull(sessionTimeout);
+      if (sessionCacheSize < 0) {
+        throw new IllegalArgumentException("sessionCacheSize < 0");
+      }
+      if (sessionTimeout.isNegative()) {
+        throw new IllegalArgumentException("sessionTimeout < 0");
+      }
+    }
+
+    /**
+     * Returns the default options for an SSL context, the server keeps 20 480 sessions
+     * that can be resumed during 24 hours.
+     * @param sslContext the SSL context holding the certificate and the private key of the server
+     * @return the default options for an SSL context.
+     */
+    public static TlsOptions of(SSLContext sslContext) {
+      return new TlsOptions(sslContext, 20_480, Duration.ofHours(24));
+    }
+
+    /**
+     * Returns new options with a different session cache size.
+     * @param sessionCacheSize the maximum number of sessions kept by the server or 0 for no limit
+     * @return new options with a different session cache size.
+     */
+    public TlsOptions withSessionCacheSize(int sessionCacheSize) {
+      return new TlsOptions(sslContext, sessionCacheSize, sessionTimeout);
+    }
+
+    /**
+     * Returns new options with a different session timeout.
+     * @param sessionTimeout the time a session can be resumed or 0 for no limit
+     * @return new options with a different session timeout.
+     */
+    public TlsOptions withSessionTimeout(Duration sessionTimeout) {
+      return new TlsOptions(sslContext, sessionCacheSize, sessionTimeout);
+    }
+  }
+
+  /**
+   * A server instance
+   */
+  interface Server extends AutoCloseable {
+    /**
+     * Close the server
+     */
+    void close();
+  }
+
+  // HTTP methods are parsed once per request, OTHER is used for the unknown methods
+  private enum HttpMethod {
+    GET, HEAD, POST, PUT, DELETE, CONNECT, OPTIONS, TRACE, PATCH, OTHER;
+
+    private static final HttpMethod[] VALUES = values();
+
+    private static HttpMethod of(String name) {
+      return switch (name) {
+        case "GET" -> GET;
+        case "HEAD" -> HEAD;
+        case "POST" -> POST;
+        case "PUT" -> PUT;
+        case "DELETE" -> DELETE;
+        case "CONNECT" -> CONNECT;
+        case "OPTIONS" -> OPTIONS;
+        case "TRACE" -> TRACE;
+        case "PATCH" -> PATCH;
+        default -> {
+          var upperCase = name.toUpperCase(Locale.ROOT);
+          yield upperCase.equals(name)? OTHER: of(upperCase);
+        }
+      };
+    }
+  }
+
+  // A view of the segments of a path with the same semantics as path.split("/"),
+  // the bounds of the segments are computed on first access and a segment is only
+  // materialized as a String when asked.
+  private static final class PathView {
+    private final String path;
+    private int[] bounds;  // start and end of each segment
+    private int count;
+
+    private PathView(String path) {
+      this.path = path;
+    }
+
+    private void split() {
+      var bounds = new int[16];
+      var count = 0;
+      var start = 0;
+      for(var end = path.indexOf('/'); end != -1; end = path.indexOf('/', start)) {
+        if (count * 2 == bounds.length) {
+          bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        bounds[count * 2] = start;
+        bounds[count * 2 + 1] = end;
+        count++;
+        start = end + 1;
+      }
+      if (count == 0) {  // no separator, like split(), the segment is the whole path
+        this.bounds = new int[] { 0, path.length() };
+        this.count = 1;
+        return;
+      }
+      if (count * 2 == bounds.length) {
+        bounds = Arrays.copyOf(bounds, bounds.length + 2);
+      }
+      bounds[count * 2] = start;
+      bounds[count * 2 + 1] = path.length();
+      count++;
+      // like split(), remove the trailing empty segments
+      while(count > 0 && bounds[count * 2 - 2] == bounds[count * 2 - 1]) {
+        count--;
+      }
+      this.bounds = bounds;
+      this.count = count;
+    }
+
+    private int count() {
+      if (bounds == null) {
+        split();
+      }
+      return count;
+    }
+
+    private int start(int index) {
+      return bounds[index * 2];
+    }
+
+    private int length(int index) {
+      return bounds[index * 2 + 1] - bounds[index * 2];
+    }
+
+    // same value as segment(index).hashCode()
+    private int hash(int index) {
+      var hash = 0;
+      for(int i = start(index), end = bounds[index * 2 + 1]; i < end; i++) {
+        hash = 31 * hash + path.charAt(i);
+      }
+      return hash;
+    }
+
+    private boolean segmentEquals(int index, String segment) {
+      var length = length(index);
+      return segment.length() == length && path.regionMatches(start(index), segment, 0, length);
+    }
+
+    private String segment(int index) {
+      var start = start(index);
+      return path.substring(start, start + length(index));
+    }
+  }
+
+  private static final class RequestImpl implements Request {
+    private final HttpExchange exchange;
+    private final PathView pathView;
+    private final HttpMethod httpMethod;
+    private Route route;  // the route currently called, null if none
+
+    private RequestImpl(HttpExchange exchange, PathView pathView, HttpMethod httpMethod) {
+      this.exchange = exchange;
+      this.pathView = pathView;
+      this.httpMethod = httpMethod;
+    }
+
+    @Override
+    public String method() {
+      if (httpMethod == HttpMethod.OTHER) {
+        return exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+      }
+      return httpMethod.name();
+    }
+
+    @Override
+    public String path() {
+      return pathView.path;
+    }
+
+    @Override
+    public String get(String header) {
+      return exchange.getRequestHeaders().getFirst(header);
+    }
+
+    @Override
+    public String param(String name) {
+      if (route == null) {
+        return "";
+      }
+      var slot = route.slot(name);
+      if (slot == -1) {
+        return "";
+      }
+      return pathView.segment(route.paramIndexes[slot]);
+    }
+
+    @Override
+    public String param(int index) {
+      var paramIndexes = route == null? NO_PARAM_INDEXES: route.paramIndexes;
+      Objects.checkIndex(index, paramIndexes.length);
+      return pathView.segment(paramIndexes[index]);
+    }
+
+    @Override
+    public InputStream bodyStream() {
+      return exchange.getRequestBody();
+    }
+
+    private InputStream bodyJSON() {
+      if (!"application/json".equals(get("Content-Type"))) {
+        throw new IllegalStateException("Content-Type is not 'application/json'");
+      }
+      return bodyStream();
+    }
+
+    // the name of the JSON type of a value returned by the JSON parser
+    private static String jsonType(Object value) {
+      if (value == null) {
+        return "null";
+      }
+      if (value instanceof Map<?, ?>) {
+        return "an object";
+      }
+      if (value instanceof List<?>) {
+        return "an array";
+      }
+      if (value instanceof String) {
+        return "a string";
+      }
+      return value instanceof Boolean? "a boolean": "a number";
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> bodyObject() throws IOException {
+      try (var in = bodyJSON()) {
+        var value = JSONParser.parse(in);
+        if (!(value instanceof Map<?, ?>)) {
+          throw new IllegalStateException("expect a JSON object but found " + jsonType(value));
+        }
+        return (Map<String, Object>) value;
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Object> bodyArray() throws IOException {
+      try (var in = bodyJSON()) {
+        var value = JSONParser.parse(in);
+        if (!(value instanceof List<?>)) {
+          throw new IllegalStateException("expect a JSON array but found " + jsonType(value));
+        }
+        return (List<Object>) value;
+      }
+    }
+
+    @Override
+    public <T extends Record> T body(Class<T> type) throws IOException {
+      try (var in = bodyJSON()) {
+        return JSONParser.parse(in, type);
+      }
+    }
+
+    @Override
+    public <T extends Record> List<T> bodyList(Class<T> type) throws IOException {
+      try (var in = bodyJSON()) {
+        return JSONParser.parseList(in, type);
+      }
+    }
+
+    @Override
+    public String bodyText() throws IOException {
+      try (var in = bodyStream()) {
+        return new String(in.readAllBytes(), UTF_8);
+      }
+    }
+  }
+
+  private static final class ResponseImpl implements Response {
+    private final HttpExchange exchange;
+    private final CompressionOptions compression;  // null if the responses are not compressed
+    private final ContentEncoding encoding;  // the encoding accepted by the client or null
+    private int status = 200;
+    private long contentLength = -1;  // the length of the body sent or -1 if unknown
+    private OutputStream body;  // null if the headers are not sent
+
+    private ResponseImpl(HttpExchange exchange, CompressionOptions compression) {
+      this.exchange = exchange;
+      this.compression = compression;
+      this.encoding = compression == null? null:
+          ContentEncoding.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+    }
+
+    @Override
+    public Response status(int status) {
+      this.status = status;
+      return this;
+    }
+
+    @Override
+    public Response append(String field, String value) {
+      exchange.getResponseHeaders().add(field, value);
+      return this;
+    }
+
+    @Override
+    public Response set(String field, String value) {
+      exchange.getResponseHeaders().set(field, value);
+      return this;
+    }
+
+    @Override
+    public Response type(String type) {
+      return set("Content-Type", type);
+    }
+
+    // returns the encoding used to compress a body of a length (-1 if unknown) or null
+    // if the body should not be compressed
+    private ContentEncoding encodingFor(long length) {
+      if (compression == null || !ContentEncoding.isCompressible(exchange.getResponseHeaders().getFirst("Content-Type"))) {
+        return null;
+      }
+      append("Vary", "Accept-Encoding");
+      if (encoding == null || (length != -1 && length < compression.threshold)) {
+        return null;
+      }
+      set("Content-Encoding", encoding.token);
+      return encoding;
+    }
+
+    @Override
+    public void json(Object object) throws IOException {
+      type("application/json", "utf-8");
+      var buffer = BufferPoolImpl.POOL.acquire();
+      try {
+        var printer = new JSONPrettyPrinter(buffer.array, this::writeBody);
+        printer.print(object);
+        printer.close();
+      } finally {
+        BufferPoolImpl.POOL.release(buffer);
+      }
+    }
+
+    // the headers are sent with the content length if the whole body fits in the first buffer,
+    // otherwise the body is sent using the chunked transfer encoding
+    private void writeBody(byte[] buffer, int length, boolean last) throws IOException {
+      if (body == null) {
+        var encoding = encodingFor(last? length: -1);
+        if (encoding != null) {
+          if (last) {
+            sendBytes(encoding.compress(buffer, length, compression.level));
+            return;
+          }
+          exchange.sendResponseHeaders(status, 0);
+          body = encoding.wrap(exchange.getResponseBody(), compression.level);
+        } else {
+          exchange.sendResponseHeaders(status, last? (length == 0? -1: length): 0);
+          body = exchange.getResponseBody();
+          contentLength = 0;
+        }
+      }
+      body.write(buffer, 0, length);
+      if (contentLength != -1) {  // the length of a compressed stream is unknown
+        contentLength += length;
+      }
+      if (last) {
+        body.close();
+      }
+    }
+
+    private void sendBytes(byte[] content) throws IOException {
+      exchange.sendResponseHeaders(status, content.length == 0? -1: content.length);
+      this.contentLength = content.length;
+      try (var output = exchange.getResponseBody()) {
+        output.write(content);
+      }
+    }
+
+    @Override
+    public void json(String json) throws IOException {
+      type("application/json", "utf-8");
+      send(json);
+    }
+
+    @Override
+    public void send(String body) throws IOException {
+      var headers = exchange.getResponseHeaders();
+      if (!headers.containsKey("Content-Type")) {
+        type("text/html", "utf-8");
+      }
+      // the text is encoded by chunks into a pooled buffer
+      var length = utf8Length(body);
+      var encoding = encodingFor(length);
+      var buffer = BufferPoolImpl.POOL.acquire();
+      try {
+        if (encoding != null) {
+          var compressed = new ByteArrayOutputStream(Math.max(64, length >> 2));
+          try (var output = encoding.wrap(compressed, compression.level)) {
+            buffer.encode(body, output);
+          }
+          sendBytes(compressed.toByteArray());
+          return;
+        }
+        exchange.sendResponseHeaders(status, length == 0? -1: length);
+        this.contentLength = length;
+        try (var output = exchange.getResponseBody()) {
+          buffer.encode(body, output);
+        }
+      } finally {
+        BufferPoolImpl.POOL.release(buffer);
+      }
+    }
+
+    // the number of bytes of a text encoded in UTF-8, an unpaired surrogate is replaced by '?'
+    private static int utf8Length(String text) {
+      var length = text.length();
+      var utf8Length = length;
+      for(var i = 0; i < length; i++) {
+        var c = text.charAt(i);
+        if (c < 0x80) {
+          continue;
+        }
+        if (c < 0x800) {
+          utf8Length += 1;
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+          utf8Length += 2;  // 4 bytes for 2 chars
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          utf8Length += 2;
+        }
+      }
+      return utf8Length;
+    }
+
+    @Override
+    public void sendFile(Path path) throws IOException {
+      sendFile(path, FileCache.SHARED);
+    }
+
+    private void sendFile(Path path, FileCache cache) throws IOException {
+      try {
+        var cachedFile = cache.get(path);
+        defaultType(cachedFile.contentType);
+        set("Accept-Ranges", "bytes");
+        var ranges = requestedRanges(cachedFile);  // a range is sent uncompressed
+        var encoding = ranges == null? encodingFor(cachedFile.size): null;
+        var sibling = encoding == null || cachedFile.content != null? null: encoding.sibling(path);
+        var precompressed = FileCache.siblingAttributes(sibling, cachedFile.lastModified) != null;
+        set("Last-Modified", cachedFile.httpDate);
+        set("ETag", cachedFile.etag(encoding, cachedFile.content == null && !precompressed));
+        if (isNotModified(cachedFile)) {
+          exchange.sendResponseHeaders(304, -1);
+          contentLength = 0;
+          return;
+        }
+        if (ranges != null) {
+          sendRanges(path, cachedFile, ranges);
+          return;
+        }
+
+        // small files are served from memory
+        if (cachedFile.content != null) {
+          sendBytes(encoding == null? cachedFile.content: cache.variant(path, cachedFile, encoding, compression.level));
+          return;
+        }
+        if (precompressed) {
+          try {
+            sendChannel(sibling, null);
+            return;
+          } catch (NoSuchFileException e) {
+            // the sibling was removed, compress on the fly
+          }
+        }
+        sendChannel(path, encoding);
+      } catch (FileNotFoundException | NoSuchFileException e) {
+        notFound(e.getMessage());
+      }
+    }
+
+    // send the content of a file, compressed on the fly if the encoding is not null
+    private void sendChannel(Path path, ContentEncoding encoding) throws IOException {
+      try (var channel = FileChannel.open(path)) {
+        var length = channel.size();
+        if (encoding != null) {
+          exchange.sendResponseHeaders(status, 0);
+          try (var output = encoding.wrap(exchange.getResponseBody(), compression.level)) {
+            transfer(channel, 0, length, output);
+          }
+          return;
+        }
+        exchange.sendResponseHeaders(status, length == 0? -1: length);
+        this.contentLength = length;
+        try (var output = exchange.getResponseBody()) {
+          transfer(channel, 0, length, output);
+        }
+      }
+    }
+
+    // returns the ranges of a GET request with a Range header or null if the whole file should be sent,
+    // If-Range must match exactly the strong entity tag or the modification date (RFC 9110 13.1.5)
+    private List<ByteRange> requestedRanges(CachedFile cachedFile) {
+      if (status != 200 || !exchange.getRequestMethod().equals("GET")) {
+        return null;
+      }
+      var headers = exchange.getRequestHeaders();
+      var range = headers.getFirst("Range");
+      if (range == null) {
+        return null;
+      }
+      var ifRange = headers.getFirst("If-Range");
+      if (ifRange != null && !ifRange.equals(cachedFile.etag) && !ifRange.equals(cachedFile.httpDate)) {
+        return null;
+      }
+      return ByteRange.parse(range, cachedFile.size);
+    }
+
+    // send one range or several ranges as multipart/byteranges (RFC 9110 14.6),
+    // the file content is read from memory or using positional reads
+    private void sendRanges(Path path, CachedFile cachedFile, List<ByteRange> ranges) throws IOException {
+      var size = cachedFile.size;
+      if (ranges.isEmpty()) {
+        set("Content-Range", "bytes */" + size);
+        status = 416;
+        exchange.sendResponseHeaders(416, -1);
+        contentLength = 0;
+        return;
+      }
+      status = 206;
+      try (var channel = cachedFile.content == null? FileChannel.open(path): null) {
+        if (ranges.size() == 1) {
+          var range = ranges.get(0);
+          set("Content-Range", range.contentRange(size));
+          exchange.sendResponseHeaders(206, range.length());
+          contentLength = range.length();
+          try (var output = exchange.getResponseBody()) {
+            writeRange(cachedFile, channel, range, output);
+          }
+          return;
+        }
+        var boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        var contentType = exchange.getResponseHeaders().getFirst("Content-Type");
+        var partHeaders = ranges.stream()
+            .map(range -> ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                + "\r\nContent-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(ISO_8859_1))
+            .toArray(byte[][]::new);
+        var end = ("\r\n--" + boundary + "--\r\n").getBytes(ISO_8859_1);
+        var length = (long) end.length;
+        for(var i = 0; i < partHeaders.length; i++) {
+          length += partHeaders[i].length + ranges.get(i).length();
+        }
+        type("multipart/byteranges; boundary=" + boundary);
+        exchange.sendResponseHeaders(206, length);
+        contentLength = length;
+        try (var output = exchange.getResponseBody()) {
+          for(var i = 0; i < partHeaders.length; i++) {
+            output.write(partHeaders[i]);
+            writeRange(cachedFile, channel, ranges.get(i), output);
+          }
+          output.write(end);
+        }
+      }
+    }
+
+    private static void writeRange(CachedFile cachedFile, FileChannel channel, ByteRange range, OutputStream output) throws IOException {
+      if (channel == null) {
+        output.write(cachedFile.content, (int) range.start, (int) range.length());
+      } else {
+        transfer(channel, range.start, range.length(), output);
+      }
+    }
+
+    // evaluate If-None-Match and If-Modified-Since (RFC 9110 13.1.2 and 13.1.3),
+    // the headers are only considered for a successful GET or HEAD
+    private boolean isNotModified(CachedFile cachedFile) {
+      var method = exchange.getRequestMethod();
+      if (status != 200 || !(method.equals("GET") || method.equals("HEAD"))) {
+        return false;
+      }
+      var headers = exchange.getRequestHeaders();
+      var ifNoneMatch = headers.getFirst("If-None-Match");
+      if (ifNoneMatch != null) {
+        return etagMatches(ifNoneMatch, exchange.getResponseHeaders().getFirst("ETag"));
+      }
+      var ifModifiedSince = headers.getFirst("If-Modified-Since");
+      if (ifModifiedSince != null) {
+        try {
+          var since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+          return cachedFile.lastModified.to(TimeUnit.SECONDS) <= since;
+        } catch (DateTimeParseException e) {
+          return false;
+        }
+      }
+      return false;
+    }
+
+    // weak comparison of entity tags
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+      if (ifNoneMatch.trim().equals("*")) {
+        return true;
+      }
+      var opaqueTag = etag.startsWith("W/")? etag.substring(2): etag;
+      for(var tag: ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if ((tag.startsWith("W/")? tag.substring(2): tag).equals(opaqueTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void notFound(String path) throws IOException {
+      var message = "Not Found " + path;
+      //System.err.println(message);
+      status(404).send("<html><h2>" + message + "</h2></html>");
+    }
+
+    private void defaultType(String contentType) {
+      if (exchange.getResponseHeaders().containsKey("Content-Type")) {
+        return;
+      }
+      if (contentType.startsWith("text/")) {
+        type(contentType, "utf-8");
+      } else {
+        type(contentType);
+      }
+    }
+
+    // if the output is the body of a NIO exchange, the bytes are transferred by the kernel,
+    // otherwise they are copied using positional reads
+    private static void transfer(FileChannel channel, long position, long count, OutputStream output) throws IOException {
+      if (output instanceof NioOutput nioOutput && nioOutput.transferFrom(channel, position, count)) {
+        return;
+      }
+      var buffer = BufferPoolImpl.POOL.acquire();
+      try {
+        var byteBuffer = buffer.byteBuffer;
+        while (count > 0) {
+          byteBuffer.clear().limit((int) Math.min(count, byteBuffer.capacity()));
+          var read = channel.read(byteBuffer, position);
+          if (read == -1) {
+            throw new EOFException("file truncated");
+          }
+          output.write(buffer.array, 0, read);
+          position += read;
+          count -= read;
+        }
+      } finally {
+        BufferPoolImpl.POOL.release(buffer);
+      }
+    }
+  }
+
+  // A buffer of the pool, the byte buffer wraps the array, the encoder encodes in UTF-8
+  private record PooledBuffer(byte[] array, ByteBuffer byteBuffer, CharsetEncoder encoder) {
+    private static PooledBuffer allocate(int size) {
+      var array = new byte[size];
+      var encoder = UTF_8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      return new PooledBuffer(array, ByteBuffer.wrap(array), encoder);
+    }
+
+    // encode a text in UTF-8 by chunks of the size of the buffer,
+    // empty chunks are not written because a fixed length stream is closed once complete
+    private void encode(String text, OutputStream output) throws IOException {
+      var chars = CharBuffer.wrap(text);
+      encoder.reset();
+      for(;;) {
+        byteBuffer.clear();
+        var result = encoder.encode(chars, byteBuffer, true);
+        if (byteBuffer.position() != 0) {
+          output.write(array, 0, byteBuffer.position());
+        }
+        if (result.isUnderflow()) {
+          break;
+        }
+      }
+      byteBuffer.clear();
+      encoder.flush(byteBuffer);
+      if (byteBuffer.position() != 0) {
+        output.write(array, 0, byteBuffer.position());
+      }
+    }
+  }
+
+  // A lock-free pool of buffers, each slot contains a buffer or null, a thread starts
+  // to look for a buffer (or a free slot) at a random slot to limit the contention
+  private static final class BufferPoolImpl implements BufferPool {
+    private static final BufferPoolImpl POOL = new BufferPoolImpl(8192, 64);
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<PooledBuffer> slots;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private BufferPoolImpl(int bufferSize, int capacity) {
+      this.bufferSize = bufferSize;
+      this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    @Override
+    public int bufferSize() {
+      return bufferSize;
+    }
+
+    @Override
+    public long hits() {
+      return hits.sum();
+    }
+
+    @Override
+    public long misses() {
+      return misses.sum();
+    }
+
+    private PooledBuffer acquire() {
+      var length = slots.length();
+      var start = ThreadLocalRandom.current().nextInt(length);
+      for(var i = 0; i < length; i++) {
+        var index = (start + i) % length;
+        var buffer = slots.get(index);
+        if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+          hits.increment();
+          return buffer;
+        }
+      }
+      misses.increment();
+      return PooledBuffer.allocate(bufferSize);
+    }
+
+    private void release(PooledBuffer buffer) {
+      var length = slots.length();
+      var start = ThreadLocalRandom.current().nextInt(length);
+      for(var i = 0; i < length; i++) {
+        var index = (start + i) % length;
+        if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+          return;
+        }
+      }
+      // the pool is full, the buffer is garbage collected
+    }
+  }
+
+  // The content encodings supported to compress the responses
+  private enum ContentEncoding {
+    GZIP("gzip", ".gz"), DEFLATE("deflate", null);
+
+    private final String token;
+    private final String siblingExtension;  // extension of a precompressed file or null
+
+    ContentEncoding(String token, String siblingExtension) {
+      this.token = token;
+      this.siblingExtension = siblingExtension;
+    }
+
+    // returns the preferred encoding of an Accept-Encoding header or null
+    private static ContentEncoding negotiate(String acceptEncoding) {
+      if (acceptEncoding == null) {
+        return null;
+      }
+      var gzip = -1.0;
+      var deflate = -1.0;
+      var any = -1.0;
+      for(var coding: acceptEncoding.split(",")) {
+        var parameters = coding.split(";");
+        var name = parameters[0].trim().toLowerCase(Locale.ROOT);
+        var quality = 1.0;
+        for(var i = 1; i < parameters.length; i++) {
+          var parameter = parameters[i].trim();
+          if (parameter.startsWith("q=")) {
+            try {
+              quality = Double.parseDouble(parameter.substring(2));
+            } catch (NumberFormatException e) {
+              quality = 0;
+            }
+          }
+        }
+        switch (name) {
+          case "gzip", "x-gzip" -> gzip = quality;
+          case "deflate" -> deflate = quality;
+          case "*" -> any = quality;
+          default -> {}
+        }
+      }
+      gzip = gzip == -1? any: gzip;
+      deflate = deflate == -1? any: deflate;
+      if (gzip > 0 && gzip >= deflate) {
+        return GZIP;
+      }
+      return deflate > 0? DEFLATE: null;
+    }
+
+    private static boolean isCompressible(String contentType) {
+      if (contentType == null) {
+        return false;
+      }
+      var end = contentType.indexOf(';');
+      var mediaType = (end == -1? contentType: contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+      return mediaType.startsWith("text/")
+          || mediaType.endsWith("+json") || mediaType.endsWith("+xml")
+          || switch (mediaType) {
+            case "application/json", "application/javascript", "application/xml", "image/svg+xml" -> true;
+            default -> false;
+          };
+    }
+
+    private Path sibling(Path path) {
+      return siblingExtension == null? null: path.resolveSibling(path.getFileName() + siblingExtension);
+    }
+
+    // returns the file a sibling file is the precompressed version of or null
+    private static Path source(Path sibling) {
+      var name = sibling.getFileName().toString();
+      for(var encoding: values()) {
+        var extension = encoding.siblingExtension;
+        if (extension != null && name.length() > extension.length() && name.endsWith(extension)) {
+          return sibling.resolveSibling(name.substring(0, name.length() - extension.length()));
+        }
+      }
+      return null;
+    }
+
+    // the deflater is released when the stream is closed
+    private DeflaterOutputStream wrap(OutputStream output, int level) throws IOException {
+      return switch (this) {
+        case GZIP -> new GZIPOutputStream(output, 8192) {{
+          def.setLevel(level);
+        }};
+        case DEFLATE -> new DeflaterOutputStream(output, new Deflater(level), 8192) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              def.end();
+            }
+          }
+        };
+      };
+    }
+
+    private byte[] compress(byte[] content, int length, int level) throws IOException {
+      var output = new ByteArrayOutputStream(Math.max(64, length >> 2));
+      try (var compressed = wrap(output, level)) {
+        compressed.write(content, 0, length);
+      }
+      return output.toByteArray();
+    }
+  }
+
+  // A range of bytes of a file, start and end are inclusive
+  private record ByteRange(long start, long end) {
+    private static final int MAX_RANGES = 32;
+
+    private long length() {
+      return end - start + 1;
+    }
+
+    private String contentRange(long size) {
+      return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    // parse a Range header (RFC 9110 14.1.2), returns null if the header is not valid or asks
+    // for too many ranges, an empty list if no range is satisfiable,
+    // otherwise the satisfiable ranges sorted and coalesced
+    private static List<ByteRange> parse(String header, long size) {
+      if (!header.startsWith("bytes=")) {
+        return null;
+      }
+      var specs = header.substring(6).split(",");
+      if (specs.length > MAX_RANGES) {
+        return null;
+      }
+      var ranges = new ArrayList<ByteRange>();
+      for(var spec: specs) {
+        spec = spec.trim();
+        var dash = spec.indexOf('-');
+        if (dash == -1) {
+          return null;
+        }
+        long start, end;
+        try {
+          if (dash == 0) {  // suffix range
+            var suffix = Long.parseLong(spec.substring(1));
+            if (suffix == 0) {
+              continue;
+            }
+            start = Math.max(0, size - suffix);
+            end = size - 1;
+          } else {
+            start = Long.parseLong(spec.substring(0, dash));
+            var last = dash == spec.length() - 1? Long.MAX_VALUE: Long.parseLong(spec.substring(dash + 1));
+            if (last < start) {
+              return null;
+            }
+            end = Math.min(size - 1, last);
+          }
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        if (start < 0) {
+          return null;
+        }
+        if (start < size) {
+          ranges.add(new ByteRange(start, end));
+        }
+      }
+      ranges.sort(Comparator.comparingLong(ByteRange::start));
+      var coalesced = new ArrayList<ByteRange>();
+      for(var range: ranges) {
+        var last = coalesced.isEmpty()? null: coalesced.get(coalesced.size() - 1);
+        if (last != null && range.start <= last.end + 1) {
+          coalesced.set(coalesced.size() - 1, new ByteRange(last.start, Math.max(last.end, range.end)));
+        } else {
+          coalesced.add(range);
+        }
+      }
+      return coalesced;
+    }
+  }
+
+  // A version of a file, its metadata and, if the file is small, its content read in memory,
+  // checked is the time (System.nanoTime) of the last check of the file system,
+  // the compressed variants are computed on demand, the gzip variant may be read from a precompressed sibling file
+  private static final class CachedFile {
+    private static final int METADATA_WEIGHT = 256;  // rough size of an entry without content
+
+    private final byte[] content;  // null if the file is too big
+    private final long size;
+    private final String contentType;
+    private final FileTime lastModified;
+    private final String httpDate;  // lastModified as an HTTP date
+    private final String etag;
+    private volatile long checked;
+    private volatile byte[] gzip;
+    private volatile BasicFileAttributes gzipSibling;  // the sibling file the gzip variant was read from or null
+    private volatile byte[] deflate;
+
+    private CachedFile(byte[] content, long size, String contentType, FileTime lastModified, long checked) {
+      this.content = content;
+      this.size = size;
+      this.contentType = contentType;
+      this.lastModified = lastModified;
+      this.httpDate = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+          lastModified.toInstant().truncatedTo(ChronoUnit.SECONDS).atZone(ZoneOffset.UTC));
+      this.etag = "\"" + Long.toHexString(lastModified.to(TimeUnit.MICROSECONDS)) + "-" + Long.toHexString(size) + "\"";
+      this.checked = checked;
+    }
+
+    // the entity tag of the representation, compressed on the fly representations are only weakly equivalent
+    private String etag(ContentEncoding encoding, boolean weak) {
+      if (encoding == null) {
+        return etag;
+      }
+      var tag = etag.substring(0, etag.length() - 1) + "-" + encoding.token + "\"";
+      return weak? "W/" + tag: tag;
+    }
+
+    private byte[] variant(ContentEncoding encoding) {
+      return switch (encoding) {
+        case GZIP -> gzip;
+        case DEFLATE -> deflate;
+      };
+    }
+
+    private void variant(ContentEncoding encoding, byte[] variant, BasicFileAttributes sibling) {
+      switch (encoding) {
+        case GZIP -> {
+          gzipSibling = sibling;  // written before the variant
+          gzip = variant;
+        }
+        case DEFLATE -> deflate = variant;
+      }
+    }
+
+    // true if the precompressed sibling file has been created, changed or removed since the gzip variant was computed
+    private boolean siblingChanged(Path path) throws IOException {
+      if (gzip == null) {
+        return false;
+      }
+      var used = gzipSibling;
+      var sibling = FileCache.siblingAttributes(ContentEncoding.GZIP.sibling(path), lastModified);
+      if (sibling == null || used == null) {
+        return sibling != used;
+      }
+      return !sibling.lastModifiedTime().equals(used.lastModifiedTime()) || sibling.size() != used.size();
+    }
+
+    // the number of bytes kept in memory
+    private long weight() {
+      var gzip = this.gzip;
+      var deflate = this.deflate;
+      return (content == null? METADATA_WEIGHT: content.length)
+          + (gzip == null? 0: gzip.length) + (deflate == null? 0: deflate.length);
+    }
+  }
+
+  // A cache of the metadata of the files and the content of the small files, bounded by a budget in bytes,
+  // the least recently used files are evicted first. An entry is checked against the file system at most once per period,
+  // so repeated hits to the same file skip the file system.
+  // If the cache is watched, the entries are never checked but invalidated by the watcher,
+  // a load is only stored if the watcher has not seen its file change since the load started.
+  // The cache of Response.sendFile() has a period of 0, the size and the modification date are checked
+  // at each call and only the content is reused.
+  private static final class FileCache {
+    private static final long CHECK_PERIOD = Duration.ofSeconds(1).toNanos();
+    private static final FileCache SHARED = new FileCache(16 * 1024 * 1024, 64 * 1024, 0, false);
+
+    private final long budget;
+    private final long maxFileSize;
+    private final long period;
+    private final FileWatcher watcher;  // null if not watched
+    private final LinkedHashMap<Path, CachedFile> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Path, Object> loads = new HashMap<>();  // the token of the last load of each file
+    private long size;
+
+    private FileCache(long budget, long maxFileSize, boolean watch) {
+      this(budget, maxFileSize, watch? Long.MAX_VALUE: CHECK_PERIOD, watch);
+    }
+
+    private FileCache(long budget, long maxFileSize, long period, boolean watch) {
+      this.budget = budget;
+      this.maxFileSize = maxFileSize;
+      this.period = period;
+      this.watcher = watch? FileWatcher.start(this): null;
+    }
+
+    private static String contentType(Path path) throws IOException {
+      var contentType = Files.probeContentType(path);
+      return contentType == null? "application/octet-stream": contentType;
+    }
+
+    private CachedFile get(Path path) throws IOException {
+      var now = System.nanoTime();
+      CachedFile cachedFile;
+      synchronized (this) {
+        cachedFile = map.get(path);
+      }
+      if (cachedFile != null && now - cachedFile.checked < period) {
+        return cachedFile;
+      }
+      var token = new Object();
+      synchronized (this) {
+        loads.put(path, token);
+      }
+      try {
+        if (watcher != null) {  // register before reading, a change after that point drops the token
+          watcher.register(path.getParent());
+        }
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+          throw new NoSuchFileException(path.toString());
+        }
+        if (cachedFile != null
+            && cachedFile.lastModified.equals(attributes.lastModifiedTime())
+            && cachedFile.size == attributes.size()
+            && !cachedFile.siblingChanged(path)) {
+          cachedFile.checked = now;
+          return cachedFile;
+        }
+        var content = attributes.size() > maxFileSize? null: Files.readAllBytes(path);
+        var size = content == null? attributes.size(): content.length;
+        cachedFile = new CachedFile(content, size, contentType(path), attributes.lastModifiedTime(), now);
+        put(path, cachedFile, token);
+        return cachedFile;
+      } finally {
+        synchronized (this) {
+          loads.remove(path, token);
+        }
+      }
+    }
+
+    // returns the attributes of a precompressed sibling file if it is a regular file
+    // not older than the file it is the precompressed version of, null otherwise
+    private static BasicFileAttributes siblingAttributes(Path sibling, FileTime lastModified) throws IOException {
+      if (sibling == null) {
+        return null;
+      }
+      try {
+        var attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+        return attributes.isRegularFile() && attributes.lastModifiedTime().compareTo(lastModified) >= 0? attributes: null;
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+    }
+
+    // returns the compressed content of a cached file, an up to date precompressed sibling file is used if it exists
+    private byte[] variant(Path path, CachedFile cachedFile, ContentEncoding encoding, int level) throws IOException {
+      var variant = cachedFile.variant(encoding);
+      if (variant != null) {
+        return variant;
+      }
+      var sibling = encoding.sibling(path);
+      var siblingAttributes = siblingAttributes(sibling, cachedFile.lastModified);
+      if (siblingAttributes != null) {
+        try {
+          variant = Files.readAllBytes(sibling);
+        } catch (NoSuchFileException e) {
+          siblingAttributes = null;  // removed concurrently
+        }
+      }
+      if (variant == null) {
+        variant = encoding.compress(cachedFile.content, cachedFile.content.length, level);
+      }
+      synchronized (this) {
+        if (cachedFile.variant(encoding) != null) {  // computed concurrently
+          return cachedFile.variant(encoding);
+        }
+        cachedFile.variant(encoding, variant, siblingAttributes);
+        if (map.get(path) == cachedFile) {
+          size += variant.length;
+          evict();
+        }
+      }
+      return variant;
+    }
+
+    // the file is not stored if it has changed or if a more recent load is in progress
+    private synchronized void put(Path path, CachedFile cachedFile, Object token) {
+      if (loads.get(path) != token) {
+        return;
+      }
+      var old = map.put(path, cachedFile);
+      size += cachedFile.weight() - (old == null? 0: old.weight());
+      evict();
+    }
+
+    private void evict() {
+      for(var iterator = map.values().iterator(); size > budget && iterator.hasNext();) {
+        size -= iterator.next().weight();
+        iterator.remove();
+      }
+    }
+
+    // a change of a precompressed sibling file also invalidates the file it is the precompressed version of
+    private synchronized void remove(Path path) {
+      loads.remove(path);
+      var old = map.remove(path);
+      if (old != null) {
+        size -= old.weight();
+      }
+      var source = ContentEncoding.source(path);
+      if (source != null) {
+        remove(source);
+      }
+    }
+
+    private synchronized void clear() {
+      loads.clear();
+      map.clear();
+      size = 0;
+    }
+  }
+
+  // Invalidates the entries of a file cache when the files change on disk, the directory of a file
+  // is registered when the file is cached. The watcher only weakly references the cache,
+  // its thread stops once the cache is not reachable anymore.
+  private static final class FileWatcher {
+    private final WatchService watchService;
+    private final ConcurrentHashMap<Path, WatchKey> keys = new ConcurrentHashMap<>();
+
+    private FileWatcher(WatchService watchService) {
+      this.watchService = watchService;
+    }
+
+    private static FileWatcher start(FileCache cache) {
+      WatchService watchService;
+      try {
+        watchService = FileSystems.getDefault().newWatchService();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var watcher = new FileWatcher(watchService);
+      var cacheRef = new WeakReference<>(cache);
+      var thread = new Thread(() -> watcher.loop(cacheRef), "jexpress-file-watcher");
+      thread.setDaemon(true);
+      thread.start();
+      return watcher;
+    }
+
+    private void register(Path directory) throws IOException {
+      try {
+        keys.computeIfAbsent(directory, __ -> {
+          try {
+            return directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+
+    private void loop(WeakReference<FileCache> cacheRef) {
+      try (watchService) {
+        for(;;) {
+          var key = watchService.poll(1, TimeUnit.SECONDS);
+          var cache = cacheRef.get();
+          if (cache == null) {
+            return;
+          }
+          if (key == null) {
+            continue;
+          }
+          var directory = (Path) key.watchable();
+          for(var event: key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+              cache.clear();
+            } else {
+              cache.remove(directory.resolve((Path) event.context()));
+            }
+          }
+          if (!key.reset()) {
+            keys.remove(directory);
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException | IOException e) {
+        // stop watching
+      }
+    }
+  }
+
+  private static final int[] NO_PARAM_INDEXES = new int[0];
+
+  // method is null if the route matches all HTTP methods,
+  // the parameter names are resolved at registration time to the index of their path segment
+  private record Route(int order, HttpMethod method, String[] parts, String[] paramNames, int[] paramIndexes, Handler handler) {
+    private static Route of(int order, HttpMethod method, String path, Handler handler) {
+      var parts = path.split("/");
+      var paramNames = new ArrayList<String>();
+      var paramIndexes = new ArrayList<Integer>();
+      for(var i = 0; i < parts.length; i++) {
+        var part = parts[i];
+        if (part.startsWith(":")) {
+          paramNames.add(part.substring(1));
+          paramIndexes.add(i);
+        }
+      }
+      return new Route(order, method, parts, paramNames.toArray(String[]::new),
+          paramIndexes.stream().mapToInt(index -> index).toArray(), handler);
+    }
+
+    private int slot(String name) {
+      for(var i = 0; i < paramNames.length; i++) {
+        if (paramNames[i].equals(name)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  // A mutable trie of routes, one level per path segment, each node has one child per static segment
+  // and at most one child for all the ':param' segments.
+  private static final class RouteTrie {
+    private final HashMap<String, RouteTrie> children = new HashMap<>();
+    private RouteTrie paramChild;
+    private final ArrayList<Route> routes = new ArrayList<>();
+
+    private void add(Route route) {
+      var node = this;
+      for(var part: route.parts) {
+        if (part.startsWith(":")) {
+          if (node.paramChild == null) {
+            node.paramChild = new RouteTrie();
+          }
+          node = node.paramChild;
+        } else {
+          node = node.children.computeIfAbsent(part, __ -> new RouteTrie());
+        }
+      }
+      node.routes.add(route);
+    }
+
+    private RouteNode freeze() {
+      var frozenChildren = new HashMap<String, RouteNode>();
+      children.forEach((part, child) -> frozenChildren.put(part, child.freeze()));
+      var childTable = ChildTable.of(frozenChildren);
+      var routesByMethod = new Route[HttpMethod.VALUES.length][];
+      for(var method: HttpMethod.VALUES) {
+        routesByMethod[method.ordinal()] = routes.stream()
+            .filter(route -> route.method == null || route.method == method)
+            .toArray(Route[]::new);
+      }
+      var allowedMethods = EnumSet.noneOf(HttpMethod.class);
+      routes.stream().map(Route::method).filter(Objects::nonNull).forEach(allowedMethods::add);
+      return new RouteNode(childTable,
+          paramChild == null? null: paramChild.freeze(),
+          routesByMethod, allowedMethods);
+    }
+  }
+
+  // An open addressing hash table of the static children of a node,
+  // so a segment of a path can be looked up without being materialized as a String
+  private record ChildTable(String[] keys, RouteNode[] nodes) {
+    private static final ChildTable EMPTY = new ChildTable(new String[0], new RouteNode[0]);
+
+    private static ChildTable of(Map<String, RouteNode> children) {
+      if (children.isEmpty()) {
+        return EMPTY;
+      }
+      var capacity = Integer.highestOneBit(children.size()) << 2;
+      var keys = new String[capacity];
+      var nodes = new RouteNode[capacity];
+      children.forEach((key, node) -> {
+        var index = key.hashCode() & (capacity - 1);
+        while(keys[index] != null) {
+          index = (index + 1) & (capacity - 1);
+        }
+        keys[index] = key;
+        nodes[index] = node;
+      });
+      return new ChildTable(keys, nodes);
+    }
+
+    private boolean isEmpty() {
+      return keys.length == 0;
+    }
+
+    private RouteNode get(PathView pathView, int segment) {
+      if (keys.length == 0) {
+        return null;
+      }
+      var mask = keys.length - 1;
+      for(var index = pathView.hash(segment) & mask;; index = (index + 1) & mask) {
+        var key = keys[index];
+        if (key == null) {
+          return null;
+        }
+        if (pathView.segmentEquals(segment, key)) {
+          return nodes[index];
+        }
+      }
+    }
+  }
+
+  // An immutable node of the route trie, as a route matches any path that starts with its segments,
+  // all the routes along the path of the request are collected.
+  // The routes of a node are indexed by HTTP method, the routes registered with use() being in all the buckets.
+  private record RouteNode(ChildTable children, RouteNode paramChild, Route[][] routesByMethod, Set<HttpMethod> allowedMethods) {
+    private void collect(PathView pathView, int depth, HttpMethod method, ArrayList<Route> matches) {
+      matches.addAll(Arrays.asList(routesByMethod[method.ordinal()]));
+      // a leaf never needs the path to be split
+      if ((children.isEmpty() && paramChild == null) || depth == pathView.count()) {
+        return;
+      }
+      var child = children.get(pathView, depth);
+      if (child != null) {
+        child.collect(pathView, depth + 1, method, matches);
+      }
+      if (paramChild != null) {
+        paramChild.collect(pathView, depth + 1, method, matches);
+      }
+    }
+
+    private void collectAllowedMethods(PathView pathView, int depth, Set<HttpMethod> methods) {
+      methods.addAll(allowedMethods);
+      if ((children.isEmpty() && paramChild == null) || depth == pathView.count()) {
+        return;
+      }
+      var child = children.get(pathView, depth);
+      if (child != null) {
+        child.collectAllowedMethods(pathView, depth + 1, methods);
+      }
+      if (paramChild != null) {
+        paramChild.collectAllowedMethods(pathView, depth + 1, methods);
+      }
+    }
+  }
+
+  private record Router(RouteNode root) implements Pipeline {
+    // the last registered route is called first
+    private static final Comparator<Route> ROUTE_ORDER = Comparator.comparingInt(Route::order).reversed();
+
+    @Override
+    public void accept(RequestImpl request, ResponseImpl response) throws IOException {
+      var matches = new ArrayList<Route>();
+      root.collect(request.pathView, 0, request.httpMethod, matches);
+      matches.sort(ROUTE_ORDER);
+      dispatch(matches, 0, request, response);
+    }
+
+    private void dispatch(List<Route> matches, int index, RequestImpl request, ResponseImpl response) throws IOException {
+      if (index == matches.size()) {
+        noMatch(request, response);
+        return;
+      }
+      var route = matches.get(index);
+      var previousRoute = request.route;
+      request.route = route;
+      try {
+        route.handler.handle(request, response, () -> dispatch(matches, index + 1, request, response));
+      } finally {
+        request.route = previousRoute;
+      }
+    }
+
+    private void noMatch(RequestImpl request, ResponseImpl response) throws IOException {
+      var allowedMethods = EnumSet.noneOf(HttpMethod.class);
+      root.collectAllowedMethods(request.pathView, 0, allowedMethods);
+      if (!allowedMethods.isEmpty()) {
+        var message = "method not allowed " + request.method() + " " + request.path();
+        response.set("Allow", allowedMethods.stream().map(HttpMethod::name).collect(joining(", ")));
+        response.status(405).send("<html><h2>" + message + "</h2></html>");
+        return;
+      }
+      var message = "no match " + request.method() + " " + request.path();
+      response.status(404).send("<html><h2>" + message + "</h2></html>");
+    }
+  }
+
+  private JExpress() {
+    // empty
+  }
+
+  /**
+   * Creates an Express like application.
+   * @return a new Express like application.
+   */
+  public static JExpress express() {
+    return new JExpress();
+  }
+
+  // A single pass recursive descent JSON parser (RFC 8259) that works on the UTF-8 bytes of the text,
+  // either an array or an input stream read incrementally through a bounded buffer.
+  // An object is parsed as a HashMap, an array as an ArrayList, a string as a String,
+  // a number as an Integer, a Long or a Double (if it has a fraction, an exponent or does not fit in a long)
+  // and true/false as a Boolean.
+  /*private*/ static final class JSONParser {
+    private static final int MAX_DEPTH = 1_000;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream input;  // null if the whole text is in the buffer
+    private final byte[] buffer;
+    private int limit;
+    private int position;
+    private long offset;  // number of bytes before the start of the buffer
+    private byte[] scratch = new byte[64];  // used to decode the strings and the numbers
+
+    private JSONParser(InputStream input, byte[] buffer, int limit) {
+      this.input = input;
+      this.buffer = buffer;
+      this.limit = limit;
+    }
+
+    /**
+     * Parse a JSON text.
+     *
+     * @param input a JSON text
+     * @return a Java object corresponding to the text
+     * @throws IllegalStateException if the text is not a valid JSON text
+     */
+    public static Object parse(String input) {
+      return parse(input.getBytes(UTF_8));
+    }
+
+    /**
+     * Parse a JSON text encoded in UTF-8.
+     *
+     * @param input a JSON text encoded in UTF-8
+     * @return a Java object corresponding to the text
+     * @throws IllegalStateException if the text is not a valid JSON text
+     */
+    public static Object parse(byte[] input) {
+      return new JSONParser(null, input, input.length).parse();
+    }
+
+    /**
+     * Parse a JSON text encoded in UTF-8 from an input stream.
+     * The text is parsed while it is read, the input stream is not closed.
+     *
+     * @param input an input stream containing a JSON text encoded in UTF-8
+     * @return a Java object corresponding to the text
+     * @throws IOException if an I/O error occurs.
+     * @throws IllegalStateException if the text is not a valid JSON text
+     */
+    public static Object parse(InputStream input) throws IOException {
+      return parse(input, Binding.ANY);
+    }
+
+    /**
+     * Parse a JSON object encoded in UTF-8 from an input stream into a record.
+     * The input stream is not closed.
+     *
+     * @param input an input stream containing a JSON object encoded in UTF-8
+     * @param type the class of the record
+     * @param <T> the type of the record
+     * @return a record corresponding to the text or null
+     * @throws IOException if an I/O error occurs.
+     * @throws IllegalStateException if the text is not a valid JSON text or does not match the record
+     */
+    public static <T extends Record> T parse(InputStream input, Class<T> type) throws IOException {
+      return type.cast(parse(input, Binding.of(type)));
+    }
+
+    /**
+     * Parse a JSON array of objects encoded in UTF-8 from an input stream into a list of records.
+     * The input stream is not closed.
+     *
+     * @param input an input stream containing a JSON array encoded in UTF-8
+     * @param type the class of the records
+     * @param <T> the type of the records
+     * @return a list of records corresponding to the text or null
+     * @throws IOException if an I/O error occurs.
+     * @throws IllegalStateException if the text is not a valid JSON text or does not match the record
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Record> List<T> parseList(InputStream input, Class<T> type) throws IOException {
+      return (List<T>) parse(input, new Binding(Kind.LIST, List.class, Binding.of(type)));
+    }
+
+    private static Object parse(InputStream input, Binding binding) throws IOException {
+      try {
+        return new JSONParser(input, new byte[BUFFER_SIZE], 0).parse(binding);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+
+    private Object parse() {
+      return parse(Binding.ANY);
+    }
+
+    private Object parse(Binding binding) {
+      var value = parseBinding(binding, next(), 0);
+      var c = next();
+      if (c != -1) {
+        throw error("end of text", c);
+      }
+      return value;
+    }
+
+    private IllegalStateException error(String expected, int c) {
+      var found = c == -1? "end of text": "'" + (char) c + "'";
+      return new IllegalStateException("expect " + expected + " but found " + found + " at " + (offset + position - 1));
+    }
+
+    private IllegalStateException mismatch(String expected, Object found) {
+      return new IllegalStateException("expect " + expected + " but found " + found + " at " + (offset + position));
+    }
+
+    private boolean fill() {
+      if (input == null) {
+        return false;
+      }
+      try {
+        var read = input.read(buffer);
+        if (read == -1) {
+          return false;
+        }
+        offset += limit;
+        position = 0;
+        limit = read;
+        return true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private int read() {
+      if (position == limit && !fill()) {
+        return -1;
+      }
+      return buffer[position++] & 0xFF;
+    }
+
+    // c is the last character read, it is not consumed
+    private void unread(int c) {
+      if (c != -1) {
+        position--;
+      }
+    }
+
+    // returns the next character that is not a white space
+    private int next() {
+      for(;;) {
+        var c = read();
+        if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+          return c;
+        }
+      }
+    }
+
+    private Object parseValue(int c, int depth) {
+      return switch (c) {
+        case '{' -> parseObject(depth + 1);
+        case '[' -> parseArray(depth + 1);
+        case '"' -> parseString();
+        case 't' -> parseLiteral("rue", true);
+        case 'f' -> parseLiteral("alse", false);
+        case 'n' -> parseLiteral("ull", null);
+        case '-', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' -> parseNumber(c);
+        default -> throw error("a value", c);
+      };
+    }
+
+    private Object parseLiteral(String rest, Object value) {
+      for(var i = 0; i < rest.length(); i++) {
+        var c = read();
+        if (c != rest.charAt(i)) {
+          throw error("'" + rest.charAt(i) + "'", c);
+        }
+      }
+      return value;
+    }
+
+    private HashMap<String, Object> parseObject(int depth) {
+      if (depth > MAX_DEPTH) {
+        throw new IllegalStateException("too many nested objects or arrays at " + (offset + position));
+      }
+      var object = new HashMap<String, Object>();
+      var c = next();
+      if (c == '}') {
+        return object;
+      }
+      for(;;) {
+        if (c != '"') {
+          throw error("a string", c);
+        }
+        var key = parseString();
+        c = next();
+        if (c != ':') {
+          throw error("':'", c);
+        }
+        object.put(key, parseValue(next(), depth));
+        c = next();
+        if (c == '}') {
+          return object;
+        }
+        if (c != ',') {
+          throw error("',' or '}'", c);
+        }
+        c = next();
+      }
+    }
+
+    private ArrayList<Object> parseArray(int depth) {
+      if (depth > MAX_DEPTH) {
+        throw new IllegalStateException("too many nested objects or arrays at " + (offset + position));
+      }
+      var array = new ArrayList<>();
+      var c = next();
+      if (c == ']') {
+        return array;
+      }
+      for(;;) {
+        array.add(parseValue(c, depth));
+        c = next();
+        if (c == ']') {
+          return array;
+        }
+        if (c != ',') {
+          throw error("',' or ']'", c);
+        }
+        c = next();
+      }
+    }
+
+    private void append(int length, int b) {
+      if (length == scratch.length) {
+        scratch = Arrays.copyOf(scratch, length << 1);
+      }
+      scratch[length] = (byte) b;
+    }
+
+    private String parseString() {
+      // fast path, no escape sequence
+      var start = position;
+      for(var i = start; i < limit; i++) {
+        var b = buffer[i];
+        if (b == '"') {
+          position = i + 1;
+          return new String(buffer, start, i - start, UTF_8);
+        }
+        if (b == '\\' || (b >= 0 && b < ' ')) {
+          break;
+        }
+      }
+      // slow path, decode in the scratch buffer
+      var length = 0;
+      for(;;) {
+        var c = read();
+        switch (c) {
+          case '"' -> {
+            return new String(scratch, 0, length, UTF_8);
+          }
+          case '\\' -> length = parseEscape(length, read());
+          case -1 -> throw error("'\"'", c);
+          default -> {
+            if (c < ' ') {
+              throw error("a character", c);
+            }
+            append(length++, c);
+          }
+        }
+      }
+    }
+
+    private int parseEscape(int length, int c) {
+      switch (c) {
+        case '"', '\\', '/' -> append(length++, c);
+        case 'b' -> append(length++, '\b');
+        case 'f' -> append(length++, '\f');
+        case 'n' -> append(length++, '\n');
+        case 'r' -> append(length++, '\r');
+        case 't' -> append(length++, '\t');
+        case 'u' -> {
+          var codePoint = parseHex();
+          if (!Character.isHighSurrogate((char) codePoint)) {
+            return appendUTF8(length, Character.isSurrogate((char) codePoint)? '?': codePoint);
+          }
+          // a low surrogate escape should follow
+          var next = read();
+          if (next != '\\') {
+            unread(next);
+            return appendUTF8(length, '?');
+          }
+          next = read();
+          if (next != 'u') {
+            return parseEscape(appendUTF8(length, '?'), next);
+          }
+          var low = parseHex();
+          if (!Character.isLowSurrogate((char) low)) {
+            return appendUTF8(appendUTF8(length, '?'), Character.isSurrogate((char) low)? '?': low);
+          }
+          length = appendUTF8(length, Character.toCodePoint((char) codePoint, (char) low));
+        }
+        default -> throw error("an escape sequence", c);
+      }
+      return length;
+    }
+
+    private int parseHex() {
+      var value = 0;
+      for(var i = 0; i < 4; i++) {
+        var c = read();
+        var digit = Character.digit(c, 16);
+        if (c == -1 || digit == -1) {
+          throw error("an hexadecimal digit", c);
+        }
+        value = value << 4 | digit;
+      }
+      return value;
+    }
+
+    private int appendUTF8(int length, int codePoint) {
+      if (codePoint < 0x80) {
+        append(length++, codePoint);
+      } else if (codePoint < 0x800) {
+        append(length++, 0xC0 | (codePoint >> 6));
+        append(length++, 0x80 | (codePoint & 0x3F));
+      } else if (codePoint < 0x10000) {
+        append(length++, 0xE0 | (codePoint >> 12));
+        append(length++, 0x80 | ((codePoint >> 6) & 0x3F));
+        append(length++, 0x80 | (codePoint & 0x3F));
+      } else {
+        append(length++, 0xF0 | (codePoint >> 18));
+        append(length++, 0x80 | ((codePoint >> 12) & 0x3F));
+        append(length++, 0x80 | ((codePoint >> 6) & 0x3F));
+        append(length++, 0x80 | (codePoint & 0x3F));
+      }
+      return length;
+    }
+
+    // c is the first digit
+    private int parseDigits(int length, int c) {
+      if (c < '0' || c > '9') {
+        throw error("a digit", c);
+      }
+      do {
+        append(length++, c);
+        c = read();
+      } while(c >= '0' && c <= '9');
+      unread(c);
+      return length;
+    }
+
+    // scan the text of a number into the scratch buffer and returns its length
+    private int scanNumber(int c) {
+      var length = 0;
+      var negative = c == '-';
+      if (negative) {
+        append(length++, c);
+        c = read();
+      }
+      if (c == '0') {
+        append(length++, c);
+      } else {
+        length = parseDigits(length, c);
+      }
+      var integral = true;
+      c = read();
+      if (c == '.') {
+        integral = false;
+        append(length++, c);
+        length = parseDigits(length, read());
+        c = read();
+      }
+      if (c == 'e' || c == 'E') {
+        integral = false;
+        append(length++, c);
+        c = read();
+        if (c == '+' || c == '-') {
+          append(length++, c);
+          c = read();
+        }
+        length = parseDigits(length, c);
+        c = read();
+      }
+      unread(c);
+      return integral? length: ~length;
+    }
+
+    // the value of an integral number of at most 18 digits
+    private long smallLong(int length) {
+      var negative = scratch[0] == '-';
+      var value = 0L;
+      for(var i = negative? 1: 0; i < length; i++) {
+        value = value * 10 + (scratch[i] - '0');
+      }
+      return negative? -value: value;
+    }
+
+    private static boolean isSmall(int length, byte first) {
+      return (first == '-'? length - 1: length) <= 18;
+    }
+
+    private Object parseNumber(int c) {
+      var length = scanNumber(c);
+      var integral = length >= 0;
+      length = integral? length: ~length;
+      if (integral && isSmall(length, scratch[0])) {
+        var value = smallLong(length);
+        if (value == (int) value) {
+          return (int) value;
+        }
+        return value;
+      }
+      var text = new String(scratch, 0, length, ISO_8859_1);
+      if (integral) {
+        try {
+          return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+          // too big for a long
+        }
+      }
+      return Double.parseDouble(text);
+    }
+
+    private long parseInteger(int c, long min, long max) {
+      if (c != '-' && (c < '0' || c > '9')) {
+        throw error("an integer", c);
+      }
+      var length = scanNumber(c);
+      if (length < 0) {
+        throw mismatch("an integer", new String(scratch, 0, ~length, ISO_8859_1));
+      }
+      long value;
+      if (isSmall(length, scratch[0])) {
+        value = smallLong(length);
+      } else {
+        try {
+          value = Long.parseLong(new String(scratch, 0, length, ISO_8859_1));
+        } catch (NumberFormatException e) {
+          value = Long.MAX_VALUE;
+          max = Long.MIN_VALUE;  // always out of range
+        }
+      }
+      if (value < min || value > max) {
+        throw mismatch("an integer between " + min + " and " + max, new String(scratch, 0, length, ISO_8859_1));
+      }
+      return value;
+    }
+
+    private double parseDouble(int c) {
+      if (c != '-' && (c < '0' || c > '9')) {
+        throw error("a number", c);
+      }
+      var length = scanNumber(c);
+      if (length >= 0 && isSmall(length, scratch[0])) {
+        return smallLong(length);
+      }
+      length = length >= 0? length: ~length;
+      return Double.parseDouble(new String(scratch, 0, length, ISO_8859_1));
+    }
+
+    private boolean parseBoolean(int c) {
+      return switch (c) {
+        case 't' -> (boolean) parseLiteral("rue", true);
+        case 'f' -> (boolean) parseLiteral("alse", false);
+        default -> throw error("a boolean", c);
+      };
+    }
+
+    // the kind of value expected by a binding
+    private enum Kind { BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, ENUM, RECORD, LIST, VALUE }
+
+    // how to parse a value of a Java type, element is the binding of the elements of a LIST
+    private record Binding(Kind kind, Class<?> type, Binding element) {
+      private static final Binding ANY = new Binding(Kind.VALUE, Object.class, null);
+
+      private static Binding of(Type type) {
+        if (type instanceof Class<?> clazz) {
+          return new Binding(kind(clazz), clazz, null);
+        }
+        if (type instanceof ParameterizedType parameterizedType
+            && parameterizedType.getRawType() instanceof Class<?> raw) {
+          if (raw == List.class || raw == Collection.class || raw == Iterable.class) {
+            return new Binding(Kind.LIST, raw, of(parameterizedType.getActualTypeArguments()[0]));
+          }
+          return new Binding(Kind.VALUE, raw, null);
+        }
+        if (type instanceof WildcardType wildcardType) {
+          return of(wildcardType.getUpperBounds()[0]);
+        }
+        return ANY;
+      }
+
+      private static Kind kind(Class<?> type) {
+        if (type == boolean.class || type == Boolean.class) {
+          return Kind.BOOLEAN;
+        }
+        if (type == byte.class || type == Byte.class) {
+          return Kind.BYTE;
+        }
+        if (type == short.class || type == Short.class) {
+          return Kind.SHORT;
+        }
+        if (type == int.class || type == Integer.class) {
+          return Kind.INT;
+        }
+        if (type == long.class || type == Long.class) {
+          return Kind.LONG;
+        }
+        if (type == float.class || type == Float.class) {
+          return Kind.FLOAT;
+        }
+        if (type == double.class || type == Double.class) {
+          return Kind.DOUBLE;
+        }
+        if (type == String.class) {
+          return Kind.STRING;
+        }
+        if (type.isEnum()) {
+          return Kind.ENUM;
+        }
+        if (type.isRecord()) {
+          return Kind.RECORD;
+        }
+        if (type.isPrimitive()) {
+          throw new IllegalStateException("unsupported type " + type.getName());
+        }
+        return Kind.VALUE;
+      }
+    }
+
+    // a record component, its value is stored at the index slot either in the array of references
+    // or in the array of primitives
+    private record Component(int slot, boolean primitive, Binding binding) {}
+
+    // The deserializer of a record class, the values of the components are collected in an array
+    // of references and an array of primitives (stored as long), the canonical constructor is
+    // a method handle typed (Object[], long[])Object so the primitive values are never boxed
+    private record RecordBinder(Map<String, Component> components, int referenceCount, int primitiveCount, MethodHandle constructor) {
+      private static final ClassValue<RecordBinder> BINDERS = new ClassValue<>() {
+        @Override
+        protected RecordBinder computeValue(Class<?> type) {
+          return RecordBinder.of(type);
+        }
+      };
+
+      private static RecordBinder of(Class<?> type) {
+        var recordComponents = type.getRecordComponents();
+        var components = new HashMap<String, Component>();
+        var types = new Class<?>[recordComponents.length];
+        var filters = new MethodHandle[recordComponents.length];
+        var reorder = new int[recordComponents.length];
+        var referenceCount = 0;
+        var primitiveCount = 0;
+        for(var i = 0; i < recordComponents.length; i++) {
+          var recordComponent = recordComponents[i];
+          var componentType = recordComponent.getType();
+          types[i] = componentType;
+          var binding = Binding.of(recordComponent.getGenericType());
+          if (componentType.isPrimitive()) {
+            var slot = primitiveCount++;
+            components.put(recordComponent.getName(), new Component(slot, true, binding));
+            filters[i] = primitiveGetter(slot, componentType);
+            reorder[i] = 1;
+          } else {
+            var slot = referenceCount++;
+            components.put(recordComponent.getName(), new Component(slot, false, binding));
+            filters[i] = insertArguments(MethodHandles.arrayElementGetter(Object[].class), 1, slot)
+                .asType(methodType(componentType, Object[].class));
+          }
+        }
+        MethodHandle constructor;
+        try {
+          constructor = MethodHandles.lookup().unreflectConstructor(type.getDeclaredConstructor(types));
+        } catch (NoSuchMethodException e) {
+          throw (NoSuchMethodError) new NoSuchMethodError().initCause(e);
+        } catch (IllegalAccessException e) {
+          throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+        }
+        constructor = constructor.asType(constructor.type().changeReturnType(Object.class));
+        constructor = MethodHandles.filterArguments(constructor, 0, filters);
+        constructor = MethodHandles.permuteArguments(constructor, methodType(Object.class, Object[].class, long[].class), reorder);
+        return new RecordBinder(Map.copyOf(components), referenceCount, primitiveCount, constructor);
+      }
+
+      // a method handle typed (long[])type that decodes the primitive value at the index slot
+      private static MethodHandle primitiveGetter(int slot, Class<?> type) {
+        var getter = insertArguments(MethodHandles.arrayElementGetter(long[].class), 1, slot);
+        if (type == double.class || type == float.class) {
+          getter = MethodHandles.filterReturnValue(getter, LONG_BITS_TO_DOUBLE);
+        }
+        return MethodHandles.explicitCastArguments(getter, methodType(type, long[].class));
+      }
+
+      private static final MethodHandle LONG_BITS_TO_DOUBLE;
+      static {
+        try {
+          LONG_BITS_TO_DOUBLE = publicLookup().findStatic(Double.class, "longBitsToDouble", methodType(double.class, long.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      private Object construct(Object[] references, long[] primitives) {
+        try {
+          return (Object) constructor.invokeExact(references, primitives);
+        } catch (RuntimeException | Error e) {
+          throw e;
+        } catch (Throwable e) {
+          throw new UndeclaredThrowableException(e);
+        }
+      }
+    }
+
+    private Object parseBinding(Binding binding, int c, int depth) {
+      if (c == 'n') {
+        return parseLiteral("ull", null);
+      }
+      return switch (binding.kind) {
+        case BOOLEAN -> parseBoolean(c);
+        case BYTE -> (byte) parseInteger(c, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        case SHORT -> (short) parseInteger(c, Short.MIN_VALUE, Short.MAX_VALUE);
+        case INT -> (int) parseInteger(c, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        case LONG -> parseInteger(c, Long.MIN_VALUE, Long.MAX_VALUE);
+        case FLOAT -> (float) parseDouble(c);
+        case DOUBLE -> parseDouble(c);
+        case STRING -> {
+          if (c != '"') {
+            throw error("a string", c);
+          }
+          yield parseString();
+        }
+        case ENUM -> {
+          if (c != '"') {
+            throw error("a string", c);
+          }
+          var name = parseString();
+          var constant = Arrays.stream(binding.type.getEnumConstants())
+              .filter(value -> ((Enum<?>) value).name().equals(name))
+              .findFirst();
+          yield constant.orElseThrow(() -> mismatch("a constant of " + binding.type.getName(), name));
+        }
+        case RECORD -> {
+          if (c != '{') {
+            throw error("'{'", c);
+          }
+          yield parseRecord(RecordBinder.BINDERS.get(binding.type), depth + 1);
+        }
+        case LIST -> {
+          if (c != '[') {
+            throw error("'['", c);
+          }
+          yield parseList(binding.element, depth + 1);
+        }
+        case VALUE -> {
+          var value = parseValue(c, depth);
+          if (!binding.type.isInstance(value)) {
+            throw mismatch("a " + binding.type.getName(), value);
+          }
+          yield value;
+        }
+      };
+    }
+
+    private long parsePrimitive(Kind kind, int c) {
+      return switch (kind) {
+        case BOOLEAN -> parseBoolean(c)? 1: 0;
+        case BYTE -> parseInteger(c, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        case SHORT -> parseInteger(c, Short.MIN_VALUE, Short.MAX_VALUE);
+        case INT -> parseInteger(c, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        case LONG -> parseInteger(c, Long.MIN_VALUE, Long.MAX_VALUE);
+        case FLOAT, DOUBLE -> Double.doubleToRawLongBits(parseDouble(c));
+        default -> throw new AssertionError();
+      };
+    }
+
+    private Object parseRecord(RecordBinder binder, int depth) {
+      if (depth > MAX_DEPTH) {
+        throw new IllegalStateException("too many nested objects or arrays at " + (offset + position));
+      }
+      var references = new Object[binder.referenceCount];
+      var primitives = new long[binder.primitiveCount];
+      var c = next();
+      if (c != '}') {
+        for(;;) {
+          if (c != '"') {
+            throw error("a string", c);
+          }
+          var key = parseString();
+          c = next();
+          if (c != ':') {
+            throw error("':'", c);
+          }
+          var component = binder.components.get(key);
+          if (component == null) {  // unknown key, skip the value
+            parseValue(next(), depth);
+          } else if (component.primitive) {
+            primitives[component.slot] = parsePrimitive(component.binding.kind, next());
+          } else {
+            references[component.slot] = parseBinding(component.binding, next(), depth);
+          }
+          c = next();
+          if (c == '}') {
+            break;
+          }
+          if (c != ',') {
+            throw error("',' or '}'", c);
+          }
+          c = next();
+        }
+      }
+      return binder.construct(references, primitives);
+    }
+
+    private ArrayList<Object> parseList(Binding element, int depth) {
+      if (depth > MAX_DEPTH) {
+        throw new IllegalStateException("too many nested objects or arrays at " + (offset + position));
+      }
+      var list = new ArrayList<>();
+      var c = next();
+      if (c == ']') {
+        return list;
+      }
+      for(;;) {
+        list.add(parseBinding(element, c, depth));
+        c = next();
+        if (c == ']') {
+          return list;
+        }
+        if (c != ',') {
+          throw error("',' or ']'", c);
+        }
+        c = next();
+      }
+    }
+  }
+
+  // A streaming JSON printer that encodes the text in UTF-8 into a buffer, the buffer is handed
+  // to a sink each time it is full, so the whole document is never materialized.
+  // The streams and iterables are consumed lazily.
+  /*private*/ static final class JSONPrettyPrinter {
+    @FunctionalInterface
+    private interface Sink {
+      void write(byte[] buffer, int length, boolean last) throws IOException;
+    }
+
+    private static final byte[] NULL = bytes("null"), TRUE = bytes("true"), FALSE = bytes("false");
+    private static final byte[] HEX_DIGITS = bytes("0123456789abcdef");
+
+    private final byte[] buffer;
+    private final Sink sink;
+    private int position;
+
+    private JSONPrettyPrinter(byte[] buffer, Sink sink) {
+      this.buffer = buffer;
+      this.sink = sink;
+    }
+
+    private static byte[] bytes(String text) {
+      return text.getBytes(UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface PrinterConsumer {
+      void accept(JSONPrettyPrinter printer) throws IOException;
+    }
+
+    private static byte[] toBytes(PrinterConsumer consumer) {
+      var output = new ByteArrayOutputStream();
+      var printer = new JSONPrettyPrinter(new byte[8192], (buffer, length, last) -> output.write(buffer, 0, length));
+      try {
+        consumer.accept(printer);
+        printer.close();
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      return output.toByteArray();
+    }
+
+    static String toJSON(Object o) {
+      return new String(toBytes(printer -> printer.print(o)), UTF_8);
+    }
+
+    private void print(Object o) throws IOException {
+      if (o instanceof Collection<?> collection) {
+        printArray(collection.iterator());
+        return;
+      }
+      if (o instanceof Iterable<?> iterable) {
+        printArray(iterable.iterator());
+        return;
+      }
+      if (o instanceof Stream<?> stream) {
+        printArray(stream.iterator());
+        return;
+      }
+      if (o instanceof Map<?,?> map) {
+        printObject(map);
+        return;
+      }
+      if (o instanceof Record record) {
+        printObject(record);
+        return;
+      }
+      throw new IllegalStateException("unknown json object " + o);
+    }
+
+    private void printItem(Object item) throws IOException {
+      if (item == null) {
+        write(NULL);
+        return;
+      }
+      if (item instanceof String string) {
+        printString(string);
+        return;
+      }
+      if (item instanceof Boolean value) {
+        write(value? TRUE: FALSE);
+        return;
+      }
+      if (item instanceof Integer || item instanceof Long) {
+        printLong(((Number) item).longValue());
+        return;
+      }
+      if (item instanceof Double) {
+        printASCII(item.toString());
+        return;
+      }
+      print(item);
+    }
+
+    private void printArray(Iterator<?> iterator) throws IOException {
+      writeByte('[');
+      if (iterator.hasNext()) {
+        printItem(iterator.next());
+        while(iterator.hasNext()) {
+          writeByte(',');
+          writeByte(' ');
+          printItem(iterator.next());
+        }
+      }
+      writeByte(']');
+    }
+
+    private void printObject(Map<?,?> map) throws IOException {
+      writeByte('{');
+      var separator = false;
+      for(var entry: map.entrySet()) {
+        if (separator) {
+          writeByte(',');
+          writeByte(' ');
+        }
+        separator = true;
+        printString(String.valueOf(entry.getKey()));
+        writeByte(':');
+        writeByte(' ');
+        printItem(entry.getValue());
+      }
+      writeByte('}');
+    }
+
+    // The serializer of a record class, for each component, the prefix (the separator and the name
+    // of the component) is pre-encoded and the accessor is a method handle typed (Object)Object
+    private record RecordPrinter(byte[][] prefixes, MethodHandle[] accessors, byte[] suffix) {
+      private static final ClassValue<RecordPrinter> PRINTERS = new ClassValue<>() {
+        @Override
+        protected RecordPrinter computeValue(Class<?> type) {
+          return RecordPrinter.of(type);
+        }
+      };
+
+      private static RecordPrinter of(Class<?> type) {
+        var components = type.getRecordComponents();
+        var prefixes = new byte[components.length][];
+        var accessors = new MethodHandle[components.length];
+        var lookup = MethodHandles.lookup();
+        for(var i = 0; i < components.length; i++) {
+          var component = components[i];
+          var separator = i == 0? "{": ", ";
+          prefixes[i] = toBytes(printer -> {
+            printer.printASCII(separator);
+            printer.printString(component.getName());
+            printer.printASCII(": ");
+          });
+          try {
+            accessors[i] = lookup.unreflect(component.getAccessor()).asType(methodType(Object.class, Object.class));
+          } catch (IllegalAccessException e) {
+            throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+          }
+        }
+        return new RecordPrinter(prefixes, accessors, bytes(components.length == 0? "{}": "}"));
+      }
+
+      private static Object accessor(MethodHandle accessor, Record record) {
+        try {
+          return (Object) accessor.invokeExact((Object) record);
+        } catch (RuntimeException | Error e) {
+          throw e;
+        } catch (Throwable e) {
+          throw new UndeclaredThrowableException(e);
+        }
+      }
+    }
+
+    private void printObject(Record record) throws IOException {
+      var recordPrinter = RecordPrinter.PRINTERS.get(record.getClass());
+      var prefixes = recordPrinter.prefixes;
+      var accessors = recordPrinter.accessors;
+      for(var i = 0; i < accessors.length; i++) {
+        write(prefixes[i]);
+        printItem(RecordPrinter.accessor(accessors[i], record));
+      }
+      write(recordPrinter.suffix);
+    }
+
+    private void printLong(long value) throws IOException {
+      if (value == Long.MIN_VALUE) {
+        printASCII(Long.toString(value));
+        return;
+      }
+      if (value < 0) {
+        writeByte('-');
+        value = -value;
+      }
+      var digits = 1;
+      for(var bound = 10L; digits < 19 && value >= bound; bound *= 10) {
+        digits++;
+      }
+      if (position + digits > buffer.length) {
+        flush(false);
+      }
+      for(var i = position + digits - 1; i >= position; i--) {
+        buffer[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      position += digits;
+    }
+
+    private void printASCII(String text) throws IOException {
+      for(var i = 0; i < text.length(); i++) {
+        writeByte(text.charAt(i));
+      }
+    }
+
+    private void printString(String text) throws IOException {
+      writeByte('"');
+      for(var i = 0; i < text.length(); i++) {
+        var c = text.charAt(i);
+        if (c < 0x80) {
+          if (c == '"' || c == '\\') {
+            writeByte('\\');
+            writeByte(c);
+          } else if (c < ' ') {
+            writeByte('\\');
+            writeByte('u');
+            writeByte('0');
+            writeByte('0');
+            writeByte(HEX_DIGITS[c >> 4]);
+            writeByte(HEX_DIGITS[c & 0xF]);
+          } else {
+            writeByte(c);
+          }
+        } else if (c < 0x800) {
+          writeByte(0xC0 | (c >> 6));
+          writeByte(0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+          var codePoint = Character.toCodePoint(c, text.charAt(++i));
+          writeByte(0xF0 | (codePoint >> 18));
+          writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+          writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+          writeByte(0x80 | (codePoint & 0x3F));
+        } else if (Character.isSurrogate(c)) {  // unpaired surrogate
+          writeByte('?');
+        } else {
+          writeByte(0xE0 | (c >> 12));
+          writeByte(0x80 | ((c >> 6) & 0x3F));
+          writeByte(0x80 | (c & 0x3F));
+        }
+      }
+      writeByte('"');
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      if (bytes.length > buffer.length - position) {
+        for(var b: bytes) {
+          writeByte(b);
+        }
+        return;
+      }
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    private void writeByte(int b) throws IOException {
+      if (position == buffer.length) {
+        flush(false);
+      }
+      buffer[position++] = (byte) b;
+    }
+
+    private void flush(boolean last) throws IOException {
+      sink.write(buffer, position, last);
+      position = 0;
+    }
+
+    private void close() throws IOException {
+      flush(true);
+    }
+  }
+
+  // An access log that uses a lock-free ring buffer, the request threads claim a slot and publish
+  // their entry, a background thread drains the slots, formats the entries and writes them by batch.
+  // The close sets the sign bit of the tail, so no slot can be claimed after the writer has read the last tail.
+  // If a write fails, the writer keeps draining the slots and counts the entries as dropped,
+  // the error is thrown by close().
+  private static final class AccessLogWriter implements AccessLog {
+    private static final int CAPACITY = 1 << 13;
+    private static final long CLOSED = Long.MIN_VALUE;  // bit of the tail
+    private static final long FLUSH_DELAY = 10_000_000;  // in nanoseconds
+    private static final DateTimeFormatter COMMON_DATE_FORMATTER =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final FileChannel channel;
+    private final LogFormat format;
+    private final AtomicReferenceArray<LogEntry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;  // only written by the writer thread
+    private final LongAdder dropped = new LongAdder();
+    private volatile IOException failure;  // only written by the writer thread
+    private int unwritten;  // number of entries encoded but not yet written, only used by the writer thread
+    private final Thread thread;
+
+    private AccessLogWriter(FileChannel channel, LogFormat format) {
+      this.channel = channel;
+      this.format = format;
+      var thread = new Thread(this::run, "jexpress-access-log");
+      thread.setDaemon(true);
+      thread.start();
+      this.thread = thread;
+    }
+
+    @Override
+    public void log(LogEntry entry) {
+      Objects.requireNonNull(entry);
+      for(;;) {
+        var tail = this.tail.get();
+        if (tail < 0 || tail - head >= CAPACITY || failure != null) {  // closed, full or failed
+          dropped.increment();
+          return;
+        }
+        if (this.tail.compareAndSet(tail, tail + 1)) {
+          slots.set((int) tail & (CAPACITY - 1), entry);
+          return;
+        }
+      }
+    }
+
+    @Override
+    public long dropped() {
+      return dropped.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+      tail.getAndUpdate(tail -> tail | CLOSED);
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      var failure = this.failure;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          throw e;
+        }
+        failure.addSuppressed(e);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    private void run() {
+      var builder = new StringBuilder();
+      var buffer = ByteBuffer.allocateDirect(64 * 1024);
+      var encoder = UTF_8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      for(;;) {
+        var tail = this.tail.get();  // read before draining, so no entry is lost
+        var drained = drain(builder, buffer, encoder);
+        if (tail < 0) {
+          // closed, the slots claimed before the close are published soon
+          while (head != (tail & ~CLOSED)) {
+            Thread.onSpinWait();
+            drain(builder, buffer, encoder);
+          }
+          return;
+        }
+        if (!drained) {
+          LockSupport.parkNanos(FLUSH_DELAY);
+        }
+      }
+    }
+
+    private boolean drain(StringBuilder builder, ByteBuffer buffer, CharsetEncoder encoder) {
+      var head = this.head;
+      var start = head;
+      LogEntry entry;
+      while((entry = slots.get((int) head & (CAPACITY - 1))) != null) {
+        slots.set((int) head & (CAPACITY - 1), null);
+        this.head = ++head;
+        if (failure != null) {
+          dropped.increment();
+          continue;
+        }
+        builder.setLength(0);
+        switch (format) {
+          case COMMON -> appendCommon(builder, entry);
+          case JSON -> appendJSON(builder, entry);
+        }
+        builder.append('\n');
+        try {
+          encode(builder, buffer, encoder);
+          unwritten++;
+        } catch (IOException e) {
+          fail(e, unwritten + 1, buffer);
+        }
+      }
+      if (failure == null) {
+        try {
+          write(buffer);
+        } catch (IOException e) {
+          fail(e, unwritten, buffer);
+        }
+      }
+      return head != start;
+    }
+
+    // the entries not written are dropped
+    private void fail(IOException e, int lost, ByteBuffer buffer) {
+      failure = e;
+      dropped.add(lost);
+      unwritten = 0;
+      buffer.clear();
+    }
+
+    private void encode(StringBuilder builder, ByteBuffer buffer, CharsetEncoder encoder) throws IOException {
+      var chars = CharBuffer.wrap(builder);
+      encoder.reset();
+      while(encoder.encode(chars, buffer, true).isOverflow()) {
+        write(buffer);
+      }
+      while(encoder.flush(buffer).isOverflow()) {
+        write(buffer);
+      }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      while(buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+      unwritten = 0;
+    }
+
+    private static String host(InetSocketAddress address) {
+      if (address == null) {
+        return "-";
+      }
+      var inetAddress = address.getAddress();
+      return inetAddress == null? address.getHostString(): inetAddress.getHostAddress();
+    }
+
+    private static void appendCommon(StringBuilder builder, LogEntry entry) {
+      builder.append(host(entry.remoteAddress)).append(" - - [");
+      COMMON_DATE_FORMATTER.formatTo(Instant.ofEpochMilli(entry.time), builder);
+      builder.append("] \"").append(entry.method).append(' ').append(entry.uri).append(' ').append(entry.protocol)
+          .append("\" ").append(entry.status).append(' ');
+      if (entry.contentLength <= 0) {
+        builder.append('-');
+      } else {
+        builder.append(entry.contentLength);
+      }
+    }
+
+    private static void appendJSON(StringBuilder builder, LogEntry entry) {
+      builder.append("{\"time\": \"");
+      DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(entry.time), builder);
+      builder.append("\", \"remote\": ");
+      appendJSONString(builder, host(entry.remoteAddress));
+      builder.append(", \"method\": ");
+      appendJSONString(builder, entry.method);
+      builder.append(", \"uri\": ");
+      appendJSONString(builder, entry.uri.toString());
+      builder.append(", \"protocol\": ");
+      appendJSONString(builder, entry.protocol);
+      builder.append(", \"status\": ").append(entry.status)
+          .append(", \"length\": ").append(entry.contentLength)
+          .append(", \"duration_us\": ").append(entry.duration / 1_000)
+          .append('}');
+    }
+
+    private static void appendJSONString(StringBuilder builder, String text) {
+      builder.append('"');
+      for(var i = 0; i < text.length(); i++) {
+        var c = text.charAt(i);
+        switch (c) {
+          case '"' -> builder.append("\\\"");
+          case '\\' -> builder.append("\\\\");
+          default -> {
+            if (c < ' ') {
+              builder.append("\\u").append(String.format("%04x", (int) c));
+            } else {
+              builder.append(c);
+            }
+          }
+        }
+      }
+      builder.append('"');
+    }
+  }
+
+  // A HTTP/1.1 server based on selectors, the server has one or more shards, the requests of a connection
+  // are read, processed and answered one after the other by a thread of the executor of its shard
+  // (keep-alive and pipelining), a connection may switch to HTTP/2 (see Http2Session)
+  /*private*/ static final class NioServer implements Server {
+    private static final long MIN_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_TICK = TimeUnit.SECONDS.toNanos(1);
+
+    private final HttpHandler handler;
+    private final Duration stopTimeout;
+    private final long idleTimeout;  // in nanoseconds or 0
+    private final long headTimeout;  // in nanoseconds or 0
+    private final long bodyTimeout;  // in nanoseconds or 0
+    private final long tick;  // the period of the check of the deadlines in nanoseconds or 0 if no timeout
+    private final ArrayList<NioShard> shards = new ArrayList<>();
+    private Path socketFile;  // the file of a unix domain socket or null
+    private ForkJoinPool carriers;  // the carrier threads owned by the server or null
+    private final AtomicInteger active = new AtomicInteger();  // the number of requests being processed
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();  // signaled when no request is being processed
+    private volatile boolean closed;  // no new connection, no keep-alive
+
+    private NioServer(HttpHandler handler, Duration stopTimeout, TimeoutOptions timeouts) {
+      this.handler = handler;
+      this.stopTimeout = stopTimeout;
+      this.idleTimeout = timeouts.idleTimeout.toNanos();
+      this.headTimeout = timeouts.headTimeout.toNanos();
+      this.bodyTimeout = timeouts.bodyTimeout.toNanos();
+      // a connection times out at most a quarter of the smallest timeout late
+      var smallest = LongStream.of(idleTimeout, headTimeout, bodyTimeout).filter(timeout -> timeout != 0).min();
+      this.tick = smallest.isEmpty()? 0: Math.max(MIN_TICK, Math.min(MAX_TICK, smallest.getAsLong() / 4));
+    }
+
+    // returns the time (System.nanoTime) a timeout expires or 0 if there is no timeout
+    private static long deadline(long timeout) {
+      if (timeout == 0) {
+        return 0;
+      }
+      var deadline = System.nanoTime() + timeout;
+      return deadline == 0? 1: deadline;
+    }
+
+    private static boolean supportsReusePort() {
+      try (var channel = ServerSocketChannel.open()) {
+        return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    // with SO_REUSEPORT, each shard has its own server socket channel bound to the same address and the kernel
+    // spreads the connections among them, otherwise the shards accept the connections of the same channel.
+    // The address is either the internet address of the options or a unix domain socket address
+    /*private*/ static NioServer start(SocketAddress address, ServerOptions options, int acceptors, HttpHandler handler,
+                                       Scheduler scheduler) {
+      if (options.threading instanceof PlatformThreading platformThreading && platformThreading.threads < acceptors) {
+        throw new IllegalArgumentException("fewer platform threads than acceptors");
+      }
+      var server = new NioServer(handler, options.stopTimeout, options.timeouts);
+      var schedulerImpl = (SchedulerImpl) scheduler;
+      if (options.threading instanceof VirtualThreading) {
+        server.carriers = schedulerImpl.newPool();
+      }
+      var carriers = server.carriers == null? schedulerImpl.executor: server.carriers;
+      var unix = address instanceof UnixDomainSocketAddress;
+      var reusePort = acceptors > 1 && !unix && supportsReusePort();
+      ServerSocketChannel serverChannel = null;
+      try {
+        for(var i = 0; i < acceptors; i++) {
+          if (serverChannel == null || reusePort) {
+            serverChannel = unix? ServerSocketChannel.open(StandardProtocolFamily.UNIX): ServerSocketChannel.open();
+            if (reusePort) {
+              serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(address, options.backlog);
+            if (unix) {
+              server.socketFile = ((UnixDomainSocketAddress) address).getPath();
+            }
+            serverChannel.configureBlocking(false);
+            address = serverChannel.getLocalAddress();  // the port chosen by the system if 0
+          }
+          server.shards.add(new NioShard(server, i, serverChannel, options.threading, acceptors, carriers));
+        }
+      } catch (IOException e) {
+        try {
+          if (serverChannel != null) {
+            serverChannel.close();
+          }
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        server.close();
+        throw new UncheckedIOException(e);
+      }
+      for(var shard: server.shards) {
+        shard.selectorThread.start();
+      }
+      return server;
+    }
+
+    private void enter() {
+      active.incrementAndGet();
+    }
+
+    private void exit() {
+      if (active.decrementAndGet() == 0) {
+        lock.lock();
+        try {
+          idle.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for(var shard: shards) {
+        try {
+          shard.serverChannel.close();
+        } catch (IOException e) {
+          // the server channel is closed anyway
+        }
+      }
+      // the request counter is checked with the lock held, so a signal can not be lost
+      var interrupted = false;
+      lock.lock();
+      try {
+        var remaining = stopTimeout.toNanos();
+        while (active.get() != 0 && remaining > 0) {
+          remaining = idle.awaitNanos(remaining);
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } finally {
+        lock.unlock();
+      }
+      for(var shard: shards) {
+        interrupted |= shard.terminate();
+      }
+      if (carriers != null) {
+        carriers.shutdown();
+      }
+      if (socketFile != null) {
+        try {
+          Files.deleteIfExists(socketFile);
+        } catch (IOException e) {
+          // the file will be reported as existing by the next bind
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // A shard of a NIO server, the selector thread accepts the connections and waits for the connections
+  // to be readable or writable, the requests are processed by the executor of the shard
+  private static final class NioShard {
+    private final NioServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Executor executor;
+    private final ExecutorService pool;  // null if the executor is not owned by the shard
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+    private final boolean tcp;  // false for a unix domain socket
+    private final Thread selectorThread;
+    private volatile boolean terminated;  // the selector thread closes all the connections
+
+    private NioShard(NioServer server, int index, ServerSocketChannel serverChannel,
+                     Threading threading, int shards, Executor carriers) throws IOException {
+      this.server = server;
+      this.serverChannel = serverChannel;
+      this.selector = Selector.open();
+      this.tcp = serverChannel.getLocalAddress() instanceof InetSocketAddress;
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      if (threading instanceof PlatformThreading platformThreading) {
+        // the platform threads are split among the shards, the first shards get the remaining threads
+        var threads = platformThreading.threads / shards + (index < platformThreading.threads % shards? 1: 0);
+        executor = pool = Executors.newFixedThreadPool(threads);
+      } else if (threading instanceof ExecutorThreading executorThreading) {
+        executor = executorThreading.executor;
+        pool = null;
+      } else {
+        // without virtual threads, the default scheduler has no executor
+        var virtualExecutor = JExpress.executor(carriers);
+        pool = virtualExecutor == null? Executors.newCachedThreadPool(): null;
+        executor = virtualExecutor == null? pool: virtualExecutor;
+      }
+      this.selectorThread = new Thread(this::select, "jexpress-selector-" + index);
+      selectorThread.setDaemon(true);
+    }
+
+    private void select() {
+      var tick = server.tick;
+      var nextCheck = System.nanoTime() + tick;
+      try {
+        while (!terminated) {
+          selector.select(this::ready, TimeUnit.NANOSECONDS.toMillis(tick));
+          if (tick != 0 && System.nanoTime() - nextCheck >= 0) {
+            var now = System.nanoTime();
+            expire(now);
+            nextCheck = now + tick;
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        // the shard can not accept connections anymore, the whole server is closed so the clients
+        // see a refused connection instead of a server that silently stops answering,
+        // close() joins the selector threads so it runs in another thread
+        if (!terminated) {
+          var closer = new Thread(server::close, "jexpress-close");
+          closer.setDaemon(true);
+          closer.start();
+        }
+      } finally {
+        for(var connection: connections) {
+          connection.close();
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // the selector is released anyway
+        }
+      }
+    }
+
+    // closes the connections that have timed out
+    private void expire(long now) {
+      for(var connection: connections) {
+        var deadline = connection.deadline;
+        if (deadline != 0 && now - deadline >= 0) {
+          connection.timeout();
+        }
+        var http2 = connection.http2;
+        if (http2 != null) {
+          http2.expire(now);
+        }
+      }
+    }
+
+    private void ready(SelectionKey key) {
+      try {
+        if (key.isAcceptable()) {
+          accept();
+          return;
+        }
+        ((NioConnection) key.attachment()).ready();
+      } catch (CancelledKeyException e) {
+        // the connection is closed
+      }
+    }
+
+    private void accept() {
+      for(;;) {
+        SocketChannel channel;
+        try {
+          channel = serverChannel.accept();
+        } catch (IOException e) {  // the connection stays in the backlog, by example if there are too many open files
+          return;
+        }
+        if (channel == null) {  // no pending connection or accepted by another shard
+          return;
+        }
+        try {
+          channel.configureBlocking(false);
+          if (tcp) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          }
+          var connection = new NioConnection(this, channel);
+          connection.deadline = NioServer.deadline(server.idleTimeout);
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+          connections.add(connection);
+        } catch (IOException e) {
+          try {
+            channel.close();
+          } catch (IOException suppressed) {
+            // the connection is already lost
+          }
+        }
+      }
+    }
+
+    // stops the selector thread, returns true if the current thread was interrupted
+    private boolean terminate() {
+      terminated = true;
+      selector.wakeup();
+      var interrupted = false;
+      if (selectorThread.getState() != Thread.State.NEW) {
+        try {
+          selectorThread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      } else {
+        select();  // the shard was never started, release the selector
+      }
+      if (pool != null) {
+        pool.shutdown();
+      }
+      return interrupted;
+    }
+  }
+
+  // A connection of a NIO server, the bytes are read and written using two direct buffers.
+  // A thread that waits for the channel to be readable or writable parks until the selector unparks it,
+  // if no thread is waiting, the connection is idle and a readable channel starts a new thread
+  private static final class NioConnection implements Runnable {
+    private static final int BUFFER_SIZE = 8_192;
+    private static final int CHUNK_HEADER_SIZE = 6;  // 4 hexadecimal digits and CRLF
+    private static final int MAX_LINE_LENGTH = 1_024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(ISO_8859_1);
+
+    private final NioShard shard;
+    private final SocketChannel channel;
+    private final InetSocketAddress localAddress;  // null for a unix domain socket
+    private final InetSocketAddress remoteAddress;  // null for a unix domain socket
+    private ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();  // the bytes not read are between position and limit
+    private ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE);  // the bytes not written are before position
+    private final byte[] head = new byte[BUFFER_SIZE];
+    private int chunkStart = -1;  // the position of the header of the current chunk or -1
+    private SelectionKey key;
+    private volatile Thread waiter;  // the thread waiting for the channel or null
+    private volatile Http2Session http2;  // non null if the connection speaks HTTP/2
+    // the time (System.nanoTime) the connection times out or 0, the deadline is set before waiting for
+    // the client and cleared by the selector thread when the channel is ready
+    private volatile long deadline;
+    private long headDeadline;  // the deadline of the head of the request being received or 0
+
+    private NioConnection(NioShard shard, SocketChannel channel) throws IOException {
+      this.shard = shard;
+      this.channel = channel;
+      this.localAddress = channel.getLocalAddress() instanceof InetSocketAddress address? address: null;
+      this.remoteAddress = channel.getRemoteAddress() instanceof InetSocketAddress address? address: null;
+    }
+
+    // called by the selector thread
+    private void ready() {
+      var http2 = this.http2;
+      if (http2 != null) {
+        http2.ready(key.readyOps());
+        return;
+      }
+      key.interestOps(0);
+      deadline = 0;
+      var waiter = this.waiter;
+      if (waiter != null) {
+        this.waiter = null;
+        LockSupport.unpark(waiter);
+        return;
+      }
+      try {
+        shard.executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        close();
+      }
+    }
+
+    // asks the selector to wake up when the channel is ready for some operations
+    private void interest(int operations) throws IOException {
+      try {
+        key.interestOpsOr(operations);
+      } catch (CancelledKeyException e) {
+        throw new ClosedChannelException();
+      }
+      shard.selector.wakeup();
+    }
+
+    // called by the selector thread when the deadline has expired,
+    // an HTTP/2 connection without a waiting thread is only closed if it has no stream
+    private void timeout() {
+      var http2 = this.http2;
+      if (http2 != null && waiter == null) {
+        http2.idle();
+        return;
+      }
+      close();
+    }
+
+    private void await(int operations) throws IOException {
+      var thread = Thread.currentThread();
+      waiter = thread;
+      deadline = NioServer.deadline(shard.server.bodyTimeout);
+      interest(operations);
+      while (waiter == thread) {
+        if (!channel.isOpen()) {
+          throw new ClosedChannelException();
+        }
+        LockSupport.park(this);
+      }
+    }
+
+    private void close() {
+      shard.connections.remove(this);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // the connection is already lost
+      }
+      // a registered channel is closed when the selector deregisters its key
+      shard.selector.wakeup();
+      var waiter = this.waiter;
+      if (waiter != null) {
+        LockSupport.unpark(waiter);
+      }
+      var http2 = this.http2;
+      if (http2 != null) {
+        http2.closed();
+      }
+    }
+
+    // the buffers of an HTTP/2 connection are larger to hold a whole frame
+    private void switchToHttp2(Http2Session session) {
+      input = ByteBuffer.allocateDirect(Http2Session.BUFFER_SIZE).put(input).flip();
+      output = ByteBuffer.allocateDirect(Http2Session.BUFFER_SIZE).put(output.flip());
+      deadline = NioServer.deadline(shard.server.idleTimeout);
+      http2 = session;
+    }
+
+    @Override
+    public void run() {
+      try {
+        NioExchange exchange;
+        while ((exchange = readRequest()) != null) {
+          if (exchange.upgrade()) {
+            return;  // the connection speaks HTTP/2
+          }
+          shard.server.enter();
+          try {
+            exchange.process(shard.server.handler);
+          } finally {
+            shard.server.exit();
+          }
+          if (!exchange.keepAlive) {
+            close();
+            return;
+          }
+        }
+      } catch (IOException | RuntimeException e) {  // the client has closed the connection
+        close();
+      }
+    }
+
+    // reads the bytes available in the channel after the unread bytes,
+    // returns the number of bytes read, 0 if no byte is available or -1 at the end of the stream
+    private int fill() throws IOException {
+      input.compact();
+      try {
+        return channel.read(input);
+      } finally {
+        input.flip();
+      }
+    }
+
+    // returns the head of the next request or null if the connection is closed or if the head is not fully
+    // received, in that case, the selector starts a new thread when more bytes are available
+    private NioExchange readRequest() throws IOException {
+      for(;;) {
+        while (input.hasRemaining() && (input.get(input.position()) == '\r' || input.get(input.position()) == '\n')) {
+          input.position(input.position() + 1);  // empty lines before a request are ignored
+        }
+        var end = endOfHead();
+        if (end != -1) {
+          headDeadline = 0;
+          if (isPreface(end)) {  // HTTP/2 with prior knowledge
+            input.position(end);
+            Http2Session.start(this, null, null, null);
+            return null;
+          }
+          return parseHead(end);
+        }
+        if (input.remaining() == input.capacity()) {
+          reject(431);
+          return null;
+        }
+        var read = fill();
+        if (read == -1 || (read == 0 && shard.server.closed && !input.hasRemaining())) {
+          close();
+          return null;
+        }
+        if (read == 0) {
+          // between two requests, the connection is idle, otherwise the head must be fully received in time
+          if (!input.hasRemaining()) {
+            deadline = NioServer.deadline(shard.server.idleTimeout);
+          } else {
+            if (headDeadline == 0) {
+              headDeadline = NioServer.deadline(shard.server.headTimeout);
+            }
+            deadline = headDeadline;
+          }
+          interest(SelectionKey.OP_READ);
+          return null;
+        }
+      }
+    }
+
+    // returns the position after the empty line that ends the head or -1
+    private int endOfHead() {
+      for(var i = input.position() + 3; i < input.limit(); i++) {
+        if (input.get(i) == '\n' && input.get(i - 1) == '\r' && input.get(i - 2) == '\n' && input.get(i - 3) == '\r') {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+
+    // returns true if the head is the start of the preface of an HTTP/2 connection
+    private boolean isPreface(int end) {
+      if (end - input.position() != Http2Session.PREFACE_HEAD_LENGTH) {
+        return false;
+      }
+      for(var i = 0; i < Http2Session.PREFACE_HEAD_LENGTH; i++) {
+        if (input.get(input.position() + i) != Http2Session.PREFACE[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, char c) {
+      for(var i = start; i < end; i++) {
+        if (bytes[i] == c) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\t';
+    }
+
+    // true if the text is a non empty sequence of digits, a sign is not allowed
+    private static boolean isDigits(String text, int radix) {
+      if (text.isEmpty()) {
+        return false;
+      }
+      for(var i = 0; i < text.length(); i++) {
+        if (Character.digit(text.charAt(i), radix) == -1) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean hasToken(String value, String token) {
+      if (value == null) {
+        return false;
+      }
+      for(var part: value.split(",")) {
+        if (part.strip().equalsIgnoreCase(token)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private NioExchange parseHead(int end) throws IOException {
+      var length = end - input.position();
+      input.get(head, 0, length);
+
+      // request line
+      var lineEnd = indexOf(head, 0, length, '\r');
+      var methodEnd = indexOf(head, 0, lineEnd, ' ');
+      var targetEnd = methodEnd == -1? -1: indexOf(head, methodEnd + 1, lineEnd, ' ');
+      if (methodEnd <= 0 || targetEnd <= methodEnd + 1 || head[lineEnd + 1] != '\n') {
+        reject(400);
+        return null;
+      }
+      var protocol = new String(head, targetEnd + 1, lineEnd - targetEnd - 1, ISO_8859_1);
+      var http11 = protocol.equals("HTTP/1.1");
+      if (!http11 && !protocol.equals("HTTP/1.0")) {
+        reject(protocol.startsWith("HTTP/")? 505: 400);
+        return null;
+      }
+      URI uri;
+      try {
+        uri = new URI(new String(head, methodEnd + 1, targetEnd - methodEnd - 1, ISO_8859_1));
+      } catch (URISyntaxException e) {
+        reject(400);
+        return null;
+      }
+      var method = new String(head, 0, methodEnd, ISO_8859_1);
+
+      // header fields, the obsolete line folding is not supported
+      var headers = new Headers();
+      for(var start = lineEnd + 2; start < length - 2; start = lineEnd + 2) {
+        lineEnd = indexOf(head, start, length, '\r');
+        var colon = indexOf(head, start, lineEnd, ':');
+        if (colon <= start || isWhitespace(head[start]) || isWhitespace(head[colon - 1]) || head[lineEnd + 1] != '\n') {
+          reject(400);
+          return null;
+        }
+        var valueStart = colon + 1;
+        var valueEnd = lineEnd;
+        while (valueStart < valueEnd && isWhitespace(head[valueStart])) {
+          valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) {
+          valueEnd--;
+        }
+        try {
+          headers.add(new String(head, start, colon - start, ISO_8859_1),
+              new String(head, valueStart, valueEnd - valueStart, ISO_8859_1));
+        } catch (IllegalArgumentException e) {
+          reject(400);
+          return null;
+        }
+      }
+
+      // framing of the body
+      var keepAlive = !shard.server.closed &&
+          (http11? !hasToken(headers.getFirst("Connection"), "close"): hasToken(headers.getFirst("Connection"), "keep-alive"));
+      var transferEncodings = headers.get("Transfer-Encoding");
+      var contentLengths = headers.get("Content-Length");
+      long contentLength;
+      if (transferEncodings != null) {
+        // only "chunked" alone is supported, the body of another coding can not be decoded
+        if (transferEncodings.size() != 1 || !transferEncodings.get(0).equalsIgnoreCase("chunked")) {
+          reject(501);
+          return null;
+        }
+        contentLength = -1;
+        keepAlive &= contentLengths == null;  // the request may be smuggled
+      } else if (contentLengths != null) {
+        try {
+          // only digits, so an intermediary can not read another length
+          contentLength = isDigits(contentLengths.get(0), 10)? Long.parseLong(contentLengths.get(0)): -1;
+        } catch (NumberFormatException e) {
+          contentLength = -1;
+        }
+        if (contentLength < 0 || contentLengths.stream().anyMatch(value -> !value.equals(contentLengths.get(0)))) {
+          reject(400);
+          return null;
+        }
+      } else {
+        contentLength = 0;
+      }
+      var expectContinue = http11 && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"));
+      return new NioExchange(this, method, uri, protocol, headers, contentLength, expectContinue, keepAlive);
+    }
+
+    // sends an error response before the request is processed and closes the connection
+    private void reject(int status) throws IOException {
+      output.clear();
+      chunkStart = -1;
+      put("HTTP/1.1 " + status + " " + NioExchange.reason(status) + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+      flush();
+      close();
+    }
+
+    // reads at most length bytes of the body of a request
+    private int read(byte[] bytes, int offset, int length) throws IOException {
+      awaitInput();
+      var count = Math.min(length, input.remaining());
+      input.get(bytes, offset, count);
+      return count;
+    }
+
+    private long skip(long length) throws IOException {
+      awaitInput();
+      var count = (int) Math.min(length, input.remaining());
+      input.position(input.position() + count);
+      return count;
+    }
+
+    // waits until some bytes are available
+    private void awaitInput() throws IOException {
+      while (!input.hasRemaining()) {
+        var read = fill();
+        if (read == -1) {
+          throw new EOFException("connection closed");
+        }
+        if (read == 0) {
+          await(SelectionKey.OP_READ);
+        }
+      }
+    }
+
+    // reads a line of a chunked body without the CRLF
+    private String readLine() throws IOException {
+      var builder = new StringBuilder();
+      for(;;) {
+        awaitInput();
+        var b = input.get();
+        if (b == '\n') {
+          if (builder.isEmpty() || builder.charAt(builder.length() - 1) != '\r') {
+            throw new IOException("invalid line ending");
+          }
+          return builder.substring(0, builder.length() - 1);
+        }
+        if (builder.length() == MAX_LINE_LENGTH) {
+          throw new IOException("line too long");
+        }
+        builder.append((char) (b & 0xFF));
+      }
+    }
+
+    // the bytes of a text are written as ISO-8859-1
+    private void put(String text) throws IOException {
+      for(var i = 0; i < text.length(); i++) {
+        if (!output.hasRemaining()) {
+          flush();
+        }
+        output.put((byte) text.charAt(i));
+      }
+    }
+
+    private void flush() throws IOException {
+      output.flip();
+      try {
+        while (output.hasRemaining()) {
+          if (channel.write(output) == 0) {
+            await(SelectionKey.OP_WRITE);
+          }
+        }
+      } finally {
+        output.clear();
+      }
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+      if (length <= output.remaining()) {
+        output.put(bytes, offset, length);
+        return;
+      }
+      if (length < output.capacity()) {
+        flush();
+        output.put(bytes, offset, length);
+        return;
+      }
+      // the buffered bytes and the large array are written together
+      var buffers = new ByteBuffer[] { output.flip(), ByteBuffer.wrap(bytes, offset, length) };
+      try {
+        while (buffers[1].hasRemaining()) {
+          if (channel.write(buffers) == 0) {
+            await(SelectionKey.OP_WRITE);
+          }
+        }
+      } finally {
+        output.clear();
+      }
+    }
+
+    // the header of a chunk is reserved before its data and written when the chunk ends
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (chunkStart == -1) {
+          if (output.remaining() < CHUNK_HEADER_SIZE + 3) {
+            flush();
+          }
+          chunkStart = output.position();
+          output.position(chunkStart + CHUNK_HEADER_SIZE);
+        }
+        var count = Math.min(length, output.remaining() - 2);
+        output.put(bytes, offset, count);
+        offset += count;
+        length -= count;
+        if (output.remaining() == 2) {
+          endChunk();
+          flush();
+        }
+      }
+    }
+
+    private void endChunk() {
+      if (chunkStart == -1) {
+        return;
+      }
+      var size = output.position() - chunkStart - CHUNK_HEADER_SIZE;
+      if (size == 0) {
+        output.position(chunkStart);
+      } else {
+        for(var i = 0; i < 4; i++) {
+          output.put(chunkStart + i, HEX[(size >>> (12 - 4 * i)) & 0xF]);
+        }
+        output.put(chunkStart + 4, (byte) '\r').put(chunkStart + 5, (byte) '\n');
+        output.put((byte) '\r').put((byte) '\n');
+      }
+      chunkStart = -1;
+    }
+
+    private void endChunks() throws IOException {
+      endChunk();
+      put("0\r\n\r\n");
+      flush();
+    }
+
+    // the file is sent by the kernel without being copied in the buffers
+    private void transferFrom(FileChannel file, long position, long count) throws IOException {
+      flush();
+      while (count > 0) {
+        var transferred = file.transferTo(position, count, channel);
+        if (transferred == 0) {
+          if (position >= file.size()) {
+            throw new EOFException("file truncated");
+          }
+          await(SelectionKey.OP_WRITE);
+        }
+        position += transferred;
+        count -= transferred;
+      }
+    }
+  }
+
+  // An exchange of a NIO connection, the response is written in the output buffer of the connection
+  private static final class NioExchange extends HttpExchange {
+    private static final DateTimeFormatter DATE_FORMATTER =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final int MAX_UPGRADE_BODY = 65_536;
+
+    private record HttpDate(long epochSecond, String text) {}
+    private static volatile HttpDate date = new HttpDate(-1, "");
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final NioInput requestBody;
+    private final NioOutput responseBody = new NioOutput(this);
+    private InputStream filteredRequestBody;  // the body wrapped by a filter or null
+    private OutputStream filteredResponseBody;  // the body wrapped by a filter or null
+    private boolean keepAlive;
+    private int responseCode = -1;
+    private HashMap<String, Object> attributes;  // allocated lazily
+
+    private NioExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders,
+                        long contentLength, boolean expectContinue, boolean keepAlive) {
+      this.connection = connection;
+      this.method = method;
+      this.uri = uri;
+      this.protocol = protocol;
+      this.requestHeaders = requestHeaders;
+      this.requestBody = new NioInput(this, contentLength, expectContinue);
+      this.keepAlive = keepAlive;
+    }
+
+    // the date formatted once per second
+    private static String date() {
+      var epochSecond = System.currentTimeMillis() / 1_000;
+      var date = NioExchange.date;
+      if (date.epochSecond != epochSecond) {
+        date = new HttpDate(epochSecond, DATE_FORMATTER.format(Instant.ofEpochSecond(epochSecond)));
+        NioExchange.date = date;
+      }
+      return date.text;
+    }
+
+    private static String reason(int status) {
+      return switch (status) {
+        case 100 -> "Continue";
+        case 200 -> "OK";
+        case 201 -> "Created";
+        case 202 -> "Accepted";
+        case 204 -> "No Content";
+        case 206 -> "Partial Content";
+        case 301 -> "Moved Permanently";
+        case 302 -> "Found";
+        case 303 -> "See Other";
+        case 304 -> "Not Modified";
+        case 307 -> "Temporary Redirect";
+        case 308 -> "Permanent Redirect";
+        case 400 -> "Bad Request";
+        case 401 -> "Unauthorized";
+        case 403 -> "Forbidden";
+        case 404 -> "Not Found";
+        case 405 -> "Method Not Allowed";
+        case 406 -> "Not Acceptable";
+        case 409 -> "Conflict";
+        case 410 -> "Gone";
+        case 411 -> "Length Required";
+        case 412 -> "Precondition Failed";
+        case 413 -> "Content Too Large";
+        case 415 -> "Unsupported Media Type";
+        case 416 -> "Range Not Satisfiable";
+        case 422 -> "Unprocessable Content";
+        case 429 -> "Too Many Requests";
+        case 431 -> "Request Header Fields Too Large";
+        case 500 -> "Internal Server Error";
+        case 501 -> "Not Implemented";
+        case 502 -> "Bad Gateway";
+        case 503 -> "Service Unavailable";
+        case 505 -> "HTTP Version Not Supported";
+        default -> "";
+      };
+    }
+
+    // switches the connection to HTTP/2 if the request asks for an upgrade to h2c (RFC 7540 3.2),
+    // the upgrade is ignored if the body of the request is too large to be read before switching
+    private boolean upgrade() throws IOException {
+      if (!protocol.equals("HTTP/1.1") || !NioConnection.hasToken(requestHeaders.getFirst("Upgrade"), "h2c")) {
+        return false;
+      }
+      var connectionHeader = requestHeaders.getFirst("Connection");
+      var settings = requestHeaders.get("HTTP2-Settings");
+      if (!NioConnection.hasToken(connectionHeader, "Upgrade") || !NioConnection.hasToken(connectionHeader, "HTTP2-Settings") ||
+          settings == null || settings.size() != 1 || requestBody.chunked || requestBody.remaining > MAX_UPGRADE_BODY) {
+        return false;
+      }
+      byte[] payload;
+      try {
+        payload = Base64.getUrlDecoder().decode(settings.get(0).strip());
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      Http2Session.start(connection, this, payload, requestBody.readAllBytes());
+      return true;
+    }
+
+    private void process(HttpHandler handler) throws IOException {
+      try {
+        handler.handle(this);
+      } catch (IOException | RuntimeException e) {
+        // the handler has reported the exception, the connection is closed
+        keepAlive = false;
+        if (responseCode == -1 && connection.channel.isOpen()) {
+          responseHeaders.clear();
+          sendResponseHeaders(500, -1);
+        }
+        return;
+      }
+      if (responseCode == -1) {
+        sendResponseHeaders(500, -1);
+      }
+      closeResponseBody();
+      if (keepAlive && !requestBody.drain()) {
+        keepAlive = false;
+      }
+    }
+
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+      if (this.responseCode != -1) {
+        throw new IOException("headers already sent");
+      }
+      this.responseCode = responseCode;
+      if (NioConnection.hasToken(responseHeaders.getFirst("Connection"), "close")) {
+        keepAlive = false;
+      }
+      Framing framing;
+      long length;
+      if (responseCode < 200 || responseCode == 204 || responseCode == 304) {
+        framing = Framing.EMPTY;
+        length = -1;
+      } else if (method.equals("HEAD")) {
+        framing = Framing.DISCARD;
+        length = responseLength > 0? responseLength: -1;
+      } else if (responseLength > 0) {
+        framing = Framing.FIXED;
+        length = responseLength;
+      } else if (responseLength == 0) {
+        framing = protocol.equals("HTTP/1.1")? Framing.CHUNKED: Framing.UNTIL_CLOSE;
+        keepAlive &= framing == Framing.CHUNKED;
+        length = -1;
+      } else {
+        framing = Framing.EMPTY;
+        length = 0;
+      }
+
+      var connection = this.connection;
+      connection.put("HTTP/1.1 ");
+      connection.put(Integer.toString(responseCode));
+      connection.put(" ");
+      connection.put(reason(responseCode));
+      connection.put("\r\n");
+      if (!responseHeaders.containsKey("Date")) {
+        connection.put("Date: ");
+        connection.put(date());
+        connection.put("\r\n");
+      }
+      for(var entry: responseHeaders.entrySet()) {
+        var name = entry.getKey();
+        if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")) {
+          continue;
+        }
+        for(var value: entry.getValue()) {
+          connection.put(name);
+          connection.put(": ");
+          connection.put(value);
+          connection.put("\r\n");
+        }
+      }
+      if (length != -1) {
+        connection.put("Content-Length: ");
+        connection.put(Long.toString(length));
+        connection.put("\r\n");
+      }
+      if (framing == Framing.CHUNKED) {
+        connection.put("Transfer-Encoding: chunked\r\n");
+      }
+      if (!keepAlive) {
+        connection.put("Connection: close\r\n");
+      } else if (!protocol.equals("HTTP/1.1")) {
+        connection.put("Connection: keep-alive\r\n");
+      }
+      connection.put("\r\n");
+      responseBody.start(framing, framing == Framing.FIXED? length: 0);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return null;
+    }
+
+    // the stream wrapped by a filter is closed first, so it can flush its bytes
+    private void closeResponseBody() throws IOException {
+      if (filteredResponseBody != null) {
+        filteredResponseBody.close();
+      }
+      responseBody.close();
+    }
+
+    @Override
+    public void close() {
+      try {
+        closeResponseBody();
+      } catch (IOException e) {
+        keepAlive = false;
+      }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return filteredRequestBody == null? requestBody: filteredRequestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      return filteredResponseBody == null? responseBody: filteredResponseBody;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return connection.remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return connection.localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+      return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes == null? null: attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (attributes == null) {
+        attributes = new HashMap<>();
+      }
+      attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+      if (input != null) {
+        filteredRequestBody = input;
+      }
+      if (output != null) {
+        filteredResponseBody = output;
+      }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return null;
+    }
+  }
+
+  // How the end of the body of a response is known, EMPTY if there is no body,
+  // DISCARD if the body is not sent (HEAD), FIXED if the length is known, CHUNKED if the length is unknown
+  // and UNTIL_CLOSE if the length is unknown for an HTTP/1.0 client
+  private enum Framing { EMPTY, DISCARD, FIXED, CHUNKED, UNTIL_CLOSE }
+
+  // The body of a request, either of a fixed length or chunked (length == -1)
+  private static final class NioInput extends InputStream {
+    private static final int MAX_DRAIN = 65_536;
+
+    private final NioExchange exchange;
+    private final boolean chunked;
+    private long remaining;  // the number of bytes left in the body or in the current chunk
+    private boolean expectContinue;  // true if "100 Continue" must be sent before reading the body
+    private boolean first = true;  // true before the first chunk
+    private boolean eof;
+
+    private NioInput(NioExchange exchange, long contentLength, boolean expectContinue) {
+      this.exchange = exchange;
+      this.chunked = contentLength == -1;
+      this.remaining = chunked? 0: contentLength;
+      this.expectContinue = expectContinue && contentLength != 0;
+      this.eof = contentLength == 0;
+    }
+
+    // returns true if some bytes of the body are left, reads the header of the next chunk if necessary
+    private boolean hasMore() throws IOException {
+      if (eof) {
+        return false;
+      }
+      var connection = exchange.connection;
+      if (expectContinue) {
+        expectContinue = false;
+        if (exchange.responseCode == -1) {
+          connection.put("HTTP/1.1 100 Continue\r\n\r\n");
+          connection.flush();
+        }
+      }
+      if (remaining == 0) {
+        if (!chunked) {
+          eof = true;
+          return false;
+        }
+        if (!first && !connection.readLine().isEmpty()) {
+          throw new IOException("invalid chunk end");
+        }
+        first = false;
+        var line = connection.readLine();
+        var semicolon = line.indexOf(';');
+        var size = (semicolon == -1? line: line.substring(0, semicolon)).strip();
+        try {
+          remaining = NioConnection.isDigits(size, 16)? Long.parseLong(size, 16): -1;
+        } catch (NumberFormatException e) {
+          throw new IOException("invalid chunk size " + line);
+        }
+        if (remaining < 0) {
+          throw new IOException("invalid chunk size " + line);
+        }
+        if (remaining == 0) {
+          while (!connection.readLine().isEmpty()) {
+            // skip the trailer fields
+          }
+          eof = true;
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      var bytes = new byte[1];
+      return read(bytes, 0, 1) == -1? -1: bytes[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      Objects.checkFromIndexSize(offset, length, bytes.length);
+      if (length == 0) {
+        return 0;
+      }
+      if (!hasMore()) {
+        return -1;
+      }
+      var count = exchange.connection.read(bytes, offset, (int) Math.min(length, remaining));
+      remaining -= count;
+      return count;
+    }
+
+    // skips the rest of the body, returns false if the body is too large to be skipped
+    private boolean drain() throws IOException {
+      if (expectContinue) {  // the client has not sent the body
+        return eof;
+      }
+      var drained = 0L;
+      while (hasMore()) {
+        if (drained > MAX_DRAIN) {
+          return false;
+        }
+        var count = exchange.connection.skip(remaining);
+        remaining -= count;
+        drained += count;
+      }
+      return true;
+    }
+  }
+
+  // The body of a response, the bytes are written in the output buffer of the connection
+  private static final class NioOutput extends OutputStream {
+    private final NioExchange exchange;
+    private Framing framing;  // null if the headers are not sent
+    private long remaining;  // the number of bytes left in a body of fixed length
+    private boolean closed;
+
+    private NioOutput(NioExchange exchange) {
+      this.exchange = exchange;
+    }
+
+    private void start(Framing framing, long length) throws IOException {
+      this.framing = framing;
+      this.remaining = length;
+      if (framing == Framing.EMPTY || framing == Framing.DISCARD) {
+        exchange.connection.flush();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      Objects.checkFromIndexSize(offset, length, bytes.length);
+      if (framing == null) {
+        throw new IOException("headers not sent");
+      }
+      if (closed) {
+        throw new IOException("stream closed");
+      }
+      if (length == 0) {
+        return;
+      }
+      var connection = exchange.connection;
+      switch (framing) {
+        case EMPTY -> throw new IOException("too many bytes to write to stream");
+        case DISCARD -> {}
+        case FIXED -> {
+          if (length > remaining) {
+            throw new IOException("too many bytes to write to stream");
+          }
+          connection.write(bytes, offset, length);
+          remaining -= length;
+          if (remaining == 0) {
+            close();
+          }
+        }
+        case CHUNKED -> connection.writeChunk(bytes, offset, length);
+        case UNTIL_CLOSE -> connection.write(bytes, offset, length);
+      }
+    }
+
+    // returns true if the bytes of the file have been sent, false if they should be written in the stream
+    private boolean transferFrom(FileChannel file, long position, long count) throws IOException {
+      if (framing == Framing.DISCARD) {
+        return true;
+      }
+      if (framing != Framing.FIXED || closed || count > remaining) {
+        return false;
+      }
+      exchange.connection.transferFrom(file, position, count);
+      remaining -= count;
+      if (remaining == 0) {
+        close();
+      }
+      return true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (framing == null || closed || framing == Framing.DISCARD || framing == Framing.EMPTY) {
+        return;
+      }
+      var connection = exchange.connection;
+      connection.endChunk();
+      connection.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (framing == null || closed) {
+        return;
+      }
+      closed = true;
+      var connection = exchange.connection;
+      switch (framing) {
+        case EMPTY, DISCARD -> {}
+        case FIXED -> {
+          if (remaining != 0) {  // the body is truncated
+            exchange.keepAlive = false;
+          }
+          connection.flush();
+        }
+        case CHUNKED -> connection.endChunks();
+        case UNTIL_CLOSE -> connection.flush();
+      }
+    }
+  }
+
+  // An error of an HTTP/2 connection or of a stream (RFC 9113 7)
+  private static final class Http2Exception extends IOException {
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+        STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, CANCEL = 0x8, COMPRESSION_ERROR = 0x9,
+        ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+
+    private Http2Exception(int errorCode, String message) {
+      super(message);
+      this.errorCode = errorCode;
+    }
+  }
+
+  // An HTTP/2 connection without TLS (RFC 9113), either with prior knowledge or upgraded from HTTP/1.1.
+  // The frames are read by the selector thread without blocking, each stream is processed by a thread
+  // of the executor of the shard and the frames of the responses are written by those threads under a lock.
+  // The frames sent by the selector thread (acknowledgments, window updates, resets) are queued and written
+  // without blocking, by the selector thread if the lock is free, otherwise by the owner of the lock
+  private static final class Http2Session {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+    private static final int PREFACE_HEAD_LENGTH = 18;  // the part of the preface that looks like the head of a request
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int MAX_FRAME_SIZE = 16_384;  // the default and the maximum size of the frames received
+    private static final int BUFFER_SIZE = 32_768;  // the buffers of the connection can hold a whole frame
+    private static final int MAX_CONCURRENT_STREAMS = 128;
+    private static final int MAX_HEADER_BLOCK_SIZE = 65_536;
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int STREAM_WINDOW = 262_144;  // the receive window of a stream
+    private static final int CONNECTION_WINDOW = 16_777_216;  // the receive window of the connection
+    private static final Set<String> CONNECTION_HEADERS =
+        Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+        PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_ENABLE_PUSH = 0x2,
+        SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private final NioConnection connection;
+    private final HpackEncoder encoder = new HpackEncoder();  // used by the owner of the write lock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<byte[]> controlFrames = new ConcurrentLinkedQueue<>();
+    private volatile int peerHeaderTableSize = HpackTable.DEFAULT_SIZE;
+    private volatile int maxSendFrameSize = MAX_FRAME_SIZE;
+
+    // guarded by lock, the condition is signaled when a window grows, some data arrives or a stream is reset
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final HashMap<Integer, Http2Stream> streams = new HashMap<>();
+    private long connectionSendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private boolean closed;
+
+    // used by the reading thread
+    private final HpackDecoder decoder = new HpackDecoder();
+    private int prefaceIndex;  // the number of bytes of the preface already read
+    private int lastStreamId;
+    private boolean goingAway;  // the client will not open new streams
+    private int connectionReceiveWindow = CONNECTION_WINDOW;
+    private int connectionUnacknowledged;  // the bytes received and not yet acknowledged by a WINDOW_UPDATE
+    private int headerStreamId;  // the stream of the header block being read or 0
+    private int headerFlags;
+    private byte[] headerBlock = new byte[1_024];
+    private int headerBlockLength;
+
+    private Http2Session(NioConnection connection, int prefaceIndex) {
+      this.connection = connection;
+      this.prefaceIndex = prefaceIndex;
+    }
+
+    // switches a connection to HTTP/2, with prior knowledge the head of the preface is already read,
+    // with an upgrade the request becomes the stream 1, its body is already read
+    private static void start(NioConnection connection, NioExchange upgrade, byte[] settings, byte[] body)
+        throws IOException {
+      var session = new Http2Session(connection, upgrade == null? PREFACE_HEAD_LENGTH: 0);
+      if (settings != null) {
+        session.settings(settings);
+      }
+      connection.switchToHttp2(session);
+      session.writeLock.lock();
+      try {
+        if (upgrade != null) {
+          connection.put("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+        }
+        var serverSettings = ByteBuffer.allocate(12)
+            .putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS)
+            .putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW)
+            .array();
+        var frame = frame(SETTINGS, 0, 0, serverSettings);
+        connection.write(frame, 0, frame.length);
+        frame = windowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        connection.write(frame, 0, frame.length);
+        connection.flush();
+      } finally {
+        session.writeLock.unlock();
+      }
+      if (upgrade != null) {
+        var headers = upgrade.requestHeaders;
+        headers.remove("Connection");
+        headers.remove("Upgrade");
+        headers.remove("HTTP2-Settings");
+        var stream = new Http2Stream(session, 1, upgrade.method, upgrade.uri, headers, false);
+        if (body.length != 0) {
+          stream.data.add(body);
+        }
+        stream.endOfRequest = true;
+        session.lastStreamId = 1;
+        session.open(stream);
+      }
+      session.readFrames();  // the frames received with the preface
+      connection.interest(SelectionKey.OP_READ);
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+      var frame = new byte[FRAME_HEADER_SIZE + payload.length];
+      ByteBuffer.wrap(frame)
+          .put((byte) (payload.length >>> 16)).putShort((short) payload.length)
+          .put((byte) type).put((byte) flags).putInt(streamId)
+          .put(payload);
+      return frame;
+    }
+
+    private static byte[] windowUpdate(int streamId, int increment) {
+      return frame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static byte[] rstStream(int streamId, int errorCode) {
+      return frame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(errorCode).array());
+    }
+
+    // called by the selector thread
+    private void ready(int readyOps) {
+      if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+        connection.key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        var waiter = connection.waiter;
+        if (waiter != null) {
+          connection.waiter = null;
+          LockSupport.unpark(waiter);
+        } else {
+          flushControlFrames();
+        }
+      }
+      if ((readyOps & SelectionKey.OP_READ) != 0) {
+        if (connection.waiter == null) {
+          connection.deadline = NioServer.deadline(connection.shard.server.idleTimeout);
+        }
+        try {
+          int read;
+          do {
+            read = connection.fill();
+            if (read == -1) {
+              connection.close();
+              return;
+            }
+            readFrames();
+          } while (read > 0 && connection.channel.isOpen());
+        } catch (IOException e) {
+          connection.close();
+        }
+      }
+    }
+
+    // called when the connection is closed
+    private void closed() {
+      lock.lock();
+      try {
+        closed = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    // processes the frames fully received, a connection error sends a GOAWAY and closes the connection
+    private void readFrames() {
+      var input = connection.input;
+      try {
+        while (prefaceIndex < PREFACE.length) {
+          if (!input.hasRemaining()) {
+            return;
+          }
+          if (input.get() != PREFACE[prefaceIndex++]) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid preface");
+          }
+        }
+        while (input.remaining() >= FRAME_HEADER_SIZE) {
+          var position = input.position();
+          var length = (input.getShort(position) & 0xFFFF) << 8 | (input.get(position + 2) & 0xFF);
+          if (length > MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame too large");
+          }
+          if (input.remaining() < FRAME_HEADER_SIZE + length) {
+            return;
+          }
+          var type = input.get(position + 3) & 0xFF;
+          var flags = input.get(position + 4) & 0xFF;
+          var streamId = input.getInt(position + 5) & 0x7FFF_FFFF;
+          var payload = new byte[length];
+          input.get(position + FRAME_HEADER_SIZE, payload);
+          input.position(position + FRAME_HEADER_SIZE + length);
+          process(type, flags, streamId, payload);
+        }
+      } catch (Http2Exception e) {
+        goAway(e.errorCode);
+      }
+    }
+
+    private void process(int type, int flags, int streamId, byte[] payload) throws Http2Exception {
+      if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId)) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "header block interrupted");
+      }
+      switch (type) {
+        case DATA -> data(flags, streamId, payload);
+        case HEADERS -> headers(flags, streamId, payload);
+        case PRIORITY -> {
+          if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+          }
+          // the priorities are ignored
+        }
+        case RST_STREAM -> rstStream(streamId, payload);
+        case SETTINGS -> {
+          if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+          }
+          if ((flags & ACK) != 0) {
+            if (payload.length != 0) {
+              throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS acknowledgment with a payload");
+            }
+          } else {
+            settings(payload);
+            control(frame(SETTINGS, ACK, 0, new byte[0]));
+          }
+        }
+        case PUSH_PROMISE -> throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+        case PING -> {
+          if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+          }
+          if (payload.length != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid PING");
+          }
+          if ((flags & ACK) == 0) {
+            control(frame(PING, ACK, 0, payload));
+          }
+        }
+        case GOAWAY -> goingAway = true;
+        case WINDOW_UPDATE -> windowUpdate(streamId, payload);
+        case CONTINUATION -> {
+          if (headerStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+          }
+          appendHeaderBlock(payload, 0, payload.length);
+          if ((flags & END_HEADERS) != 0) {
+            endOfHeaders();
+          }
+        }
+        default -> {}  // the unknown frames are ignored
+      }
+    }
+
+    private void data(int flags, int streamId, byte[] payload) throws Http2Exception {
+      if (streamId == 0) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+      }
+      var offset = 0;
+      var length = payload.length;
+      if ((flags & PADDED) != 0) {
+        offset = 1;
+        length -= length == 0? 1: 1 + (payload[0] & 0xFF);
+        if (length < 0) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid padding");
+        }
+      }
+      // the window of the connection is updated on reception, the windows of the streams limit the memory
+      connectionReceiveWindow -= payload.length;
+      if (connectionReceiveWindow < 0) {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+      }
+      connectionUnacknowledged += payload.length;
+      if (connectionUnacknowledged >= CONNECTION_WINDOW / 2) {
+        control(windowUpdate(0, connectionUnacknowledged));
+        connectionReceiveWindow += connectionUnacknowledged;
+        connectionUnacknowledged = 0;
+      }
+      Http2Stream stream;
+      var errorCode = Http2Exception.NO_ERROR;
+      lock.lock();
+      try {
+        stream = streams.get(streamId);
+        if (stream == null) {
+          if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on an idle stream");
+          }
+          return;  // the stream is closed
+        }
+        stream.receiveWindow -= payload.length;
+        if (stream.endOfRequest) {
+          errorCode = Http2Exception.STREAM_CLOSED;
+        } else if (stream.receiveWindow < 0) {
+          errorCode = Http2Exception.FLOW_CONTROL_ERROR;
+        } else {
+          stream.unacknowledged += payload.length - length;  // the padding
+          if (length != 0) {
+            stream.data.add(Arrays.copyOfRange(payload, offset, offset + length));
+          }
+          stream.endOfRequest = (flags & END_STREAM) != 0;
+          changed.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (errorCode != Http2Exception.NO_ERROR) {
+        reset(stream, errorCode);
+      }
+    }
+
+    private void headers(int flags, int streamId, byte[] payload) throws Http2Exception {
+      if (streamId == 0 || (streamId & 1) == 0) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid stream " + streamId);
+      }
+      var start = 0;
+      var end = payload.length;
+      if ((flags & PADDED) != 0) {
+        start = 1;
+        end -= end == 0? 1: 1 + (payload[0] & 0xFF);
+      }
+      if ((flags & PRIORITY_FLAG) != 0) {
+        start += 5;
+      }
+      if (start > end) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid padding");
+      }
+      headerStreamId = streamId;
+      headerFlags = flags;
+      headerBlockLength = 0;
+      appendHeaderBlock(payload, start, end - start);
+      if ((flags & END_HEADERS) != 0) {
+        endOfHeaders();
+      }
+    }
+
+    private void appendHeaderBlock(byte[] bytes, int offset, int length) throws Http2Exception {
+      if (headerBlockLength + length > MAX_HEADER_BLOCK_SIZE) {
+        throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+      }
+      if (headerBlockLength + length > headerBlock.length) {
+        headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length << 1, headerBlockLength + length));
+      }
+      System.arraycopy(bytes, offset, headerBlock, headerBlockLength, length);
+      headerBlockLength += length;
+    }
+
+    private void endOfHeaders() throws Http2Exception {
+      var streamId = headerStreamId;
+      headerStreamId = 0;
+      // the header block is decoded even if the stream is refused to keep the dynamic table in sync
+      var fields = decoder.decode(headerBlock, headerBlockLength);
+      var endStream = (headerFlags & END_STREAM) != 0;
+      if (streamId <= lastStreamId) {  // the trailer fields of a request, they are ignored
+        Http2Stream stream;
+        lock.lock();
+        try {
+          stream = streams.get(streamId);
+          if (stream == null) {
+            return;  // the stream is closed
+          }
+          if (endStream && !stream.endOfRequest) {
+            stream.endOfRequest = true;
+            changed.signalAll();
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+        reset(stream, Http2Exception.PROTOCOL_ERROR);
+        return;
+      }
+      lastStreamId = streamId;
+      int count;
+      lock.lock();
+      try {
+        count = streams.size();
+      } finally {
+        lock.unlock();
+      }
+      if (goingAway || connection.shard.server.closed || count >= MAX_CONCURRENT_STREAMS) {
+        control(rstStream(streamId, Http2Exception.REFUSED_STREAM));
+        return;
+      }
+      var stream = request(streamId, fields, endStream);
+      if (stream == null) {
+        control(rstStream(streamId, Http2Exception.PROTOCOL_ERROR));
+        return;
+      }
+      open(stream);
+    }
+
+    // returns the stream of a request or null if the request is malformed (RFC 9113 8.1.1)
+    private Http2Stream request(int streamId, List<HeaderField> fields, boolean endStream) {
+      String method = null, scheme = null, authority = null, path = null;
+      var headers = new Headers();
+      StringBuilder cookie = null;
+      var regular = false;  // the pseudo-header fields come first
+      for(var field: fields) {
+        var name = field.name;
+        var value = field.value;
+        if (name.startsWith(":")) {
+          if (regular) {
+            return null;
+          }
+          switch (name) {
+            case ":method" -> {
+              if (method != null) {
+                return null;
+              }
+              method = value;
+            }
+            case ":scheme" -> {
+              if (scheme != null) {
+                return null;
+              }
+              scheme = value;
+            }
+            case ":authority" -> {
+              if (authority != null) {
+                return null;
+              }
+              authority = value;
+            }
+            case ":path" -> {
+              if (path != null) {
+                return null;
+              }
+              path = value;
+            }
+            default -> {
+              return null;
+            }
+          }
+          continue;
+        }
+        regular = true;
+        if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name) ||
+            (name.equals("te") && !value.equals("trailers"))) {
+          return null;
+        }
+        if (name.equals("cookie")) {  // the cookies may be split in several fields (RFC 9113 8.2.3)
+          cookie = cookie == null? new StringBuilder(value): cookie.append("; ").append(value);
+          continue;
+        }
+        try {
+          headers.add(name, value);
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+      if (method == null || scheme == null || path == null || path.isEmpty()) {
+        return null;
+      }
+      if (cookie != null) {
+        headers.add("Cookie", cookie.toString());
+      }
+      if (authority != null && !headers.containsKey("Host")) {
+        headers.add("Host", authority);
+      }
+      URI uri;
+      try {
+        uri = new URI(path);
+      } catch (URISyntaxException e) {
+        return null;
+      }
+      var expectContinue = !endStream && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"));
+      var stream = new Http2Stream(this, streamId, method, uri, headers, expectContinue);
+      stream.endOfRequest = endStream;
+      return stream;
+    }
+
+    private void rstStream(int streamId, byte[] payload) throws Http2Exception {
+      if (streamId == 0 || streamId > lastStreamId) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+      }
+      if (payload.length != 4) {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid RST_STREAM");
+      }
+      lock.lock();
+      try {
+        var stream = streams.remove(streamId);
+        if (stream != null) {
+          stream.reset = true;
+          changed.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    // applies the settings of a SETTINGS frame or of the HTTP2-Settings field of an upgrade
+    private void settings(byte[] payload) throws Http2Exception {
+      if (payload.length % 6 != 0) {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid SETTINGS");
+      }
+      var buffer = ByteBuffer.wrap(payload);
+      while (buffer.hasRemaining()) {
+        var identifier = buffer.getShort() & 0xFFFF;
+        var value = buffer.getInt() & 0xFFFF_FFFFL;
+        switch (identifier) {
+          case SETTINGS_HEADER_TABLE_SIZE -> peerHeaderTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+          case SETTINGS_ENABLE_PUSH -> {
+            if (value > 1) {
+              throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+            }
+          }
+          case SETTINGS_INITIAL_WINDOW_SIZE -> {
+            if (value > Integer.MAX_VALUE) {
+              throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+            }
+            lock.lock();
+            try {
+              var delta = value - initialSendWindow;
+              initialSendWindow = (int) value;
+              for(var stream: streams.values()) {
+                stream.sendWindow += delta;
+                if (stream.sendWindow > Integer.MAX_VALUE) {  // a connection error (RFC 9113 6.9.2)
+                  throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                }
+              }
+              changed.signalAll();
+            } finally {
+              lock.unlock();
+            }
+          }
+          case SETTINGS_MAX_FRAME_SIZE -> {
+            if (value < MAX_FRAME_SIZE || value > 16_777_215) {
+              throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+            }
+            maxSendFrameSize = (int) value;
+          }
+          default -> {}  // the other settings do not constrain a server
+        }
+      }
+    }
+
+    private void windowUpdate(int streamId, byte[] payload) throws Http2Exception {
+      if (payload.length != 4) {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+      }
+      var increment = ByteBuffer.wrap(payload).getInt() & 0x7FFF_FFFF;
+      Http2Stream stream = null;
+      var errorCode = Http2Exception.NO_ERROR;
+      lock.lock();
+      try {
+        if (streamId == 0) {
+          connectionSendWindow += increment;
+          if (increment == 0 || connectionSendWindow > Integer.MAX_VALUE) {
+            throw new Http2Exception(increment == 0? Http2Exception.PROTOCOL_ERROR: Http2Exception.FLOW_CONTROL_ERROR,
+                "invalid WINDOW_UPDATE");
+          }
+        } else {
+          stream = streams.get(streamId);
+          if (stream == null) {
+            return;  // the stream is closed
+          }
+          stream.sendWindow += increment;
+          if (increment == 0 || stream.sendWindow > Integer.MAX_VALUE) {
+            errorCode = increment == 0? Http2Exception.PROTOCOL_ERROR: Http2Exception.FLOW_CONTROL_ERROR;
+          }
+        }
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (errorCode != Http2Exception.NO_ERROR) {
+        reset(stream, errorCode);
+      }
+    }
+
+    // called by the selector thread when no frame has been received for the idle timeout,
+    // the connection is closed if it has no stream
+    private void idle() {
+      boolean idle;
+      lock.lock();
+      try {
+        idle = streams.isEmpty();
+      } finally {
+        lock.unlock();
+      }
+      if (idle) {
+        goAway(Http2Exception.NO_ERROR);
+      } else {
+        connection.deadline = NioServer.deadline(connection.shard.server.idleTimeout);
+      }
+    }
+
+    // called by the selector thread, cancels the streams that wait too long for the client
+    private void expire(long now) {
+      ArrayList<Http2Stream> expired = null;
+      lock.lock();
+      try {
+        for(var stream: streams.values()) {
+          if (stream.deadline != 0 && now - stream.deadline >= 0) {
+            if (expired == null) {
+              expired = new ArrayList<>();
+            }
+            expired.add(stream);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (expired != null) {
+        for(var stream: expired) {
+          reset(stream, Http2Exception.CANCEL);
+        }
+      }
+    }
+
+    // a connection error, the client is told the last stream processed and the connection is closed
+    private void goAway(int errorCode) {
+      control(frame(GOAWAY, 0, 0, ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode).array()));
+      connection.close();
+    }
+
+    private void open(Http2Stream stream) {
+      lock.lock();
+      try {
+        stream.sendWindow = initialSendWindow;
+        streams.put(stream.id, stream);
+      } finally {
+        lock.unlock();
+      }
+      try {
+        connection.shard.executor.execute(stream::process);
+      } catch (RejectedExecutionException e) {
+        reset(stream, Http2Exception.REFUSED_STREAM);
+      }
+    }
+
+    // resets a stream, its thread stops at the next read or write
+    private void reset(Http2Stream stream, int errorCode) {
+      lock.lock();
+      try {
+        stream.reset = true;
+        streams.remove(stream.id);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      control(rstStream(stream.id, errorCode));
+    }
+
+    // called when the thread of a stream ends, if the client has not sent the whole request,
+    // it is asked to stop (RFC 9113 8.1)
+    private void finish(Http2Stream stream) {
+      boolean incomplete;
+      lock.lock();
+      try {
+        incomplete = streams.remove(stream.id) != null && !stream.endOfRequest;
+        stream.reset = true;
+        stream.data.clear();
+      } finally {
+        lock.unlock();
+      }
+      if (incomplete) {
+        control(rstStream(stream.id, Http2Exception.NO_ERROR));
+      }
+    }
+
+    // reads the data of a stream, the bytes read are acknowledged when half of the window is consumed
+    private int read(Http2Stream stream, byte[] bytes, int offset, int length) throws IOException {
+      if (stream.expectContinue) {
+        stream.expectContinue = false;
+        if (stream.responseCode == -1) {
+          writeHeaders(stream, List.of(new HeaderField(":status", "100")), false, true);
+        }
+      }
+      int count;
+      var increment = 0;
+      lock.lock();
+      try {
+        var flushed = false;
+        while (stream.data.isEmpty()) {
+          if (stream.endOfRequest) {
+            return -1;
+          }
+          if (stream.reset || closed) {
+            throw new IOException("stream reset");
+          }
+          if (!flushed) {  // the client may wait for the response before sending the rest of the request
+            lock.unlock();
+            try {
+              flush();
+            } finally {
+              lock.lock();
+            }
+            flushed = true;
+            continue;
+          }
+          await(stream);
+        }
+        var array = stream.data.peek();
+        count = Math.min(length, array.length - stream.dataOffset);
+        System.arraycopy(array, stream.dataOffset, bytes, offset, count);
+        stream.dataOffset += count;
+        if (stream.dataOffset == array.length) {
+          stream.data.poll();
+          stream.dataOffset = 0;
+        }
+        stream.unacknowledged += count;
+        if (stream.unacknowledged >= STREAM_WINDOW / 2 && !stream.endOfRequest) {
+          increment = stream.unacknowledged;
+          stream.unacknowledged = 0;
+          stream.receiveWindow += increment;
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (increment != 0) {
+        control(windowUpdate(stream.id, increment));
+      }
+      return count;
+    }
+
+    // waits on the condition for the client, the selector thread resets the stream
+    // if the client does not send or receive any byte in time, the lock must be held
+    private void await(Http2Stream stream) throws IOException {
+      stream.deadline = NioServer.deadline(connection.shard.server.bodyTimeout);
+      try {
+        await();
+      } finally {
+        stream.deadline = 0;
+      }
+    }
+
+    // waits on the condition, the lock must be held
+    private void await() throws IOException {
+      try {
+        changed.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    // reserves the windows of the connection and of the stream for a DATA frame of at most length bytes,
+    // the frames already written are flushed before waiting for a WINDOW_UPDATE of the client
+    private int reserve(Http2Stream stream, int length) throws IOException {
+      lock.lock();
+      try {
+        var flushed = false;
+        for(;;) {
+          if (stream.reset || closed) {
+            throw new IOException("stream reset");
+          }
+          var available = Math.min(connectionSendWindow, stream.sendWindow);
+          if (available > 0) {
+            var count = (int) Math.min(Math.min(available, length), maxSendFrameSize);
+            connectionSendWindow -= count;
+            stream.sendWindow -= count;
+            return count;
+          }
+          if (!flushed) {
+            lock.unlock();
+            try {
+              flush();
+            } finally {
+              lock.lock();
+            }
+            flushed = true;
+            continue;
+          }
+          await(stream);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    // writes the header block of a response, split in CONTINUATION frames if necessary
+    private void writeHeaders(Http2Stream stream, List<HeaderField> fields, boolean endStream, boolean flush)
+        throws IOException {
+      if (stream.reset) {
+        throw new IOException("stream reset");
+      }
+      writeLock.lock();
+      try {
+        drainControlFrames();
+        encoder.resize(peerHeaderTableSize);
+        var block = encoder.encode(fields);
+        var maxFrameSize = maxSendFrameSize;
+        var type = HEADERS;
+        var offset = 0;
+        do {
+          var length = Math.min(block.length - offset, maxFrameSize);
+          var flags = (offset + length == block.length? END_HEADERS: 0) | (type == HEADERS && endStream? END_STREAM: 0);
+          writeFrameHeader(length, type, flags, stream.id);
+          connection.write(block, offset, length);
+          offset += length;
+          type = CONTINUATION;
+        } while (offset < block.length);
+        if (flush) {
+          connection.flush();
+        }
+      } finally {
+        unlockWrite();
+      }
+    }
+
+    // writes the bytes as DATA frames in the limits of the windows
+    private void writeData(Http2Stream stream, byte[] bytes, int length, boolean endStream, boolean flush)
+        throws IOException {
+      var offset = 0;
+      while (offset < length) {
+        var count = reserve(stream, length - offset);
+        var last = offset + count == length;
+        writeFrame(DATA, last && endStream? END_STREAM: 0, stream.id, bytes, offset, count, last && flush);
+        offset += count;
+      }
+      if (length == 0) {
+        if (endStream) {
+          writeFrame(DATA, END_STREAM, stream.id, bytes, 0, 0, flush);
+        } else if (flush) {
+          flush();
+        }
+      }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] bytes, int offset, int length, boolean flush)
+        throws IOException {
+      writeLock.lock();
+      try {
+        drainControlFrames();
+        writeFrameHeader(length, type, flags, streamId);
+        connection.write(bytes, offset, length);
+        if (flush) {
+          connection.flush();
+        }
+      } finally {
+        unlockWrite();
+      }
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+      var header = new byte[FRAME_HEADER_SIZE];
+      ByteBuffer.wrap(header)
+          .put((byte) (length >>> 16)).putShort((short) length)
+          .put((byte) type).put((byte) flags).putInt(streamId);
+      connection.write(header, 0, header.length);
+    }
+
+    // sends the frames already written
+    private void flush() throws IOException {
+      writeLock.lock();
+      try {
+        drainControlFrames();
+        connection.flush();
+      } finally {
+        unlockWrite();
+      }
+    }
+
+    // the owner of the write lock writes the control frames before its own frames
+    private void drainControlFrames() throws IOException {
+      for(byte[] frame; (frame = controlFrames.poll()) != null;) {
+        connection.write(frame, 0, frame.length);
+      }
+    }
+
+    private void unlockWrite() {
+      writeLock.unlock();
+      if (!controlFrames.isEmpty()) {  // queued while the lock was held
+        flushControlFrames();
+      }
+    }
+
+    // sends a control frame without blocking
+    private void control(byte[] frame) {
+      controlFrames.add(frame);
+      flushControlFrames();
+    }
+
+    // writes the control frames and the pending bytes without blocking, if another thread owns the write lock,
+    // it writes the control frames, if the channel is full, the selector thread resumes the write
+    // when the channel becomes writable
+    private void flushControlFrames() {
+      while (writeLock.tryLock()) {
+        boolean pending;
+        try {
+          var output = connection.output;
+          for(byte[] frame; (frame = controlFrames.peek()) != null && frame.length <= output.remaining();) {
+            output.put(controlFrames.poll());
+          }
+          output.flip();
+          try {
+            connection.channel.write(output);
+          } finally {
+            output.compact();
+          }
+          pending = output.position() != 0;
+        } catch (IOException e) {
+          connection.close();
+          return;
+        } finally {
+          writeLock.unlock();
+        }
+        if (pending) {
+          try {
+            connection.interest(SelectionKey.OP_WRITE);
+          } catch (IOException e) {
+            // the connection is closed
+          }
+          return;
+        }
+        if (controlFrames.isEmpty()) {
+          return;
+        }
+      }
+    }
+  }
+
+  // A stream of an HTTP/2 connection, the request is processed by a thread of the executor,
+  // the body of the request is received by the reading thread, the response is sent as HEADERS and DATA frames
+  private static final class Http2Stream extends HttpExchange {
+    private final Http2Session session;
+    private final int id;
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Http2Input requestBody = new Http2Input(this);
+    private final Http2Output responseBody = new Http2Output(this);
+    private InputStream filteredRequestBody;  // the body wrapped by a filter or null
+    private OutputStream filteredResponseBody;  // the body wrapped by a filter or null
+    private boolean expectContinue;  // true if the response "100" must be sent before reading the body
+    private int responseCode = -1;
+    private HashMap<String, Object> attributes;  // allocated lazily
+
+    // guarded by the lock of the session
+    private final ArrayDeque<byte[]> data = new ArrayDeque<>();  // the data received and not yet read
+    private int dataOffset;  // the number of bytes already read of the first array
+    private boolean endOfRequest;  // the client has sent the whole request
+    private volatile boolean reset;  // the stream is reset or closed
+    private long sendWindow;
+    private int receiveWindow = Http2Session.STREAM_WINDOW;
+    private int unacknowledged;  // the bytes read and not yet acknowledged by a WINDOW_UPDATE
+    private long deadline;  // the time (System.nanoTime) the wait for the client times out or 0
+
+    private Http2Stream(Http2Session session, int id, String method, URI uri, Headers requestHeaders,
+                        boolean expectContinue) {
+      this.session = session;
+      this.id = id;
+      this.method = method;
+      this.uri = uri;
+      this.requestHeaders = requestHeaders;
+      this.expectContinue = expectContinue;
+    }
+
+    private void process() {
+      var server = session.connection.shard.server;
+      server.enter();
+      try {
+        try {
+          server.handler.handle(this);
+        } catch (IOException | RuntimeException e) {
+          // the handler has reported the exception, the stream is reset if the response is started
+          if (responseCode == -1) {
+            responseHeaders.clear();
+            sendResponseHeaders(500, -1);
+          } else {
+            session.reset(this, Http2Exception.INTERNAL_ERROR);
+          }
+          return;
+        }
+        if (responseCode == -1) {
+          sendResponseHeaders(500, -1);
+        }
+        closeResponseBody();
+      } catch (IOException e) {
+        // the stream is reset or the connection is closed
+      } finally {
+        session.finish(this);
+        server.exit();
+      }
+    }
+
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+      if (this.responseCode != -1) {
+        throw new IOException("headers already sent");
+      }
+      this.responseCode = responseCode;
+      var fields = new ArrayList<HeaderField>();
+      fields.add(new HeaderField(":status", Integer.toString(responseCode)));
+      if (!responseHeaders.containsKey("Date")) {
+        fields.add(new HeaderField("date", NioExchange.date()));
+      }
+      for(var entry: responseHeaders.entrySet()) {
+        var name = entry.getKey().toLowerCase(Locale.ROOT);
+        if (name.equals("content-length") || Http2Session.CONNECTION_HEADERS.contains(name)) {
+          continue;
+        }
+        for(var value: entry.getValue()) {
+          fields.add(new HeaderField(name, value));
+        }
+      }
+      Framing framing;
+      long length;
+      if (responseCode < 200 || responseCode == 204 || responseCode == 304) {
+        framing = Framing.EMPTY;
+        length = -1;
+      } else if (method.equals("HEAD")) {
+        framing = Framing.DISCARD;
+        length = responseLength > 0? responseLength: -1;
+      } else if (responseLength > 0) {
+        framing = Framing.FIXED;
+        length = responseLength;
+      } else if (responseLength == 0) {
+        framing = Framing.CHUNKED;  // DATA frames until the end of the stream
+        length = -1;
+      } else {
+        framing = Framing.EMPTY;
+        length = 0;
+      }
+      if (length != -1) {
+        fields.add(new HeaderField("content-length", Long.toString(length)));
+      }
+      var endStream = framing == Framing.EMPTY || framing == Framing.DISCARD;
+      session.writeHeaders(this, fields, endStream, endStream);
+      responseBody.start(framing, framing == Framing.FIXED? length: 0);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+      return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+      return null;
+    }
+
+    // the stream wrapped by a filter is closed first, so it can flush its bytes
+    private void closeResponseBody() throws IOException {
+      if (filteredResponseBody != null) {
+        filteredResponseBody.close();
+      }
+      responseBody.close();
+    }
+
+    @Override
+    public void close() {
+      try {
+        closeResponseBody();
+      } catch (IOException e) {
+        // the stream is reset
+      }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+      return filteredRequestBody == null? requestBody: filteredRequestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      return filteredResponseBody == null? responseBody: filteredResponseBody;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return session.connection.remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return session.connection.localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+      return "HTTP/2.0";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes == null? null: attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (attributes == null) {
+        attributes = new HashMap<>();
+      }
+      attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream input, OutputStream output) {
+      if (input != null) {
+        filteredRequestBody = input;
+      }
+      if (output != null) {
+        filteredResponseBody = output;
+      }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+      return null;
+    }
+  }
+
+  // The body of a request, the DATA frames are queued in the stream by the reading thread
+  private static final class Http2Input extends InputStream {
+    private final Http2Stream stream;
+
+    private Http2Input(Http2Stream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      var bytes = new byte[1];
+      return read(bytes, 0, 1) == -1? -1: bytes[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      Objects.checkFromIndexSize(offset, length, bytes.length);
+      if (length == 0) {
+        return 0;
+      }
+      return stream.session.read(stream, bytes, offset, length);
+    }
+  }
+
+  // The body of a response, the bytes are buffered and sent as DATA frames
+  private static final class Http2Output extends OutputStream {
+    private final Http2Stream stream;
+    private Framing framing;  // null if the headers are not sent
+    private long remaining;  // the number of bytes left in a body of fixed length
+    private byte[] buffer;  // at most the size of a frame
+    private int count;  // the number of bytes in the buffer
+    private boolean closed;
+
+    private Http2Output(Http2Stream stream) {
+      this.stream = stream;
+    }
+
+    private void start(Framing framing, long length) {
+      this.framing = framing;
+      this.remaining = length;
+      if (framing == Framing.FIXED || framing == Framing.CHUNKED) {
+        buffer = new byte[(int) (framing == Framing.FIXED? Math.min(length, Http2Session.MAX_FRAME_SIZE): Http2Session.MAX_FRAME_SIZE)];
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      Objects.checkFromIndexSize(offset, length, bytes.length);
+      if (framing == null) {
+        throw new IOException("headers not sent");
+      }
+      if (closed) {
+        throw new IOException("stream closed");
+      }
+      if (length == 0 || framing == Framing.DISCARD) {
         return;
       }
-      for(;;) {
-        parseArrayValue(token, lexer, jsonArray);
-        token = lexer.next();
-        if (token.is(Kind.RIGHT_BRACKET)) {
-          return;
+      if (framing == Framing.EMPTY || (framing == Framing.FIXED && length > remaining)) {
+        throw new IOException("too many bytes to write to stream");
+      }
+      remaining -= length;
+      while (length > 0) {
+        if (count == buffer.length) {
+          stream.session.writeData(stream, buffer, count, false, false);
+          count = 0;
         }
-        token.expect(Kind.COMMA);
-        token = lexer.next();
+        var size = Math.min(length, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, size);
+        count += size;
+        offset += size;
+        length -= size;
+      }
+      if (framing == Framing.FIXED && remaining == 0) {
+        close();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (framing == null || closed || framing == Framing.DISCARD || framing == Framing.EMPTY) {
+        return;
+      }
+      stream.session.writeData(stream, buffer, count, false, true);
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (framing == null || closed) {
+        return;
+      }
+      closed = true;
+      if (framing == Framing.EMPTY || framing == Framing.DISCARD) {
+        return;
       }
+      if (framing == Framing.FIXED && remaining != 0) {  // the body is truncated
+        stream.session.reset(stream, Http2Exception.INTERNAL_ERROR);
+        return;
+      }
+      stream.session.writeData(stream, buffer, count, true, true);
+      count = 0;
     }
   }
 
-  private static final class JSONPrettyPrinter {
-    private static String toJSON(Object o) {
-      if (o instanceof Collection<?> collection) {
-        return toJSONArray(collection.stream());
+  // A header field and an entry of the tables of HPACK
+  private record HeaderField(String name, String value) {
+    // the size of an entry of the dynamic table (RFC 7541 4.1)
+    private int size() {
+      return name.length() + value.length() + 32;
+    }
+  }
+
+  // The static and the dynamic table of HPACK (RFC 7541 2.3), the entries of the dynamic table are indexed
+  // after the static table, the most recent first, the oldest entries are evicted when the table is full
+  private static final class HpackTable {
+    private static final int DEFAULT_SIZE = 4_096;
+    private static final HeaderField[] STATIC_TABLE = fields(
+        ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+        ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+        ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+        "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+        "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+        "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+        "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+        "expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+        "if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+        "location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+        "referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+        "strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+        "www-authenticate", "");
+    private static final HashMap<HeaderField, Integer> STATIC_INDEXES = new HashMap<>();
+    private static final HashMap<String, Integer> STATIC_NAME_INDEXES = new HashMap<>();
+    static {
+      for(var i = STATIC_TABLE.length; --i >= 0;) {  // the lowest index wins
+        STATIC_INDEXES.put(STATIC_TABLE[i], i + 1);
+        STATIC_NAME_INDEXES.put(STATIC_TABLE[i].name, i + 1);
       }
-      if (o instanceof Iterable<?> iterable) {
-        return toJSONArray(StreamSupport.stream(spliteratorUnknownSize(iterable.iterator(), 0), false));
+    }
+
+    private static HeaderField[] fields(String... namesAndValues) {
+      var fields = new HeaderField[namesAndValues.length / 2];
+      for(var i = 0; i < fields.length; i++) {
+        fields[i] = new HeaderField(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
       }
-      if (o instanceof Stream<?> stream) {
-        return toJSONArray(stream);
+      return fields;
+    }
+
+    private final ArrayList<HeaderField> entries = new ArrayList<>();  // the oldest entry first
+    private int size;
+    private int maxSize = DEFAULT_SIZE;
+
+    private HeaderField get(int index) throws Http2Exception {
+      if (index > 0 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
       }
-      if (o instanceof Map<?,?> map) {
-        return toJSONObject(map);
+      var position = entries.size() - (index - STATIC_TABLE.length);
+      if (index <= 0 || position < 0) {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid index " + index);
       }
-      if (o instanceof Record record) {
-        return toJSONObject(record);
+      return entries.get(position);
+    }
+
+    // an entry larger than the table empties the table
+    private void add(HeaderField field) {
+      entries.add(field);
+      size += field.size();
+      evict();
+    }
+
+    private void resize(int maxSize) {
+      this.maxSize = maxSize;
+      evict();
+    }
+
+    private void evict() {
+      while (size > maxSize) {
+        size -= entries.remove(0).size();
       }
-      throw new IllegalStateException("unknown json object " + o);
     }
-    private static String toJSONItem(Object item) {
-      if (item == null) {
-        return "null";
+
+    // returns the index of the field, or minus the index of a field with the same name, or 0
+    private int indexOf(HeaderField field) {
+      var index = STATIC_INDEXES.get(field);
+      if (index != null) {
+        return index;
+      }
+      var nameIndex = STATIC_NAME_INDEXES.getOrDefault(field.name, 0);
+      for(var i = entries.size(); --i >= 0;) {
+        var entry = entries.get(i);
+        if (entry.name.equals(field.name)) {
+          var entryIndex = STATIC_TABLE.length + entries.size() - i;
+          if (entry.value.equals(field.value)) {
+            return entryIndex;
+          }
+          if (nameIndex == 0) {
+            nameIndex = entryIndex;
+          }
+        }
+      }
+      return -nameIndex;
+    }
+  }
+
+  // The decoder of the header blocks sent by a client (RFC 7541 6), the strings may be Huffman encoded
+  private static final class HpackDecoder {
+    // the lengths of the codes of the 256 bytes and of EOS, the Huffman code of HPACK is canonical,
+    // so the codes are derived from their lengths (RFC 7541 Appendix B)
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int[] FIRST_CODES = new int[MAX_CODE_LENGTH + 1];  // the first code of each length
+    private static final int[] FIRST_INDEXES = new int[MAX_CODE_LENGTH + 1];  // the index of the first code of each length
+    private static final int[] COUNTS = new int[MAX_CODE_LENGTH + 1];  // the number of codes of each length
+    private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];  // the symbols sorted by code
+    static {
+      for(var length: HUFFMAN_LENGTHS) {
+        COUNTS[length]++;
+      }
+      var code = 0;
+      var index = 0;
+      for(var length = 1; length <= MAX_CODE_LENGTH; length++) {
+        FIRST_CODES[length] = code;
+        FIRST_INDEXES[length] = index;
+        code = (code + COUNTS[length]) << 1;
+        index += COUNTS[length];
+      }
+      var nextIndexes = FIRST_INDEXES.clone();
+      for(var symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+        SYMBOLS[nextIndexes[HUFFMAN_LENGTHS[symbol]]++] = symbol;
+      }
+    }
+
+    private final HpackTable table = new HpackTable();
+    private byte[] block;
+    private int position;
+    private int limit;
+
+    private List<HeaderField> decode(byte[] block, int length) throws Http2Exception {
+      this.block = block;
+      this.position = 0;
+      this.limit = length;
+      var fields = new ArrayList<HeaderField>();
+      while (position < limit) {
+        var b = block[position];
+        if ((b & 0x80) != 0) {  // indexed field
+          fields.add(table.get(integer(7)));
+        } else if ((b & 0x40) != 0) {  // literal field with incremental indexing
+          var field = literal(6);
+          table.add(field);
+          fields.add(field);
+        } else if ((b & 0x20) != 0) {  // dynamic table size update
+          var maxSize = integer(5);
+          if (maxSize > HpackTable.DEFAULT_SIZE) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid table size " + maxSize);
+          }
+          table.resize(maxSize);
+        } else {  // literal field without indexing or never indexed
+          fields.add(literal(4));
+        }
+      }
+      return fields;
+    }
+
+    private HeaderField literal(int prefix) throws Http2Exception {
+      var index = integer(prefix);
+      var name = index == 0? string(): table.get(index).name;
+      return new HeaderField(name, string());
+    }
+
+    private int integer(int prefix) throws Http2Exception {
+      var mask = (1 << prefix) - 1;
+      var value = block[position++] & mask;
+      if (value < mask) {
+        return value;
+      }
+      for(var shift = 0; position < limit && shift <= 21; shift += 7) {
+        var b = block[position++];
+        value += (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
       }
-      if (item instanceof String) {
-        return "\"" + item + '"';
+      throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid integer");
+    }
+
+    private String string() throws Http2Exception {
+      if (position == limit) {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "string expected");
       }
-      if (item instanceof Boolean || item instanceof Integer || item instanceof Double) {
-        return item.toString();
+      var huffman = (block[position] & 0x80) != 0;
+      var length = integer(7);
+      if (length > limit - position) {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "string too long");
       }
-      return toJSON(item);
+      var text = huffman? huffman(block, position, length): new String(block, position, length, ISO_8859_1);
+      position += length;
+      return text;
     }
-    private static String toJSONArray(Stream<?> stream) {
-      return stream.map(JSONPrettyPrinter::toJSONItem).collect(joining(", ", "[", "]"));
+
+    // decodes the code bit by bit, the codes of a given length are consecutive
+    private static String huffman(byte[] bytes, int offset, int length) throws Http2Exception {
+      var builder = new StringBuilder(length + (length >> 1));
+      var code = 0;
+      var codeLength = 0;
+      for(var i = offset; i < offset + length; i++) {
+        var b = bytes[i];
+        for(var bit = 7; bit >= 0; bit--) {
+          code = code << 1 | ((b >>> bit) & 1);
+          codeLength++;
+          var index = code - FIRST_CODES[codeLength];
+          if (index >= 0 && index < COUNTS[codeLength]) {
+            var symbol = SYMBOLS[FIRST_INDEXES[codeLength] + index];
+            if (symbol == EOS) {
+              throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in a string");
+            }
+            builder.append((char) symbol);
+            code = 0;
+            codeLength = 0;
+          } else if (codeLength == MAX_CODE_LENGTH) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid Huffman code");
+          }
+        }
+      }
+      // the padding is the prefix of EOS, all ones, shorter than a byte
+      if (codeLength > 7 || code != (1 << codeLength) - 1) {
+        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid Huffman padding");
+      }
+      return builder.toString();
     }
-    private static String toJSONObject(Map<?,?> map) {
-      return map.entrySet().stream()
-          .map(e -> "\"" + e.getKey() + "\": " + toJSONItem(e.getValue()))
-          .collect(joining(", ", "{", "}"));
+  }
+
+  // The encoder of the header blocks of the responses (RFC 7541 6), the strings are not Huffman encoded
+  // and the fields that change with each response are not added to the dynamic table
+  private static final class HpackEncoder {
+    private final HpackTable table = new HpackTable();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private int sizeUpdate = -1;  // the size to signal at the start of the next header block or -1
+
+    // the dynamic table can not be larger than the one of the decoder of the client
+    private void resize(int peerSize) {
+      var maxSize = Math.min(peerSize, HpackTable.DEFAULT_SIZE);
+      if (maxSize != table.maxSize) {
+        table.resize(maxSize);
+        sizeUpdate = maxSize;
+      }
     }
-    private static Object accessor(Method accessor, Record record) {
-      try {
-        return accessor.invoke(record);
-      } catch (IllegalAccessException e) {
-        throw (IllegalAccessError) new IllegalAccessError().initCause(e);
-      } catch (InvocationTargetException e) {
-        var cause = e.getCause();
-        if (cause instanceof RuntimeException runtimeException) {
-          throw runtimeException;
+
+    private byte[] encode(List<HeaderField> fields) {
+      block.reset();
+      if (sizeUpdate != -1) {
+        integer(0x20, 5, sizeUpdate);
+        sizeUpdate = -1;
+      }
+      for(var field: fields) {
+        var index = table.indexOf(field);
+        if (index > 0) {  // indexed field
+          integer(0x80, 7, index);
+          continue;
+        }
+        var indexed = !field.name.equals("date") && !field.name.equals("content-length");
+        if (indexed) {  // literal field with incremental indexing
+          integer(0x40, 6, -index);
+        } else {  // literal field without indexing
+          integer(0x00, 4, -index);
         }
-        if (cause instanceof Error error) {
-          throw error;
+        if (index == 0) {
+          string(field.name);
         }
-        throw new UndeclaredThrowableException(cause);
+        string(field.value);
+        if (indexed) {
+          table.add(field);
+        }
+      }
+      return block.toByteArray();
+    }
+
+    private void integer(int flags, int prefix, int value) {
+      var mask = (1 << prefix) - 1;
+      if (value < mask) {
+        block.write(flags | value);
+        return;
+      }
+      block.write(flags | mask);
+      value -= mask;
+      while (value >= 0x80) {
+        block.write((value & 0x7F) | 0x80);
+        value >>>= 7;
       }
+      block.write(value);
     }
-    private static String toJSONObject(Record record) {
-      return Arrays.stream(record.getClass().getRecordComponents())
-          .map(c -> "\"" + c.getName() + "\": " + toJSONItem(accessor(c.getAccessor(), record)))
-          .collect(joining(", ", "{", "}"));
+
+    private void string(String text) {
+      integer(0x00, 7, text.length());
+      for(var i = 0; i < text.length(); i++) {
+        block.write(text.charAt(i));
+      }
+    }
+  }
+
+  private enum VirtualThreading implements Threading { INSTANCE }
+  private record PlatformThreading(int threads) implements Threading {}
+  private record ExecutorThreading(Executor executor) implements Threading {}
+
+  private enum HttpServerTransport implements Transport { INSTANCE }
+  private record NioTransport(int acceptors) implements Transport {
+    private static final NioTransport DEFAULT = new NioTransport(1);
+  }
+
+  // executor is null for the default scheduler of the JDK or a work-stealing scheduler,
+  // parallelism is the number of carrier threads of the pool owned by each server or 0
+  private record SchedulerImpl(Executor executor, int parallelism) implements Scheduler {
+    private static final SchedulerImpl DEFAULT = new SchedulerImpl(null, 0);
+
+    // the pool of carrier threads owned by a server or null,
+    // the carrier threads are named "jexpress-carrier-" followed by their index in the pool
+    private ForkJoinPool newPool() {
+      if (parallelism == 0) {
+        return null;
+      }
+      ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+        var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("jexpress-carrier-" + thread.getPoolIndex());
+        return thread;
+      };
+      return new ForkJoinPool(parallelism, factory, null, true);
     }
   }
 
@@ -729,7 +6554,7 @@ public class JExpress {
       }
     }
 
-    private final Executor executor;
+    private final Executor executor;  // null to use the default scheduler of the JDK
 
     public VirtualThreadExecutor(Executor executor) {
       this.executor = executor;
@@ -739,7 +6564,9 @@ public class JExpress {
     public void execute(Runnable command) {
       try {
         var builder = OF_VIRTUAL.invokeExact();
-        SET_EXECUTOR.invokeExact(builder, (Object) executor);
+        if (executor != null) {
+          SET_EXECUTOR.invokeExact(builder, (Object) executor);
+        }
         BUILDER_START.invokeExact(builder, command);
       } catch (Throwable e) {
         e.printStackTrace(System.err);
@@ -756,7 +6583,7 @@ public class JExpress {
       var ofVirtual = publicLookup().findStatic(Thread.class, "ofVirtual", methodType(ofVirtualClass));
       try {
         ofVirtual.invoke();
-        executor = new VirtualThreadExecutor(Executors.newSingleThreadExecutor());
+        executor = new VirtualThreadExecutor(null);
       } catch(UnsupportedOperationException e) {
         out.println("WARNING: Virtual threads are not enabled, use --enable-preview");
         executor = null;
@@ -774,10 +6601,11 @@ public class JExpress {
     void accept(RequestImpl request, ResponseImpl response) throws IOException;
   }
 
-  private Pipeline pipeline = (request, response) -> {
-    var message = "no match " + request.method() + " " + request.path();
-    response.status(404).send("<html><h2>" + message + "</h2></html>");
-  };
+  private final RouteTrie routes = new RouteTrie();
+  private int routeCount;
+  private RequestLogger logger;  // null if the requests are not logged
+  private CompressionOptions compression;  // null if the responses are not compressed
+  private Scheduler scheduler = Scheduler.defaultScheduler();
 
   /**
    * Routes an HTTP request if the HTTP method is GET.
@@ -786,7 +6614,7 @@ public class JExpress {
    *        HTTP request to create an HTTP response.
    */
   public void get(String path, Callback callback) {
-    method("GET", path, callback);
+    method(HttpMethod.GET, path, callback);
   }
 
   /**
@@ -796,7 +6624,7 @@ public class JExpress {
    *        HTTP request to create an HTTP response.
    */
   public void post(String path, Callback callback) {
-    method("POST", path, callback);
+    method(HttpMethod.POST, path, callback);
   }
 
   /**
@@ -806,7 +6634,7 @@ public class JExpress {
    *        HTTP request to create an HTTP response.
    */
   public void put(String path, Callback callback) {
-    method("PUT", path, callback);
+    method(HttpMethod.PUT, path, callback);
   }
 
   /**
@@ -816,17 +6644,11 @@ public class JExpress {
    *        HTTP request to create an HTTP response.
    */
   public void delete(String path, Callback callback) {
-    method("DELETE", path, callback);
+    method(HttpMethod.DELETE, path, callback);
   }
 
-  private void method(String method, String path, Callback callback) {
-    use(path, (request, response, chain) -> {
-      if (request.method().equalsIgnoreCase(method)) {
-        callback.accept(request, response);
-      } else {
-        chain.next();
-      }
-    });
+  private void method(HttpMethod method, String path, Callback callback) {
+    addRoute(method, path, (request, response, chain) -> callback.accept(request, response));
   }
 
   /**
@@ -849,17 +6671,85 @@ public class JExpress {
    * @param handler the handler called if the requested path match
    */
   public void use(String path, Handler handler) {
-    var oldPipeline = pipeline;
-    var matcher = matcher(path);
-    pipeline = (request, response) -> {
-      var paramsOpt = matcher.apply(request.components);
-      if (paramsOpt.isPresent()) {
-        request.exchange.setAttribute("params", paramsOpt.orElseThrow());
-        handler.handle(request, response, () -> oldPipeline.accept(request, response));
-      } else {
-        oldPipeline.accept(request, response);
-      }
-    };
+    addRoute(null, path, handler);
+  }
+
+  private void addRoute(HttpMethod method, String path, Handler handler) {
+    routes.add(Route.of(routeCount++, method, path, handler));
+  }
+
+  /**
+   * Sets the scheduler of the virtual threads used to process the requests.
+   * By default, the default scheduler of the JDK is used.
+   * For example,
+   * <pre>
+   *   app.scheduler(Scheduler.workStealing(4));
+   * </pre>
+   * @param scheduler the scheduler of the virtual threads
+   */
+  public void scheduler(Scheduler scheduler) {
+    this.scheduler = Objects.requireNonNull(scheduler);
+  }
+
+  // carriers is null for the default scheduler of the JDK
+  private static Executor executor(Executor carriers) {
+    if (EXECUTOR == null) {  // no virtual thread
+      return carriers;
+    }
+    return carriers == null? EXECUTOR: new VirtualThreadExecutor(carriers);
+  }
+
+  /**
+   * Sets the logger called each time a request has been processed.
+   * By default, the requests are not logged.
+   * For example,
+   * <pre>
+   *   app.logger(accessLog(Path.of("access.log"), LogFormat.COMMON));
+   * </pre>
+   * @param logger the logger called for each request
+   * @see #accessLog(Path, LogFormat)
+   */
+  public void logger(RequestLogger logger) {
+    this.logger = Objects.requireNonNull(logger);
+  }
+
+  /**
+   * Enables the compression of the responses.
+   * The textual bodies (HTML, CSS, JavaScript, JSON, etc) are compressed using gzip or deflate
+   * if the client accepts it, the static files are compressed once and kept in memory if they are small
+   * enough, a precompressed sibling file ("file.gz") is sent instead if it exists.
+   * By default, the responses are not compressed.
+   * For example,
+   * <pre>
+   *   app.compression(CompressionOptions.of());
+   * </pre>
+   * @param options the options of the compression
+   */
+  public void compression(CompressionOptions options) {
+    this.compression = Objects.requireNonNull(options);
+  }
+
+  /**
+   * Creates an access log that appends the log entries to a file from a background thread.
+   * The file is created if it does not exist.
+   * @param file the path of the log file
+   * @param format the format of the log lines
+   * @return a new access log that must be closed to write the pending entries
+   * @throws IOException if an I/O error occurs when opening the file.
+   * @see #logger(RequestLogger)
+   */
+  public static AccessLog accessLog(Path file, LogFormat format) throws IOException {
+    Objects.requireNonNull(format);
+    var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    return new AccessLogWriter(channel, format);
+  }
+
+  /**
+   * Returns the pool of buffers used by all the servers to write the bodies of the responses.
+   * @return the pool of buffers used to write the bodies of the responses.
+   */
+  public static BufferPool bufferPool() {
+    return BufferPoolImpl.POOL;
   }
 
   /**
@@ -879,34 +6769,215 @@ public class JExpress {
     };
   }
 
+  /**
+   * Serve static files from a root directory, the small files are kept in memory
+   * with their content type and their length, the least recently used files are evicted first
+   * when the cache budget is exceeded. The paths that escape the root directory are not found.
+   * For example,
+   * <pre>
+   *   app.use(staticFiles(Path.of("public"), StaticOptions.of()));
+   * </pre>
+   * @param root the root directory
+   * @param options the options of the cache
+   * @return a handler that serves static files from the root directory
+   * @see #staticFiles(Path)
+   */
+  public static Handler staticFiles(Path root, StaticOptions options) {
+    var directory = root.toAbsolutePath().normalize();
+    var cache = new FileCache(options.cacheBudget, options.maxCachedFileSize, options.watch);
+    return (request, response, chain) -> {
+      var responseImpl = (ResponseImpl) response;
+      var path = directory.resolve(request.path().substring(1)).normalize();
+      if (!path.startsWith(directory)) {
+        responseImpl.notFound(request.path());
+        return;
+      }
+      responseImpl.sendFile(path, cache);
+    };
+  }
+
   /**
    * Starts a server on the given port and listen for connections.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
    * @param port a TCP port
    * @return the server instance
    * @throws UncheckedIOException if an I/O error occurs when creating the server.
+   * @see #listen(ServerOptions)
    */
   public Server listen(int port) {
-    HttpServer server;
-    try {
-      server = HttpServer.create(new InetSocketAddress(port), 0);
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
-    }
-    server.createContext("/", exchange -> {
-      System.err.println("request " + exchange.getRequestMethod() + " " + exchange.getRequestURI());
+    return listen(ServerOptions.of(port));
+  }
+
+  /**
+   * Starts a server on a unix domain socket and listen for connections,
+   * by example to serve a reverse proxy running on the same host without the overhead of the TCP loopback.
+   * The server uses the NIO transport with virtual threads, the socket file is created when the server
+   * starts and deleted when the server is closed.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
+   * For example,
+   * <pre>
+   *   app.listen(Path.of("/run/app/http.sock"));
+   * </pre>
+   * @param socketFile the path of the socket file, the file must not exist
+   * @return the server instance
+   * @throws UncheckedIOException if an I/O error occurs when creating the server, by example if the file exists.
+   * @throws UnsupportedOperationException if the platform does not support unix domain sockets
+   * @see Transport#nio()
+   * @see #listen(Path, ServerOptions)
+   */
+  public Server listen(Path socketFile) {
+    return listen(socketFile, ServerOptions.of(0));
+  }
+
+  /**
+   * Starts a server on a unix domain socket configured by some options and listen for connections.
+   * The address of the options is ignored and the server always uses the NIO transport,
+   * with the number of acceptors of {@link Transport#nio(int)} if the options use it.
+   * The socket file is created when the server starts and deleted when the server is closed.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
+   * For example,
+   * <pre>
+   *   app.listen(Path.of("/run/app/http.sock"), ServerOptions.of(0).withThreading(Threading.platformThreads(8)));
+   * </pre>
+   * @param socketFile the path of the socket file, the file must not exist
+   * @param options the options of the server
+   * @return the server instance
+   * @throws UncheckedIOException if an I/O error occurs when creating the server, by example if the file exists.
+   * @throws UnsupportedOperationException if the platform does not support unix domain sockets
+   * @throws IllegalArgumentException if the NIO transport has more acceptors than platform threads
+   * @see #listen(Path)
+   */
+  public Server listen(Path socketFile, ServerOptions options) {
+    var address = UnixDomainSocketAddress.of(socketFile);
+    var acceptors = options.transport instanceof NioTransport nioTransport? nioTransport.acceptors: 1;
+    return NioServer.start(address, options, acceptors, handler(), scheduler);
+  }
+
+  // the HTTP handler of a server, the routes are frozen when the handler is created
+  /*private*/ HttpHandler handler() {
+    var pipeline = new Router(routes.freeze());
+    var logger = this.logger;
+    var compression = this.compression;
+    return exchange -> {
+      var time = logger == null? 0L: System.currentTimeMillis();
+      var start = logger == null? 0L: System.nanoTime();
       try {
-        var components = exchange.getRequestURI().getPath().split("/");
-        exchange.setAttribute("status", 200);
-        pipeline.accept(new RequestImpl(exchange, components), new ResponseImpl(exchange));
+        var pathView = new PathView(exchange.getRequestURI().getPath());
+        var method = HttpMethod.of(exchange.getRequestMethod());
+        var request = new RequestImpl(exchange, pathView, method);
+        var response = new ResponseImpl(exchange, compression);
+        pipeline.accept(request, response);
+        if (logger != null) {
+          logger.log(new LogEntry(time, exchange.getRemoteAddress(), request.method(), exchange.getRequestURI(),
+              exchange.getProtocol(), exchange.getResponseCode(), response.contentLength, System.nanoTime() - start));
+        }
         //exchange.close();
       } catch(Exception e) {
         e.printStackTrace();
         throw e;
       }
-    });
-    server.setExecutor(EXECUTOR);
+    };
+  }
+
+  /**
+   * Starts a server configured by some options and listen for connections.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
+   * @param options the options of the server
+   * @return the server instance
+   * @throws UncheckedIOException if an I/O error occurs when creating the server.
+   * @throws IllegalArgumentException if the NIO transport has more acceptors than platform threads
+   * @see Transport#nio(int)
+   */
+  public Server listen(ServerOptions options) {
+    if (options.transport instanceof NioTransport nioTransport) {
+      return NioServer.start(options.address, options, nioTransport.acceptors, handler(), scheduler);
+    }
+    HttpServer server;
+    try {
+      server = HttpServer.create(options.address, options.backlog);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return start(server, options);
+  }
+
+  /**
+   * Starts a server on the given port and listen for TLS connections.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
+   * @param port a TCP port
+   * @param sslContext the SSL context holding the certificate and the private key of the server
+   * @return the server instance
+   * @throws UncheckedIOException if an I/O error occurs when creating the server.
+   * @see #listenSecure(ServerOptions, TlsOptions)
+   */
+  public Server listenSecure(int port, SSLContext sslContext) {
+    return listenSecure(ServerOptions.of(port), TlsOptions.of(sslContext));
+  }
+
+  /**
+   * Starts a server configured by some options and listen for TLS connections
+   * using the HTTPS server of the JDK.
+   * The session cache of the SSL context is resized with the TLS options,
+   * so the SSL context should not be shared with another server.
+   * The routes are frozen when the server starts, routes registered after
+   * this call are not seen by the returned server.
+   * For example,
+   * <pre>
+   *   app.listenSecure(ServerOptions.of(8443), TlsOptions.of(sslContext));
+   * </pre>
+   * @param options the options of the server
+   * @param tlsOptions the TLS options of the server
+   * @return the server instance
+   * @throws UncheckedIOException if an I/O error occurs when creating the server.
+   * @throws IllegalArgumentException if the transport of the options is not the HTTP server of the JDK
+   */
+  public Server listenSecure(ServerOptions options, TlsOptions tlsOptions) {
+    if (!(options.transport instanceof HttpServerTransport)) {
+      throw new IllegalArgumentException("TLS is only supported by the HTTP server of the JDK");
+    }
+    var sslContext = tlsOptions.sslContext;
+    var sessionContext = sslContext.getServerSessionContext();
+    sessionContext.setSessionCacheSize(tlsOptions.sessionCacheSize);
+    sessionContext.setSessionTimeout((int) Math.min(Integer.MAX_VALUE, tlsOptions.sessionTimeout.toSeconds()));
+    HttpsServer server;
+    try {
+      server = HttpsServer.create(options.address, options.backlog);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+    return start(server, options);
+  }
+
+  private Server start(HttpServer server, ServerOptions options) {
+    server.createContext("/", handler());
+    var threading = options.threading;
+    ExecutorService pool;
+    if (threading instanceof PlatformThreading platformThreading) {
+      pool = Executors.newFixedThreadPool(platformThreading.threads);
+      server.setExecutor(pool);
+    } else if (threading instanceof ExecutorThreading executorThreading) {
+      pool = null;
+      server.setExecutor(executorThreading.executor);
+    } else {
+      var schedulerImpl = (SchedulerImpl) scheduler;
+      pool = schedulerImpl.newPool();
+      server.setExecutor(executor(pool == null? schedulerImpl.executor: pool));
+    }
     server.start();
-    return () -> server.stop(1);
+    // HttpServer.stop() takes a delay in seconds
+    var stopDelay = (int) Math.min(Integer.MAX_VALUE, (options.stopTimeout.toMillis() + 999) / 1_000);
+    return () -> {
+      server.stop(stopDelay);
+      if (pool != null) {
+        pool.shutdown();
+      }
+    };
   }
 
 
@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.spi.FileTypeDetector;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A file type detector that changes a file when its content type is probed,
+ * so a file cache sees the file changing between the read of its content and its storage.
+ * The other files are left to the default detectors.
+ */
+public class ChangingFileTypeDetector extends FileTypeDetector {
+  static final String FILE_NAME = "changed-during-read.txt";
+
+  @Override
+  public String probeContentType(Path path) throws IOException {
+    if (!path.getFileName().toString().equals(FILE_NAME)) {
+      return null;
+    }
+    if (Files.readString(path, UTF_8).equals("hello")) {
+      Files.writeString(path, "hello world", UTF_8);
+      try {
+        Thread.sleep(500);  // let the watcher see the change
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return "text/plain";
+  }
+}
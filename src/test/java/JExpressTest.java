@@ -3,23 +3,64 @@ import org.junit.jupiter.api.condition.EnabledIf;
 import org.junit.jupiter.api.parallel.Execution;
 import org.junit.jupiter.api.parallel.ExecutionMode;
 
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
 
 import static java.lang.invoke.MethodHandles.publicLookup;
 import static java.lang.invoke.MethodType.methodType;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.joining;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Execution(ExecutionMode.CONCURRENT)
@@ -65,6 +106,32 @@ public class JExpressTest {
     return HTTP_CLIENT.send(request, BodyHandlers.ofString());
   }
 
+  private static HttpResponse<byte[]> fetchGetEncoded(int port, String uri, String acceptEncoding) throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder().uri(URI.create("http://localhost" + ":" + port + uri))
+        .header("Accept-Encoding", acceptEncoding)
+        .build();
+    return HTTP_CLIENT.send(request, BodyHandlers.ofByteArray());
+  }
+
+  private static String decode(HttpResponse<byte[]> response) throws IOException {
+    var bytes = new ByteArrayInputStream(response.body());
+    var encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+    try (var input = switch (encoding) {
+      case "gzip" -> new GZIPInputStream(bytes);
+      case "deflate" -> new InflaterInputStream(bytes);
+      default -> (InputStream) bytes;
+    }) {
+      return new String(input.readAllBytes(), UTF_8);
+    }
+  }
+
+  private static HttpResponse<String> fetchGet(int port, String uri, String... headers) throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder().uri(URI.create("http://localhost" + ":" + port + uri))
+        .headers(headers)
+        .build();
+    return HTTP_CLIENT.send(request, BodyHandlers.ofString());
+  }
+
   private static JExpress express() {
     return JExpress.express();
   }
@@ -157,6 +224,181 @@ public class JExpressTest {
     }
   }
 
+  @Test
+  public void testJSONArrayLargeStream() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/json-large-stream", (req, res) -> {
+      res.json(IntStream.range(0, 100_000).boxed());
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchGet(port, "/json-large-stream");
+      var body = response.body();
+      assertAll(
+          () -> assertEquals("application/json; charset=utf-8", response.headers().firstValue("Content-Type").orElseThrow()),
+          () -> assertTrue(response.headers().firstValue("Content-Length").isEmpty()),
+          () -> assertEquals(IntStream.range(0, 100_000).mapToObj(i -> "" + i).collect(joining(", ", "[", "]")), body)
+      );
+    }
+  }
+
+  @Test
+  public void testRouteOrder() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/order/:id", (req, res) -> {
+      res.send("param " + req.param("id"));
+    });
+    app.use("/order", (req, res, chain) -> {
+      res.set("X-Order", "use");
+      chain.next();
+    });
+    app.get("/order/static", (req, res) -> {
+      res.send("static");
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response1 = fetchGet(port, "/order/static");
+      var response2 = fetchGet(port, "/order/42");
+      assertAll(
+          () -> assertEquals("static", response1.body()),
+          () -> assertTrue(response1.headers().firstValue("X-Order").isEmpty()),
+          () -> assertEquals("param 42", response2.body()),
+          () -> assertEquals("use", response2.headers().firstValue("X-Order").orElseThrow())
+      );
+    }
+  }
+
+  @Test
+  public void testManyRoutes() throws IOException, InterruptedException {
+    var app = express();
+    for(var i = 0; i < 100; i++) {
+      var index = i;
+      app.get("/route/" + i + "/:id", (req, res) -> {
+        res.send("route " + index + " " + req.param("id"));
+      });
+    }
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchGet(port, "/route/57/foo");
+      assertEquals("route 57 foo", response.body());
+    }
+  }
+
+  @Test
+  public void testMethodNotAllowed() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/item/:id", (req, res) -> {
+      res.send("get " + req.param("id"));
+    });
+    app.post("/item/:id", (req, res) -> {
+      res.send("post " + req.param("id"));
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var request = HttpRequest.newBuilder().uri(URI.create("http://localhost" + ":" + port + "/item/3")).DELETE().build();
+      var response = HTTP_CLIENT.send(request, BodyHandlers.ofString());
+      var response2 = fetchGet(port, "/item/3");
+      assertAll(
+          () -> assertEquals(405, response.statusCode()),
+          () -> assertEquals("GET, POST", response.headers().firstValue("Allow").orElseThrow()),
+          () -> assertEquals(200, response2.statusCode()),
+          () -> assertEquals("get 3", response2.body())
+      );
+    }
+  }
+
+  @Test
+  public void testParamIndex() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/pair/:first/:second", (req, res) -> {
+      res.send(req.param(0) + " " + req.param(1) + " " + req.param("second") + " " + req.param("third").isEmpty());
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchGet(port, "/pair/foo/bar");
+      assertEquals("foo bar bar true", response.body());
+    }
+  }
+
+  @Test
+  public void testAccessLogCommon() throws IOException, InterruptedException {
+    var file = Files.createTempFile("access", ".log");
+    try {
+      var app = express();
+      app.get("/log/:id", (req, res) -> {
+        res.send("ok");
+      });
+
+      var port = nextPort();
+      try(var accessLog = JExpress.accessLog(file, JExpress.LogFormat.COMMON)) {
+        app.logger(accessLog);
+        try(var server = app.listen(port)) {
+          fetchGet(port, "/log/42");
+        }
+      }
+      var log = Files.readString(file);
+      assertTrue(log.matches("\\S+ - - \\[[^]]+] \"GET /log/42 HTTP/1.1\" 200 2\n"), log);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  @EnabledIf("devFull")
+  public void testAccessLogWriteError() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/log/:id", (req, res) -> {
+      res.send("ok");
+    });
+
+    var port = nextPort();
+    var accessLog = JExpress.accessLog(Path.of("/dev/full"), JExpress.LogFormat.COMMON);
+    app.logger(accessLog);
+    try(var server = app.listen(port)) {
+      for(var i = 0; i < 3; i++) {
+        fetchGet(port, "/log/" + i);
+      }
+    }
+    // the entries that can not be written are counted as dropped
+    assertThrows(IOException.class, accessLog::close);
+    assertEquals(3, accessLog.dropped());
+  }
+
+  public static boolean devFull() {
+    return Files.isWritable(Path.of("/dev/full"));
+  }
+
+  @Test
+  public void testAccessLogJSON() throws IOException, InterruptedException {
+    var file = Files.createTempFile("access", ".log");
+    try {
+      var app = express();
+      app.get("/log/:id", (req, res) -> {
+        res.send("ok");
+      });
+
+      var port = nextPort();
+      try(var accessLog = JExpress.accessLog(file, JExpress.LogFormat.JSON)) {
+        app.logger(accessLog);
+        try(var server = app.listen(port)) {
+          fetchGet(port, "/log/42");
+        }
+      }
+      var log = Files.readString(file);
+      assertAll(
+          () -> assertEquals(1, log.lines().count()),
+          () -> assertTrue(log.contains("\"method\": \"GET\", \"uri\": \"/log/42\", \"protocol\": \"HTTP/1.1\", \"status\": 200, \"length\": 2"), log)
+      );
+    } finally {
+      Files.delete(file);
+    }
+  }
+
   @Test
   public void testLicense() throws IOException, InterruptedException {
     var app = express();
@@ -181,6 +423,72 @@ public class JExpressTest {
     }
   }
 
+  @Test
+  public void testSendLargeFile() throws IOException, InterruptedException {
+    var file = Files.createTempFile("jexpress", ".txt");
+    try {
+      var text = IntStream.range(0, 50_000).mapToObj(i -> "line " + i).collect(joining("\n"));
+      Files.writeString(file, text);
+      var app = express();
+      app.get("/large", (req, res) -> res.sendFile(file));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        var response = fetchGet(port, "/large");
+        assertAll(
+            () -> assertEquals(200, response.statusCode()),
+            () -> assertEquals(text, response.body()),
+            () -> assertEquals("" + text.length(), response.headers().firstValue("Content-Length").orElseThrow())
+        );
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testSendFileModified() throws IOException, InterruptedException {
+    var file = Files.createTempFile("jexpress", ".txt");
+    try {
+      Files.writeString(file, "hello");
+      var app = express();
+      app.get("/file", (req, res) -> res.sendFile(file));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        var response = fetchGet(port, "/file");
+        var response2 = fetchGet(port, "/file");
+        Files.writeString(file, "hello world");
+        var response3 = fetchGet(port, "/file");
+        // same size, only the modification date changes
+        var lastModified = Files.getLastModifiedTime(file).toInstant();
+        Files.writeString(file, "HELLO WORLD");
+        Files.setLastModifiedTime(file, FileTime.from(lastModified.plusSeconds(1)));
+        var response4 = fetchGet(port, "/file");
+        assertAll(
+            () -> assertEquals("hello", response.body()),
+            () -> assertEquals("hello", response2.body()),
+            () -> assertEquals("hello world", response3.body()),
+            () -> assertEquals("HELLO WORLD", response4.body())
+        );
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testSendFileNotFound() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/missing", (req, res) -> res.sendFile(Path.of("does-not-exist.txt")));
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchGet(port, "/missing");
+      assertEquals(404, response.statusCode());
+    }
+  }
+
   @Test
   public void testStaticFile() throws IOException, InterruptedException {
     var app = express();
@@ -203,6 +511,301 @@ public class JExpressTest {
     }
   }
 
+  @Test
+  public void testStaticFilesWithOptions() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var root = Files.createDirectory(directory.resolve("public"));
+    var file = root.resolve("hello.txt");
+    var secret = directory.resolve("secret.txt");
+    try {
+      Files.writeString(file, "hello");
+      Files.writeString(secret, "secret");
+      var app = express();
+      app.use(JExpress.staticFiles(root, JExpress.StaticOptions.of()));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        var response = fetchGet(port, "/hello.txt");
+        Files.writeString(file, "hello world");
+        var body = "";
+        for(var i = 0; i < 50 && !body.equals("hello world"); i++) {  // wait for the watcher
+          Thread.sleep(100);
+          body = fetchGet(port, "/hello.txt").body();
+        }
+        var updated = body;
+        var notFound = fetchGet(port, "/missing.txt");
+        var outside = fetchGet(port, "/%2e%2e/secret.txt");
+        assertAll(
+            () -> assertEquals("hello", response.body()),
+            () -> assertEquals("text/plain; charset=utf-8", response.headers().firstValue("Content-Type").orElseThrow()),
+            () -> assertEquals("hello world", updated),
+            () -> assertEquals(404, notFound.statusCode()),
+            () -> assertEquals(404, outside.statusCode())
+        );
+      }
+    } finally {
+      Files.delete(file);
+      Files.delete(root);
+      Files.delete(secret);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testStaticFilesWatchChangeDuringRead() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var file = directory.resolve(ChangingFileTypeDetector.FILE_NAME);
+    try {
+      Files.writeString(file, "hello");
+      var app = express();
+      app.use(JExpress.staticFiles(directory, JExpress.StaticOptions.of()));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        // the file is changed after being read and before being cached, see ChangingFileTypeDetector
+        var response = fetchGet(port, "/" + ChangingFileTypeDetector.FILE_NAME);
+        var response2 = fetchGet(port, "/" + ChangingFileTypeDetector.FILE_NAME);
+        assertAll(
+            () -> assertEquals("hello", response.body()),
+            () -> assertEquals("hello world", response2.body())
+        );
+      }
+    } finally {
+      Files.delete(file);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testCompression() throws IOException, InterruptedException {
+    var text = IntStream.range(0, 1_000).mapToObj(i -> "<p>" + i + "</p>").collect(joining());
+    var app = express();
+    app.compression(JExpress.CompressionOptions.of());
+    app.get("/large", (req, res) -> res.send(text));
+    app.get("/small", (req, res) -> res.send("<p>small</p>"));
+    app.get("/json", (req, res) -> res.json(IntStream.range(0, 10_000).boxed()));
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var gzip = fetchGetEncoded(port, "/large", "gzip, deflate");
+      var deflate = fetchGetEncoded(port, "/large", "gzip;q=0.5, deflate");
+      var identity = fetchGetEncoded(port, "/large", "br");
+      var small = fetchGetEncoded(port, "/small", "gzip");
+      var json = fetchGetEncoded(port, "/json", "gzip");
+      assertAll(
+          () -> assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElseThrow()),
+          () -> assertEquals("Accept-Encoding", gzip.headers().firstValue("Vary").orElseThrow()),
+          () -> assertTrue(gzip.body().length < text.length()),
+          () -> assertEquals(text, decode(gzip)),
+          () -> assertEquals("deflate", deflate.headers().firstValue("Content-Encoding").orElseThrow()),
+          () -> assertEquals(text, decode(deflate)),
+          () -> assertTrue(identity.headers().firstValue("Content-Encoding").isEmpty()),
+          () -> assertEquals(text, decode(identity)),
+          () -> assertTrue(small.headers().firstValue("Content-Encoding").isEmpty()),
+          () -> assertEquals("<p>small</p>", decode(small)),
+          () -> assertEquals("gzip", json.headers().firstValue("Content-Encoding").orElseThrow()),
+          () -> assertEquals(JExpress.JSONPrettyPrinter.toJSON(IntStream.range(0, 10_000).boxed().toList()), decode(json))
+      );
+    }
+  }
+
+  @Test
+  public void testCompressionStaticFiles() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var css = directory.resolve("app.css");
+    var js = directory.resolve("app.js");
+    var precompressed = directory.resolve("app.js.gz");
+    try {
+      var style = "p { color: red; }\n".repeat(200);
+      var script = "console.log('hello');\n".repeat(200);
+      Files.writeString(css, style);
+      Files.writeString(js, script);
+      var bytes = new ByteArrayOutputStream();
+      try (var output = new GZIPOutputStream(bytes)) {
+        output.write("precompressed".getBytes(UTF_8));
+      }
+      Files.write(precompressed, bytes.toByteArray());
+      var app = express();
+      app.compression(JExpress.CompressionOptions.of());
+      app.use(JExpress.staticFiles(directory, JExpress.StaticOptions.of()));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        var response = fetchGetEncoded(port, "/app.css", "gzip");
+        var response2 = fetchGetEncoded(port, "/app.css", "gzip");
+        var response3 = fetchGetEncoded(port, "/app.js", "gzip");
+        var response4 = fetchGetEncoded(port, "/app.js", "deflate");
+        assertAll(
+            () -> assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElseThrow()),
+            () -> assertEquals("text/css; charset=utf-8", response.headers().firstValue("Content-Type").orElseThrow()),
+            () -> assertEquals(style, decode(response)),
+            () -> assertEquals(style, decode(response2)),
+            () -> assertEquals("precompressed", decode(response3)),
+            () -> assertEquals(script, decode(response4))
+        );
+      }
+    } finally {
+      Files.delete(css);
+      Files.delete(js);
+      Files.delete(precompressed);
+      Files.delete(directory);
+    }
+  }
+
+  private static byte[] gzip(String text) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    try (var output = new GZIPOutputStream(bytes)) {
+      output.write(text.getBytes(UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testCompressionStaticFilesSiblingChanged() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var js = directory.resolve("app.js");
+    var precompressed = directory.resolve("app.js.gz");
+    try {
+      var script = "console.log('hello');\n".repeat(200);
+      Files.writeString(js, script);
+      for(var options: List.of(JExpress.StaticOptions.of(), JExpress.StaticOptions.of().withWatch(false))) {
+        Files.write(precompressed, gzip("precompressed"));
+        var app = express();
+        app.compression(JExpress.CompressionOptions.of());
+        app.use(JExpress.staticFiles(directory, options));
+
+        var port = nextPort();
+        try(var server = app.listen(port)) {
+          var response = fetchGetEncoded(port, "/app.js", "gzip");
+          Files.write(precompressed, gzip("updated"));
+          Files.setLastModifiedTime(precompressed,
+              FileTime.from(Files.getLastModifiedTime(js).toInstant().plusSeconds(10)));
+          var updated = "";
+          for(var i = 0; i < 50 && !updated.equals("updated"); i++) {  // wait for the watcher or the next check
+            Thread.sleep(100);
+            updated = decode(fetchGetEncoded(port, "/app.js", "gzip"));
+          }
+          // a precompressed file older than the file is not used
+          Files.setLastModifiedTime(precompressed,
+              FileTime.from(Files.getLastModifiedTime(js).toInstant().minusSeconds(10)));
+          var older = "";
+          for(var i = 0; i < 50 && !older.equals(script); i++) {
+            Thread.sleep(100);
+            older = decode(fetchGetEncoded(port, "/app.js", "gzip"));
+          }
+          var updatedBody = updated;
+          var olderBody = older;
+          assertAll(
+              () -> assertEquals("precompressed", decode(response)),
+              () -> assertEquals("updated", updatedBody),
+              () -> assertEquals(script, olderBody)
+          );
+        }
+      }
+    } finally {
+      Files.delete(js);
+      Files.delete(precompressed);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testConditionalGet() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var small = directory.resolve("small.txt");
+    var large = directory.resolve("large.txt");
+    try {
+      Files.writeString(small, "hello");
+      Files.writeString(large, "hello\n".repeat(100_000));
+      var app = express();
+      app.use(JExpress.staticFiles(directory, JExpress.StaticOptions.of().withMaxCachedFileSize(1_024)));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        for(var uri: List.of("/small.txt", "/large.txt")) {
+          var response = fetchGet(port, uri);
+          var etag = response.headers().firstValue("ETag").orElseThrow();
+          var lastModified = response.headers().firstValue("Last-Modified").orElseThrow();
+          var matching = fetchGet(port, uri, "If-None-Match", "\"other\", W/" + etag);
+          var notMatching = fetchGet(port, uri, "If-None-Match", "\"other\"");
+          var notModified = fetchGet(port, uri, "If-Modified-Since", lastModified);
+          var modified = fetchGet(port, uri, "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+          var precedence = fetchGet(port, uri, "If-None-Match", "\"other\"", "If-Modified-Since", lastModified);
+          assertAll(
+              () -> assertEquals(200, response.statusCode()),
+              () -> assertEquals(304, matching.statusCode()),
+              () -> assertEquals("", matching.body()),
+              () -> assertEquals(etag, matching.headers().firstValue("ETag").orElseThrow()),
+              () -> assertEquals(200, notMatching.statusCode()),
+              () -> assertEquals(304, notModified.statusCode()),
+              () -> assertEquals(200, modified.statusCode()),
+              () -> assertEquals(200, precedence.statusCode())
+          );
+        }
+      }
+    } finally {
+      Files.delete(small);
+      Files.delete(large);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testRanges() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("jexpress");
+    var small = directory.resolve("small.txt");
+    var large = directory.resolve("large.txt");
+    try {
+      var text = "0123456789";
+      Files.writeString(small, text);
+      Files.writeString(large, text.repeat(1_000));
+      var app = express();
+      app.use(JExpress.staticFiles(directory, JExpress.StaticOptions.of().withMaxCachedFileSize(1_024)));
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        for(var file: List.of("small.txt", "large.txt")) {
+          var uri = "/" + file;
+          var size = Files.size(directory.resolve(file));
+          var etag = fetchGet(port, uri).headers().firstValue("ETag").orElseThrow();
+          var first = fetchGet(port, uri, "Range", "bytes=0-4");
+          var suffix = fetchGet(port, uri, "Range", "bytes=-3");
+          var open = fetchGet(port, uri, "Range", "bytes=" + (size - 2) + "-");
+          var multiple = fetchGet(port, uri, "Range", "bytes=1-2, 5-6, 6-7");
+          var unsatisfiable = fetchGet(port, uri, "Range", "bytes=" + size + "-");
+          var invalid = fetchGet(port, uri, "Range", "items=0-1");
+          var ifRange = fetchGet(port, uri, "Range", "bytes=0-4", "If-Range", etag);
+          var ifRangeChanged = fetchGet(port, uri, "Range", "bytes=0-4", "If-Range", "\"other\"");
+          var contentType = multiple.headers().firstValue("Content-Type").orElseThrow();
+          var boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
+          assertAll(
+              () -> assertEquals("bytes", first.headers().firstValue("Accept-Ranges").orElseThrow()),
+              () -> assertEquals(206, first.statusCode()),
+              () -> assertEquals("01234", first.body()),
+              () -> assertEquals("bytes 0-4/" + size, first.headers().firstValue("Content-Range").orElseThrow()),
+              () -> assertEquals("789", suffix.body()),
+              () -> assertEquals("89", open.body()),
+              () -> assertEquals(206, multiple.statusCode()),
+              () -> assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType),
+              () -> assertEquals("\r\n--" + boundary + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Range: bytes 1-2/" + size + "\r\n\r\n12"
+                  + "\r\n--" + boundary + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Range: bytes 5-7/" + size + "\r\n\r\n567"
+                  + "\r\n--" + boundary + "--\r\n", multiple.body()),
+              () -> assertEquals(416, unsatisfiable.statusCode()),
+              () -> assertEquals("bytes */" + size, unsatisfiable.headers().firstValue("Content-Range").orElseThrow()),
+              () -> assertEquals(200, invalid.statusCode()),
+              () -> assertEquals(206, ifRange.statusCode()),
+              () -> assertEquals(200, ifRangeChanged.statusCode()),
+              () -> assertEquals(size, ifRangeChanged.body().length())
+          );
+        }
+      }
+    } finally {
+      Files.delete(small);
+      Files.delete(large);
+      Files.delete(directory);
+    }
+  }
+
   @Test
   public void testStaticFileHTMLContentType() throws IOException, InterruptedException {
     var app = express();
@@ -311,6 +914,68 @@ public class JExpressTest {
     }
   }
 
+  @Test
+  public void testSchedulerExecutor() throws IOException, InterruptedException {
+    var executor = Executors.newFixedThreadPool(2, runnable -> new Thread(runnable, "test-carrier"));
+    try {
+      var app = express();
+      app.scheduler(JExpress.Scheduler.executor(executor));
+      app.get("/", (req, res) -> {
+        res.send(Thread.currentThread().toString());
+      });
+
+      var port = nextPort();
+      try(var server = app.listen(port)) {
+        var response = fetchGet(port, "/scheduler");
+        assertTrue(response.body().contains("test-carrier"), response.body());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSchedulerWorkStealing() throws IOException, InterruptedException {
+    var app = express();
+    app.scheduler(JExpress.Scheduler.workStealing(2));
+    app.get("/scheduler", (req, res) -> {
+      res.send(Thread.currentThread().toString());
+    });
+
+    for(var transport: List.of(JExpress.Transport.httpServer(), JExpress.Transport.nio())) {
+      var port = nextPort();
+      try(var server = app.listen(JExpress.ServerOptions.of(port).withTransport(transport))) {
+        var response = fetchGet(port, "/scheduler");
+        // a carrier thread of the pool of the server, not of the default scheduler of the JDK
+        assertAll(
+            () -> assertEquals(200, response.statusCode()),
+            () -> assertTrue(response.body().matches(".*jexpress-carrier-[01]\\b.*"), response.body())
+        );
+      }
+    }
+    assertThrows(IllegalArgumentException.class, () -> JExpress.Scheduler.workStealing(0));
+  }
+
+  @Test
+  public void testListenOptions() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/", (req, res) -> {
+      res.send(Thread.currentThread().getName());
+    });
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port)
+        .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))
+        .withBacklog(128)
+        .withThreading(JExpress.Threading.platformThreads(2))
+        .withStopTimeout(Duration.ZERO);
+    try(var server = app.listen(options)) {
+      var response = fetchGet(port, "/options");
+      var body = response.body();
+      assertTrue(body.startsWith("pool-"), body);
+    }
+  }
+
   @Test
   public void testJSONObjectPost() throws IOException, InterruptedException {
     var app = express();
@@ -363,6 +1028,697 @@ public class JExpressTest {
     }
   }
 
+  @Test
+  public void testJSONPostNotAnObjectOrAnArray() throws IOException, InterruptedException {
+    var app = express();
+    app.post("/object", (request, response) -> {
+      try {
+        response.json(request.bodyObject());
+      } catch (IllegalStateException e) {
+        response.status(400).send(e.getMessage());
+      }
+    });
+    app.post("/array", (request, response) -> {
+      try {
+        response.json(request.bodyArray());
+      } catch (IllegalStateException e) {
+        response.status(400).send(e.getMessage());
+      }
+    });
+
+    var port = nextPort();
+    try (var server = app.listen(port)) {
+      var number = fetchJSONPost(port, "/object", "42");
+      var string = fetchJSONPost(port, "/array", "\"x\"");
+      var object = fetchJSONPost(port, "/array", "{}");
+      assertAll(
+          () -> assertEquals(400, number.statusCode()),
+          () -> assertEquals("expect a JSON object but found a number", number.body()),
+          () -> assertEquals(400, string.statusCode()),
+          () -> assertEquals("expect a JSON array but found a string", string.body()),
+          () -> assertEquals("expect a JSON array but found an object", object.body())
+      );
+    }
+  }
+
+  record Person(String name, int age) {}
+
+  @Test
+  public void testRecordPost() throws IOException, InterruptedException {
+    var app = express();
+    app.post("/person", (request, response) -> {
+      var person = request.body(Person.class);
+      response.json(new Person(person.name().toUpperCase(Locale.ROOT), person.age() + 1));
+    });
+    app.post("/persons", (request, response) -> {
+      var persons = request.bodyList(Person.class);
+      response.json(persons.stream().map(Person::name));
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchJSONPost(port, "/person", """
+          {"name": "Bob", "age": 41, "city": "Paris"}
+          """);
+      var response2 = fetchJSONPost(port, "/persons", """
+          [{"name": "Bob", "age": 41}, {"name": "Ana"}]
+          """);
+      assertAll(
+          () -> assertEquals("{\"name\": \"BOB\", \"age\": 42}", response.body()),
+          () -> assertEquals("[\"Bob\", \"Ana\"]", response2.body())
+      );
+    }
+  }
+
+  @Test
+  public void testBodyTextPost() throws IOException, InterruptedException {
+    var app = express();
+    app.post("/text", (request, response) -> {
+      var body = request.bodyText();
+      response.send(body.replace("\r", "\\r").replace("\n", "\\n"));
+    });
+
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var response = fetchJSONPost(port, "/text", "line1\r\nline2\n\nline3\n");
+      assertEquals("line1\\r\\nline2\\n\\nline3\\n", response.body());
+    }
+  }
+
+  @Test
+  public void testSendEncodedWithPooledBuffers() throws IOException, InterruptedException {
+    var text = "été 😀 ".repeat(5_000) + "\uD800";
+    var app = express();
+    app.get("/text", (req, res) -> res.send(text));
+
+    var pool = JExpress.bufferPool();
+    var port = nextPort();
+    try(var server = app.listen(port)) {
+      var before = pool.hits() + pool.misses();
+      var response = fetchGet(port, "/text");
+      var response2 = fetchGet(port, "/text");
+      var expected = text.substring(0, text.length() - 1) + "?";
+      assertAll(
+          () -> assertEquals(8192, pool.bufferSize()),
+          () -> assertEquals(expected, response.body()),
+          () -> assertEquals(expected, response2.body()),
+          () -> assertEquals("" + text.getBytes(UTF_8).length, response.headers().firstValue("Content-Length").orElseThrow()),
+          () -> assertTrue(pool.hits() + pool.misses() >= before + 2),
+          () -> assertTrue(pool.hits() > 0)
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransport() throws IOException, InterruptedException {
+    var file = Files.createTempFile("jexpress", ".txt");
+    try {
+      var text = IntStream.range(0, 50_000).mapToObj(i -> "line " + i).collect(joining("\n"));
+      Files.writeString(file, text);
+      var app = express();
+      app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+      app.get("/large-stream", (req, res) -> res.json(IntStream.range(0, 100_000).boxed()));
+      app.get("/large", (req, res) -> res.sendFile(file));
+      app.post("/person", (req, res) -> res.json(req.body(Person.class)));
+
+      var port = nextPort();
+      var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+      try(var server = app.listen(options)) {
+        var hello = fetchGet(port, "/hello/bob");
+        var stream = fetchGet(port, "/large-stream");
+        var large = fetchGet(port, "/large");
+        var person = fetchJSONPost(port, "/person", """
+            { "name": "Ana", "age": 42 }
+            """);
+        var expectContinue = HTTP_CLIENT.send(
+            HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/person"))
+                .header("Content-Type", "application/json")
+                .expectContinue(true)
+                .POST(HttpRequest.BodyPublishers.ofString("{ \"name\": \"Bob\", \"age\": 7 }"))
+                .build(),
+            BodyHandlers.ofString());
+        var notFound = fetchGet(port, "/unknown");
+        assertAll(
+            () -> assertEquals("hello bob", hello.body()),
+            () -> assertEquals("9", hello.headers().firstValue("Content-Length").orElseThrow()),
+            () -> assertEquals(IntStream.range(0, 100_000).mapToObj(i -> "" + i).collect(joining(", ", "[", "]")), stream.body()),
+            () -> assertTrue(stream.headers().firstValue("Content-Length").isEmpty()),
+            () -> assertEquals(text, large.body()),
+            () -> assertEquals("" + text.length(), large.headers().firstValue("Content-Length").orElseThrow()),
+            () -> assertEquals("{\"name\": \"Ana\", \"age\": 42}", person.body()),
+            () -> assertEquals("{\"name\": \"Bob\", \"age\": 7}", expectContinue.body()),
+            () -> assertEquals(404, notFound.statusCode())
+        );
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testNioTransportCloseWaitsForRequests() throws IOException, InterruptedException {
+    var started = new CountDownLatch(1);
+    var app = express();
+    app.get("/slow", (req, res) -> {
+      started.countDown();
+      try {
+        Thread.sleep(300);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      res.send("slow");
+    });
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port)
+        .withTransport(JExpress.Transport.nio())
+        .withStopTimeout(Duration.ofSeconds(10));
+    var server = app.listen(options);
+    var response = HTTP_CLIENT.sendAsync(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/slow")).build(), BodyHandlers.ofString());
+    started.await();
+    var start = System.nanoTime();
+    server.close();
+    var closeTime = Duration.ofNanos(System.nanoTime() - start);
+    var body = response.join().body();
+    assertAll(
+        () -> assertEquals("slow", body),
+        () -> assertTrue(closeTime.compareTo(Duration.ofSeconds(5)) < 0, closeTime.toString())
+    );
+  }
+
+  @Test
+  public void testNioTransportSetStreams() throws IOException, InterruptedException {
+    var app = express();
+    app.post("/echo", (req, res) -> res.send(req.bodyText()));
+    var handler = app.handler();
+    // a filter that upper-cases the request body and replaces 'L' by '1' in the response body
+    HttpHandler filter = exchange -> {
+      exchange.setStreams(new FilterInputStream(exchange.getRequestBody()) {
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          var read = super.read(buffer, offset, length);
+          for(var i = offset; i < offset + read; i++) {
+            buffer[i] = (byte) Character.toUpperCase(buffer[i]);
+          }
+          return read;
+        }
+      }, new FilterOutputStream(exchange.getResponseBody()) {
+        @Override
+        public void write(int b) throws IOException {
+          super.write(b == 'L'? '1': b);
+        }
+      });
+      handler.handle(exchange);
+    };
+
+    var port = nextPort();
+    var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    try(var server = JExpress.NioServer.start(address, JExpress.ServerOptions.of(port), 1, filter,
+                                              JExpress.Scheduler.defaultScheduler())) {
+      var http1 = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+      var responses = new ArrayList<HttpResponse<String>>();
+      for(var client: List.of(http1, HTTP_CLIENT)) {
+        responses.add(client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/echo"))
+            .POST(HttpRequest.BodyPublishers.ofString("hello")).build(), BodyHandlers.ofString()));
+        responses.add(client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/echo"))
+            .POST(HttpRequest.BodyPublishers.ofString("all well")).build(), BodyHandlers.ofString()));
+      }
+      assertAll(
+          () -> assertEquals("HE11O", responses.get(0).body()),
+          () -> assertEquals("A11 WE11", responses.get(1).body()),
+          () -> assertEquals(HttpClient.Version.HTTP_1_1, responses.get(1).version()),
+          () -> assertEquals("HE11O", responses.get(2).body()),
+          () -> assertEquals("A11 WE11", responses.get(3).body()),
+          () -> assertEquals(HttpClient.Version.HTTP_2, responses.get(3).version())
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransportTimeouts() throws IOException, InterruptedException {
+    var failures = new ConcurrentLinkedQueue<IOException>();
+    var app = express();
+    app.get("/hello", (req, res) -> res.send("hello"));
+    app.post("/upload", (req, res) -> {
+      try {
+        res.send(req.bodyText());
+      } catch (IOException e) {
+        failures.add(e);
+        throw e;
+      }
+    });
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port)
+        .withTransport(JExpress.Transport.nio())
+        .withThreading(JExpress.Threading.platformThreads(1))
+        .withTimeouts(JExpress.TimeoutOptions.of()
+            .withIdleTimeout(Duration.ofSeconds(2))
+            .withHeadTimeout(Duration.ofMillis(200))
+            .withBodyTimeout(Duration.ofMillis(200)));
+    try(var server = app.listen(options)) {
+      // a stalled upload releases the only thread of the server
+      String upload;
+      try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nabc".getBytes(UTF_8));
+        upload = new String(socket.getInputStream().readAllBytes(), UTF_8);
+      }
+
+      // a head that is not fully received
+      long headTime;
+      String head;
+      try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        socket.setSoTimeout(10_000);
+        var start = System.nanoTime();
+        socket.getOutputStream().write("GET /hello HTTP/1.1\r\nHost: loc".getBytes(UTF_8));
+        head = new String(socket.getInputStream().readAllBytes(), UTF_8);
+        headTime = System.nanoTime() - start;
+      }
+
+      // an idle connection after a request
+      String idle;
+      try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(UTF_8));
+        idle = new String(socket.getInputStream().readAllBytes(), UTF_8);
+      }
+
+      // an idle HTTP/2 connection receives a GOAWAY before being closed
+      var types = new ArrayList<Integer>();
+      try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        socket.setSoTimeout(10_000);
+        var output = socket.getOutputStream();
+        output.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(UTF_8));
+        output.write(new byte[] { 0, 0, 0, 0x4, 0, 0, 0, 0, 0 });
+        var input = new DataInputStream(socket.getInputStream());
+        for(int length; (length = input.read()) != -1;) {
+          length = length << 16 | input.readUnsignedShort();
+          types.add(input.readUnsignedByte());
+          input.readNBytes(5 + length);  // flags, stream id and payload
+        }
+      }
+
+      assertAll(
+          () -> assertEquals("", upload),
+          () -> assertEquals(1, failures.size()),
+          () -> assertEquals("", head),
+          () -> assertTrue(headTime < Duration.ofSeconds(2).toNanos(), "" + headTime),
+          () -> assertTrue(idle.startsWith("HTTP/1.1 200 OK\r\n"), idle),
+          () -> assertTrue(idle.endsWith("\r\n\r\nhello"), idle),
+          () -> assertTrue(types.contains(0x7), types.toString())
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransportPipelining() throws IOException {
+    var app = express();
+    app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+    app.post("/echo", (req, res) -> res.send(req.bodyText()));
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+    try(var server = app.listen(options);
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      // three requests sent at once, the second has a chunked body
+      socket.getOutputStream().write(("""
+          GET /hello/ana HTTP/1.1\r
+          Host: localhost\r
+          \r
+          POST /echo HTTP/1.1\r
+          Host: localhost\r
+          Transfer-Encoding: chunked\r
+          \r
+          5\r
+          hello\r
+          7;ext=1\r
+           chunks\r
+          0\r
+          \r
+          GET /hello/bob HTTP/1.1\r
+          Host: localhost\r
+          Connection: close\r
+          \r
+          """).getBytes(UTF_8));
+      var responses = new String(socket.getInputStream().readAllBytes(), UTF_8).replaceAll("Date: .*\r\n", "");
+      assertEquals("""
+          HTTP/1.1 200 OK\r
+          Content-type: text/html; charset=utf-8\r
+          Content-Length: 9\r
+          \r
+          hello anaHTTP/1.1 200 OK\r
+          Content-type: text/html; charset=utf-8\r
+          Content-Length: 12\r
+          \r
+          hello chunksHTTP/1.1 200 OK\r
+          Content-type: text/html; charset=utf-8\r
+          Content-Length: 9\r
+          Connection: close\r
+          \r
+          hello bob""", responses);
+    }
+  }
+
+  @Test
+  public void testNioTransportInvalidFraming() throws IOException {
+    var app = express();
+    app.post("/echo", (req, res) -> res.send(req.bodyText()));
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+    try(var server = app.listen(options)) {
+      for(var framing: List.of("Transfer-Encoding: gzip, chunked", "Transfer-Encoding: xchunked",
+                               "Transfer-Encoding: chunked\r\nTransfer-Encoding: chunked", "Content-Length: +5")) {
+        try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+          socket.getOutputStream().write(
+              ("POST /echo HTTP/1.1\r\nHost: localhost\r\n" + framing + "\r\n\r\n5\r\nhello\r\n0\r\n\r\n").getBytes(UTF_8));
+          var response = new String(socket.getInputStream().readAllBytes(), UTF_8);
+          var status = framing.startsWith("Transfer-Encoding")? "501": "400";
+          assertTrue(response.startsWith("HTTP/1.1 " + status + " "), framing + "\n" + response);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNioTransportShards() throws IOException {
+    var app = express();
+    app.get("/thread", (req, res) -> res.send(Thread.currentThread().getName()));
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port)
+        .withThreading(JExpress.Threading.platformThreads(4))
+        .withTransport(JExpress.Transport.nio(4));
+    try(var server = app.listen(options)) {
+      var threads = new HashSet<String>();
+      for(var i = 0; i < 32; i++) {
+        try(var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+          socket.getOutputStream().write("GET /thread HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(UTF_8));
+          var response = new String(socket.getInputStream().readAllBytes(), UTF_8);
+          assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+          threads.add(response.substring(response.indexOf("\r\n\r\n") + 4));
+        }
+      }
+      // one pool of one thread per shard, the kernel spreads the connections among the shards
+      assertAll(
+          () -> assertTrue(threads.stream().allMatch(name -> name.startsWith("pool-")), "" + threads),
+          () -> assertTrue(threads.size() <= 4, "" + threads),
+          () -> assertTrue(!reusePort() || threads.size() > 1, "" + threads)
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransportFewerThreadsThanShards() {
+    var app = express();
+    var options = JExpress.ServerOptions.of(nextPort())
+        .withThreading(JExpress.Threading.platformThreads(1))
+        .withTransport(JExpress.Transport.nio(2));
+    assertThrows(IllegalArgumentException.class, () -> app.listen(options));
+  }
+
+  private static boolean reusePort() throws IOException {
+    try(var channel = ServerSocketChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+  }
+
+  @Test
+  public void testUnixDomainSocket() throws IOException {
+    var app = express();
+    app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+
+    var directory = Files.createTempDirectory("jexpress");
+    var socketFile = directory.resolve("http.sock");
+    try {
+      try(var server = app.listen(socketFile);
+          var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+        var output = Channels.newOutputStream(channel);
+        var input = Channels.newInputStream(channel);
+        output.write("GET /hello/ana HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(UTF_8));
+        output.write("GET /hello/bob HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(UTF_8));
+        var responses = new String(input.readAllBytes(), UTF_8);
+        assertAll(
+            () -> assertTrue(Files.exists(socketFile)),
+            () -> assertTrue(responses.startsWith("HTTP/1.1 200 OK\r\n"), responses),
+            () -> assertTrue(responses.contains("\r\n\r\nhello anaHTTP/1.1 200 OK\r\n"), responses),
+            () -> assertTrue(responses.endsWith("\r\n\r\nhello bob"), responses)
+        );
+      }
+      assertFalse(Files.exists(socketFile));
+    } finally {
+      Files.deleteIfExists(socketFile);
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testUnixDomainSocketWithOptions() throws IOException {
+    var app = express();
+    app.get("/thread", (req, res) -> res.send(Thread.currentThread().getName()));
+
+    var directory = Files.createTempDirectory("jexpress");
+    var socketFile = directory.resolve("http.sock");
+    try {
+      var options = JExpress.ServerOptions.of(0)
+          .withThreading(JExpress.Threading.platformThreads(2))
+          .withStopTimeout(Duration.ZERO);
+      try(var server = app.listen(socketFile, options);
+          var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+        var output = Channels.newOutputStream(channel);
+        var input = Channels.newInputStream(channel);
+        output.write("GET /thread HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(UTF_8));
+        var response = new String(input.readAllBytes(), UTF_8);
+        assertAll(
+            () -> assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response),
+            () -> assertTrue(response.matches("(?s).*\r\n\r\npool-\\d+-thread-\\d+"), response)
+        );
+      }
+      assertFalse(Files.exists(socketFile));
+    } finally {
+      Files.deleteIfExists(socketFile);
+      Files.delete(directory);
+    }
+  }
+
+  // a key store containing a self-signed certificate for localhost generated by keytool
+  private static KeyStore selfSignedKeyStore(Path directory) throws IOException, InterruptedException,
+                                                                    GeneralSecurityException {
+    var keyStoreFile = directory.resolve("localhost.p12");
+    var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+    var process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost",
+        "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+        "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+        "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(), "-storepass", "changeit")
+        .redirectErrorStream(true)
+        .start();
+    var output = new String(process.getInputStream().readAllBytes(), UTF_8);
+    if (process.waitFor() != 0) {
+      throw new IOException("keytool failed " + output);
+    }
+    var keyStore = KeyStore.getInstance("PKCS12");
+    try(var input = Files.newInputStream(keyStoreFile)) {
+      keyStore.load(input, "changeit".toCharArray());
+    }
+    Files.delete(keyStoreFile);
+    return keyStore;
+  }
+
+  @Test
+  public void testListenSecure() throws IOException, InterruptedException, GeneralSecurityException {
+    var app = express();
+    app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+
+    var directory = Files.createTempDirectory("jexpress");
+    KeyStore keyStore;
+    try {
+      keyStore = selfSignedKeyStore(directory);
+    } finally {
+      Files.delete(directory);
+    }
+    var keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, "changeit".toCharArray());
+    var serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+    var clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+    var port = nextPort();
+    var tlsOptions = JExpress.TlsOptions.of(serverContext)
+        .withSessionCacheSize(1_024)
+        .withSessionTimeout(Duration.ofHours(1));
+    try(var server = app.listenSecure(JExpress.ServerOptions.of(port), tlsOptions)) {
+      var client = HttpClient.newBuilder().sslContext(clientContext).build();
+      var responses = new ArrayList<HttpResponse<String>>();
+      for(var name: List.of("ana", "bob")) {
+        var request = HttpRequest.newBuilder().uri(URI.create("https://localhost:" + port + "/hello/" + name)).build();
+        responses.add(client.send(request, BodyHandlers.ofString()));
+      }
+      var sessionContext = serverContext.getServerSessionContext();
+      assertAll(
+          () -> assertEquals(200, responses.get(0).statusCode()),
+          () -> assertEquals("hello ana", responses.get(0).body()),
+          () -> assertEquals("hello bob", responses.get(1).body()),
+          () -> assertTrue(responses.get(0).sslSession().isPresent()),
+          () -> assertEquals(1_024, sessionContext.getSessionCacheSize()),
+          () -> assertEquals(3_600, sessionContext.getSessionTimeout())
+      );
+    }
+    var nioOptions = JExpress.ServerOptions.of(nextPort()).withTransport(JExpress.Transport.nio());
+    assertThrows(IllegalArgumentException.class, () -> app.listenSecure(nioOptions, tlsOptions));
+  }
+
+  @Test
+  public void testNioTransportHttp2() throws IOException, InterruptedException {
+    var app = express();
+    app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+    app.get("/large-stream", (req, res) -> res.json(IntStream.range(0, 100_000).boxed()));
+    app.post("/echo", (req, res) -> res.send(req.bodyText()));
+    var entries = new ConcurrentLinkedQueue<JExpress.LogEntry>();
+    app.logger(entries::add);
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+    var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+    try(var server = app.listen(options)) {
+      // the first request upgrades the connection, the next ones are multiplexed on it
+      var hello = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/hello/ana")).build(),
+          BodyHandlers.ofString());
+      var futures = IntStream.range(0, 16)
+          .mapToObj(i -> client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/hello/" + i)).build(),
+              BodyHandlers.ofString()))
+          .toList();
+      var text = IntStream.range(0, 100_000).mapToObj(i -> "line " + i).collect(joining("\n"));  // larger than the windows
+      var echo = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/echo"))
+              .POST(HttpRequest.BodyPublishers.ofString(text))
+              .build(),
+          BodyHandlers.ofString());
+      var stream = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/large-stream")).build(),
+          BodyHandlers.ofString());
+      var responses = futures.stream().map(CompletableFuture::join).toList();
+      assertAll(
+          () -> assertEquals(HttpClient.Version.HTTP_2, hello.version()),
+          () -> assertEquals("hello ana", hello.body()),
+          () -> assertEquals("9", hello.headers().firstValue("content-length").orElseThrow()),
+          () -> assertEquals(IntStream.range(0, 16).mapToObj(i -> "hello " + i).toList(),
+              responses.stream().map(HttpResponse::body).toList()),
+          () -> assertTrue(responses.stream().allMatch(response -> response.version() == HttpClient.Version.HTTP_2)),
+          () -> assertEquals(text, echo.body()),
+          () -> assertEquals(IntStream.range(0, 100_000).mapToObj(i -> "" + i).collect(joining(", ", "[", "]")), stream.body()),
+          () -> assertEquals(19, entries.size()),
+          () -> assertTrue(entries.stream().allMatch(entry -> entry.protocol().equals("HTTP/2.0")), "" + entries),
+          () -> assertEquals(1, entries.stream().map(entry -> entry.remoteAddress().getPort()).distinct().count(), "" + entries)
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransportHttp2PriorKnowledge() throws IOException {
+    var app = express();
+    app.get("/hello/:name", (req, res) -> res.send("hello " + req.param("name")));
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+    try(var server = app.listen(options);
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      // the preface, an empty SETTINGS and a GET with the indexed fields :method GET and :scheme http
+      // and the literal field :path /hello/ana
+      var output = new DataOutputStream(socket.getOutputStream());
+      output.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(UTF_8));
+      output.write(new byte[] { 0, 0, 0, 0x4, 0, 0, 0, 0, 0 });
+      var path = "/hello/ana".getBytes(UTF_8);
+      output.write(new byte[] { 0, 0, (byte) (4 + path.length), 0x1, 0x5, 0, 0, 0, 1, (byte) 0x82, (byte) 0x86, 0x04, (byte) path.length });
+      output.write(path);
+      output.flush();
+
+      var input = new DataInputStream(socket.getInputStream());
+      var types = new ArrayList<Integer>();
+      var headerBlock = new byte[0];
+      var body = new ByteArrayOutputStream();
+      for(;;) {
+        var length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+        var type = input.readUnsignedByte();
+        var flags = input.readUnsignedByte();
+        var streamId = input.readInt();
+        var payload = input.readNBytes(length);
+        types.add(type);
+        if (streamId == 1 && type == 0x1) {
+          headerBlock = payload;
+        }
+        if (streamId == 1 && type == 0x0) {
+          body.write(payload);
+          if ((flags & 0x1) != 0) {
+            break;
+          }
+        }
+      }
+      var block = headerBlock;
+      assertAll(
+          () -> assertEquals(0x4, types.get(0)),  // the SETTINGS of the server first
+          () -> assertTrue(types.contains(0x1)),
+          () -> assertEquals((byte) 0x88, block[0]),  // :status 200 is in the static table
+          () -> assertEquals("hello ana", body.toString(UTF_8))
+      );
+    }
+  }
+
+  @Test
+  public void testNioTransportHttp2InitialWindowSizeOverflow() throws IOException, InterruptedException {
+    var latch = new CountDownLatch(1);
+    var app = express();
+    app.get("/wait", (req, res) -> {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      res.send("done");
+    });
+
+    var port = nextPort();
+    var options = JExpress.ServerOptions.of(port).withTransport(JExpress.Transport.nio());
+    try(var server = app.listen(options);
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      // a GET on stream 1, a WINDOW_UPDATE that raises the window of stream 1 to 2^31-1,
+      // then a SETTINGS_INITIAL_WINDOW_SIZE one byte larger than the default
+      var output = new DataOutputStream(socket.getOutputStream());
+      output.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(UTF_8));
+      output.write(new byte[] { 0, 0, 0, 0x4, 0, 0, 0, 0, 0 });
+      var path = "/wait".getBytes(UTF_8);
+      output.write(new byte[] { 0, 0, (byte) (4 + path.length), 0x1, 0x5, 0, 0, 0, 1, (byte) 0x82, (byte) 0x86, 0x04, (byte) path.length });
+      output.write(path);
+      output.write(new byte[] { 0, 0, 4, 0x8, 0, 0, 0, 0, 1 });
+      output.writeInt(Integer.MAX_VALUE - 65_535);
+      output.write(new byte[] { 0, 0, 6, 0x4, 0, 0, 0, 0, 0, 0, 0x4 });
+      output.writeInt(65_536);
+      output.flush();
+
+      socket.setSoTimeout(5_000);
+      var input = new DataInputStream(socket.getInputStream());
+      var errorCode = -1;
+      try {
+        for(;;) {
+          var length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+          var type = input.readUnsignedByte();
+          input.readUnsignedByte();
+          input.readInt();
+          var payload = ByteBuffer.wrap(input.readNBytes(length));
+          if (type == 0x7) {  // GOAWAY
+            errorCode = payload.getInt(4);
+            break;
+          }
+        }
+      } finally {
+        latch.countDown();
+      }
+      assertEquals(0x3, errorCode);  // FLOW_CONTROL_ERROR
+    }
+  }
+
   @Test
   public void testJSONObjectAndArrayPost() throws IOException, InterruptedException {
     var app = express();
@@ -0,0 +1,256 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JSONParserTest {
+  private static Object asJava(String text) {
+    return JExpress.JSONParser.parse(text);
+  }
+
+  // an input stream that returns at most one byte by read
+  private static InputStream trickle(String text) {
+    return new FilterInputStream(new ByteArrayInputStream(text.getBytes(UTF_8))) {
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        return super.read(buffer, offset, Math.min(length, 1));
+      }
+    };
+  }
+
+  private static Object asJavaFromStream(String text) {
+    try {
+      return JExpress.JSONParser.parse(trickle(text));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Test
+  public void parseObjects() {
+    assertAll(
+        () -> assertEquals(Map.of(), asJava("{}")),
+        () -> assertEquals(Map.of(), asJava("{ }")),
+        () -> assertEquals(Map.of(
+            "key2", false,
+            "key3", true,
+            "key4", 123,
+            "key5", 145.4,
+            "key6", "string"
+        ), asJava("""
+            {
+              "key2": false,
+              "key3": true,
+              "key4": 123,
+              "key5": 145.4,
+              "key6": "string"
+            }
+            """)),
+        () -> assertEquals(Map.of("foo", "bar"), asJava("""
+            {
+              "foo": "bar"
+            }
+            """)),
+        () -> assertEquals(Map.of("foo", "bar", "bob-one", 42), asJava("""
+            {
+              "foo": "bar",
+              "bob-one": 42
+            }
+            """))
+    );
+  }
+
+  @Test
+  public void parseObjectsWithNull() {
+    assertEquals(new HashMap<String, Object>() {{
+      put("foo", null);
+    }}, asJava("""
+        {
+          "foo": null
+        }
+        """));
+  }
+
+  @Test
+  public void parseArrays() {
+    assertAll(
+        () -> assertEquals(List.of(), asJava("[]")),
+        () -> assertEquals(List.of(), asJava("[ ]")),
+        () -> assertEquals(
+            List.of(false,true,123,145.4,"string"),
+            asJava("""
+            [
+              false, true, 123, 145.4, "string"
+            ]
+            """)),
+        () -> assertEquals(List.of("foo", "bar"), asJava("""
+            [
+              "foo",
+              "bar"
+            ]
+            """)),
+        () -> assertEquals(List.of("foo", "bar", "bob-one", 42), asJava("""
+            [ "foo", "bar", "bob-one", 42 ]\
+            """))
+    );
+  }
+
+  @Test
+  public void parseArraysWithNull() {
+    assertEquals(Arrays.asList(13.4, null), asJava("""
+        [ 13.4, null ]
+        """));
+  }
+
+  @Test
+  public void parseNumbers() {
+    assertAll(
+        () -> assertEquals(List.of(0, -1, 2147483647, -2147483648), asJava("[0, -1, 2147483647, -2147483648]")),
+        () -> assertEquals(List.of(2147483648L, -9223372036854775808L, 9223372036854775807L),
+            asJava("[2147483648, -9223372036854775808, 9223372036854775807]")),
+        () -> assertEquals(List.of(1.5, -0.25, 1e10, 2.5E-3, 1e+2, 1e19), asJava("[1.5, -0.25, 1e10, 2.5E-3, 1e+2, 10000000000000000000]"))
+    );
+  }
+
+  @Test
+  public void parseStrings() {
+    assertAll(
+        () -> assertEquals(List.of("a\"b\\c/d\b\f\n\r\t"), asJava("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"]")),
+        () -> assertEquals(List.of("\u00e9t\u00e9 \uD83D\uDE00"), asJava("[\"\\u00e9t\u00e9 \\ud83d\\ude00\"]")),
+        () -> assertEquals(List.of("été 😀"), asJava("[\"été 😀\"]"))
+    );
+  }
+
+  @Test
+  public void parseScalars() {
+    assertAll(
+        () -> assertEquals("foo", asJava(" \"foo\" ")),
+        () -> assertEquals(42, asJava("42")),
+        () -> assertEquals(true, asJava("true")),
+        () -> assertEquals(null, asJava("null"))
+    );
+  }
+
+  @Test
+  public void parseNested() {
+    assertEquals(Map.of("a", List.of(Map.of("b", List.of())), "c", Map.of()), asJava("""
+        {\r
+        \t"a": [ { "b": [] } ],\r
+        \t"c": {}\r
+        }
+        """));
+  }
+
+  @Test
+  public void parseErrors() {
+    assertAll(
+        () -> assertThrows(IllegalStateException.class, () -> asJava("")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[1, 2")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[1,]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("{\"a\" 1}")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[01]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[-]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[1.]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[tru]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[\"\\x\"]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[\"a\nb\"]")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[] []")),
+        () -> assertThrows(IllegalStateException.class, () -> asJava("[".repeat(2_000) + "]".repeat(2_000)))
+    );
+  }
+
+  @Test
+  public void parseFromStream() {
+    assertAll(
+        () -> assertEquals(Map.of("foo", List.of(1, 2.5, 3_000_000_000L)), asJavaFromStream("{ \"foo\": [1, 2.5, 3000000000] }")),
+        () -> assertEquals(List.of(true, false), asJavaFromStream("[true,false]")),
+        () -> assertEquals(42, asJavaFromStream("42")),
+        () -> assertEquals(List.of("a\"b\nc", "\u00e9t\u00e9 \uD83D\uDE00"), asJavaFromStream("[\"a\\\"b\\nc\", \"\\u00e9t\u00e9 \\ud83d\\ude00\"]")),
+        () -> assertEquals(List.of("?x", "?\n"), asJavaFromStream("[\"\\ud83dx\", \"\\ud83d\\n\"]"))
+    );
+  }
+
+  @Test
+  public void parseLargeFromStream() throws IOException {
+    var list = IntStream.range(0, 10_000).mapToObj(i -> Map.of("id", i, "name", "été " + i)).collect(toList());
+    var text = JExpress.JSONPrettyPrinter.toJSON(list);
+    assertEquals(list, JExpress.JSONParser.parse(new ByteArrayInputStream(text.getBytes(UTF_8))));
+  }
+
+  @Test
+  public void parseErrorsFromStream() {
+    assertAll(
+        () -> assertThrows(IllegalStateException.class, () -> asJavaFromStream("")),
+        () -> assertThrows(IllegalStateException.class, () -> asJavaFromStream("[1, 2")),
+        () -> assertThrows(IllegalStateException.class, () -> asJavaFromStream("[\"abc")),
+        () -> assertThrows(IllegalStateException.class, () -> asJavaFromStream("[tru]")),
+        () -> assertThrows(IOException.class, () -> JExpress.JSONParser.parse(new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new IOException("broken");
+          }
+        }))
+    );
+  }
+
+  enum Role { ADMIN, USER }
+  record Point(int x, double y) {}
+  record User(String name, long id, boolean active, Role role, Point location, List<Point> path, Map<String, Object> extra) {}
+
+  private static <T extends Record> T asRecord(String text, Class<T> type) throws IOException {
+    return JExpress.JSONParser.parse(trickle(text), type);
+  }
+
+  @Test
+  public void parseRecords() throws IOException {
+    assertAll(
+        () -> assertEquals(new Point(1, 2.5), asRecord("{\"x\": 1, \"y\": 2.5}", Point.class)),
+        () -> assertEquals(new Point(0, 3.0), asRecord("{\"y\": 3, \"z\": [1, {\"a\": 2}]}", Point.class)),
+        () -> assertEquals(new User("bob", 3_000_000_000L, true, Role.ADMIN, new Point(-1, 1e3),
+                List.of(new Point(1, 1), new Point(2, 2)), Map.of("a", List.of(1))),
+            asRecord("""
+                {"name": "bob", "id": 3000000000, "active": true, "role": "ADMIN",
+                 "location": {"x": -1, "y": 1e3}, "path": [{"x": 1, "y": 1}, {"x": 2, "y": 2}],
+                 "extra": {"a": [1]}}
+                """, User.class)),
+        () -> assertEquals(new User(null, 0, false, null, null, null, null), asRecord("{\"name\": null}", User.class)),
+        () -> assertEquals(null, asRecord("null", Point.class))
+    );
+  }
+
+  @Test
+  public void parseRecordList() throws IOException {
+    assertEquals(List.of(new Point(1, 2), new Point(3, 4)),
+        JExpress.JSONParser.parseList(trickle("[{\"x\": 1, \"y\": 2}, {\"x\": 3, \"y\": 4}]"), Point.class));
+  }
+
+  @Test
+  public void parseRecordErrors() {
+    assertAll(
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("[]", Point.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"x\": 1.5}", Point.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"x\": 3000000000}", Point.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"x\": null}", Point.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"x\": \"1\"}", Point.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"role\": \"ROOT\"}", User.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"extra\": []}", User.class)),
+        () -> assertThrows(IllegalStateException.class, () -> asRecord("{\"x\": 1", Point.class))
+    );
+  }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.joining;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JSONPrettyPrinterTest {
+  private static String toJSON(Object o) {
+    return JExpress.JSONPrettyPrinter.toJSON(o);
+  }
+
+  @Test
+  public void printValues() {
+    assertAll(
+        () -> assertEquals("[null, true, false, 3, -42, 9223372036854775807, -9223372036854775808, 4.5]",
+            toJSON(Arrays.asList(null, true, false, 3, -42L, Long.MAX_VALUE, Long.MIN_VALUE, 4.5))),
+        () -> assertEquals("[]", toJSON(List.of())),
+        () -> assertEquals("{}", toJSON(new LinkedHashMap<>()))
+    );
+  }
+
+  @Test
+  public void printStrings() {
+    assertAll(
+        () -> assertEquals("[\"foo\"]", toJSON(List.of("foo"))),
+        () -> assertEquals("[\"a\\\"b\\\\c\\u000a\"]", toJSON(List.of("a\"b\\c\n"))),
+        () -> assertEquals("[\"été 😀\"]", toJSON(List.of("été 😀")))
+    );
+  }
+
+  @Test
+  public void printRecordsAndMaps() {
+    record Point(int x, int y) {}
+    record Line(Point start, Point end, String name) {}
+    var map = new LinkedHashMap<String, Object>();
+    map.put("line", new Line(new Point(1, 2), new Point(3, 4), "l"));
+    map.put("values", Stream.of(1, 2));
+    assertEquals("""
+        {"line": {"start": {"x": 1, "y": 2}, "end": {"x": 3, "y": 4}, "name": "l"}, "values": [1, 2]}\
+        """, toJSON(map));
+  }
+
+  @Test
+  public void printLargeStream() {
+    var expected = IntStream.range(0, 100_000).mapToObj(i -> "" + i).collect(joining(", ", "[", "]"));
+    assertEquals(expected, toJSON(IntStream.range(0, 100_000).boxed()));
+  }
+}
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+import static java.lang.System.out;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * An open-loop load generator that sends requests at a constant rate to an in-process
+ * application and reports the throughput and the latency percentiles.
+ * <p>
+ * The requests are scheduled at a fixed rate whatever the response time of the server,
+ * the latency of a request is measured from the time it was scheduled, not from the time
+ * it was sent, so a slow server is not hidden by a slower client (coordinated omission).
+ * Each connection is a thread with its own HttpClient that sends its share of the requests in sequence.
+ * <p>
+ * The report is a list of "key value" lines that can be compared between two commits with diff.
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=LoadGenerator \
+ *     -Dexec.args="--rate=2000 --connections=16 --duration=10 --mix=hello:80,json:15,echo:5 --report=load.txt"
+ * </pre>
+ * The options are
+ * <ul>
+ *   <li>--rate, the number of requests per second (default 1000)
+ *   <li>--connections, the number of connections (default 8)
+ *   <li>--duration, the duration of the measure in seconds (default 10)
+ *   <li>--warmup, the duration of the warmup in seconds (default 3)
+ *   <li>--mix, the weight of each kind of request among hello, json, echo and file (default hello:80,json:15,echo:5)
+ *   <li>--port, the port of the application (default 53900)
+ *   <li>--transport, the transport of the server, httpserver or nio (default httpserver)
+ *   <li>--acceptors, the number of acceptor shards of the nio transport (default 1)
+ *   <li>--protocol, the protocol of the HTTP client, http1.1 or h2c, HTTP/2 without TLS,
+ *       only supported by the nio transport (default http1.1)
+ *   <li>--report, the file the report is written to (default, only printed)
+ * </ul>
+ * Unless the property sun.net.httpserver.nodelay is set, TCP_NODELAY is enabled on the server,
+ * otherwise each response waits for a delayed ACK.
+ */
+public class LoadGenerator {
+  /**
+   * A histogram of latencies in microseconds with a relative precision of 1/64 (HdrHistogram-like).
+   * The values lower than 128 have their own bucket, then each power of two is split in 64 buckets.
+   */
+  static final class Histogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+
+    private final long[] counts = new long[LINEAR + (64 - 7) * SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    static int index(long value) {
+      if (value < LINEAR) {
+        return (int) value;
+      }
+      var exponent = 63 - Long.numberOfLeadingZeros(value);  // >= 7
+      var shift = exponent - 6;
+      return LINEAR + (exponent - 7) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // the highest value that is recorded in the bucket
+    static long highestValue(int index) {
+      if (index < LINEAR) {
+        return index;
+      }
+      var exponent = (index - LINEAR) / SUB_BUCKETS + 7;
+      var mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+      var shift = exponent - 6;
+      return ((mantissa + 1L) << shift) - 1;
+    }
+
+    void record(long value) {
+      counts[index(Math.max(0, value))]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+    void add(Histogram histogram) {
+      for(var i = 0; i < counts.length; i++) {
+        counts[i] += histogram.counts[i];
+      }
+      total += histogram.total;
+      max = Math.max(max, histogram.max);
+    }
+
+    long total() {
+      return total;
+    }
+
+    long max() {
+      return max;
+    }
+
+    // the value under which a percentage of the recorded values are
+    long percentile(double percentile) {
+      if (total == 0) {
+        return 0;
+      }
+      var rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+      var count = 0L;
+      for(var i = 0; i < counts.length; i++) {
+        count += counts[i];
+        if (count >= rank) {
+          return Math.min(highestValue(i), max);
+        }
+      }
+      return max;
+    }
+  }
+
+  record Options(int rate, int connections, int duration, int warmup, Map<String, Integer> mix, int port, String transport,
+                 int acceptors, String protocol, Path report) {
+    static Options parse(String[] args) {
+      var map = new LinkedHashMap<String, String>();
+      for(var arg: args) {
+        if (!arg.startsWith("--") || arg.indexOf('=') == -1) {
+          throw new IllegalArgumentException("invalid option " + arg);
+        }
+        map.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      var mix = new LinkedHashMap<String, Integer>();
+      for(var entry: map.getOrDefault("mix", "hello:80,json:15,echo:5").split(",")) {
+        var parts = entry.split(":");
+        if (!REQUESTS.containsKey(parts[0])) {
+          throw new IllegalArgumentException("unknown request " + parts[0] + " in mix, known requests " + REQUESTS.keySet());
+        }
+        mix.put(parts[0], parts.length == 1? 1: Integer.parseInt(parts[1]));
+      }
+      var transport = map.getOrDefault("transport", "httpserver");
+      if (!transport.equals("httpserver") && !transport.equals("nio")) {
+        throw new IllegalArgumentException("unknown transport " + transport);
+      }
+      var protocol = map.getOrDefault("protocol", "http1.1");
+      if (!protocol.equals("http1.1") && !protocol.equals("h2c")) {
+        throw new IllegalArgumentException("unknown protocol " + protocol);
+      }
+      if (protocol.equals("h2c") && !transport.equals("nio")) {
+        throw new IllegalArgumentException("the protocol h2c requires the transport nio");
+      }
+      var report = map.get("report");
+      return new Options(
+          Integer.parseInt(map.getOrDefault("rate", "1000")),
+          Integer.parseInt(map.getOrDefault("connections", "8")),
+          Integer.parseInt(map.getOrDefault("duration", "10")),
+          Integer.parseInt(map.getOrDefault("warmup", "3")),
+          mix,
+          Integer.parseInt(map.getOrDefault("port", "53900")),
+          transport,
+          Integer.parseInt(map.getOrDefault("acceptors", "1")),
+          protocol,
+          report == null? null: Path.of(report));
+    }
+  }
+
+  record User(String name, int age) {}
+
+  // the requests that can be part of the mix, as (method, path, JSON body or null)
+  private static final Map<String, List<String>> REQUESTS = new LinkedHashMap<>();
+  static {
+    REQUESTS.put("hello", Arrays.asList("GET", "/hello", null));
+    REQUESTS.put("json", Arrays.asList("GET", "/users", null));
+    REQUESTS.put("echo", Arrays.asList("POST", "/echo", "{\"name\": \"Bob\", \"age\": 42}"));
+    REQUESTS.put("file", Arrays.asList("GET", "/LICENSE", null));
+  }
+
+  private static JExpress application() {
+    var users = IntStream.range(0, 20).mapToObj(i -> new User("user" + i, 20 + i)).toList();
+    var app = JExpress.express();
+    app.get("/hello", (req, res) -> res.send("hello"));
+    app.get("/users", (req, res) -> res.json(users));
+    app.post("/echo", (req, res) -> res.json(req.body(User.class)));
+    app.get("/LICENSE", (req, res) -> res.sendFile(Path.of("LICENSE")));
+    return app;
+  }
+
+  // the result of a connection, a histogram and an error count by kind of request
+  private static final class Result {
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final Map<String, Long> errors = new LinkedHashMap<>();
+
+    Result(Options options) {
+      for(var name: options.mix.keySet()) {
+        histograms.put(name, new Histogram());
+        errors.put(name, 0L);
+      }
+    }
+
+    void add(Result result) {
+      result.histograms.forEach((name, histogram) -> histograms.get(name).add(histogram));
+      result.errors.forEach((name, count) -> errors.merge(name, count, Long::sum));
+    }
+  }
+
+  private static Result run(Options options, List<String> schedule, List<HttpRequest> requests, long start, long nanos,
+                            int connection) {
+    var result = new Result(options);
+    // the client defaults to HTTP/2 and would upgrade the connections to h2c on the nio transport
+    var version = options.protocol.equals("h2c")? HttpClient.Version.HTTP_2: HttpClient.Version.HTTP_1_1;
+    var client = HttpClient.newBuilder().version(version).build();
+    var period = TimeUnit.SECONDS.toNanos(1) * options.connections / options.rate;
+    var offset = TimeUnit.SECONDS.toNanos(1) * connection / options.rate;
+    for(var i = 0L;; i++) {
+      var intended = start + offset + i * period;
+      if (intended - start >= nanos) {
+        return result;
+      }
+      var delay = intended - System.nanoTime();
+      if (delay > 0) {
+        LockSupport.parkNanos(delay);
+      }
+      var index = (int) ((i * options.connections + connection) % schedule.size());
+      var name = schedule.get(index);
+      try {
+        var response = client.send(requests.get(index), BodyHandlers.discarding());
+        if (response.statusCode() >= 400) {
+          result.errors.merge(name, 1L, Long::sum);
+        }
+      } catch (IOException e) {
+        result.errors.merge(name, 1L, Long::sum);
+      } catch (InterruptedException e) {
+        return result;
+      }
+      var latency = (System.nanoTime() - intended) / 1_000;
+      result.histograms.get(name).record(latency);
+    }
+  }
+
+  private static Result phase(Options options, int seconds, List<String> schedule, List<HttpRequest> requests)
+      throws InterruptedException {
+    var start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    var nanos = TimeUnit.SECONDS.toNanos(seconds);
+    var results = new Result[options.connections];
+    var threads = new ArrayList<Thread>();
+    for(var i = 0; i < options.connections; i++) {
+      var connection = i;
+      var thread = new Thread(() -> results[connection] = run(options, schedule, requests, start, nanos, connection));
+      thread.start();
+      threads.add(thread);
+    }
+    for(var thread: threads) {
+      thread.join();
+    }
+    var total = new Result(options);
+    for(var result: results) {
+      total.add(result);
+    }
+    return total;
+  }
+
+  private static String report(Options options, Result result) {
+    var all = new Histogram();
+    result.histograms.values().forEach(all::add);
+    var lines = new ArrayList<String>();
+    lines.add("rate.target " + options.rate);
+    lines.add("transport " + options.transport);
+    lines.add("acceptors " + options.acceptors);
+    lines.add("protocol " + options.protocol);
+    lines.add("connections " + options.connections);
+    lines.add("duration.seconds " + options.duration);
+    lines.add("mix " + options.mix.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(joining(",")));
+    lines.add("nodelay " + System.getProperty("sun.net.httpserver.nodelay"));
+    lines.add("requests " + all.total());
+    lines.add("errors " + result.errors.values().stream().mapToLong(Long::longValue).sum());
+    lines.add(String.format(Locale.ROOT, "throughput.rps %.1f", all.total() / (double) options.duration));
+    percentiles(lines, "latency.us", all);
+    result.histograms.forEach((name, histogram) -> {
+      lines.add("route." + name + ".requests " + histogram.total());
+      lines.add("route." + name + ".errors " + result.errors.get(name));
+      percentiles(lines, "route." + name + ".latency.us", histogram);
+    });
+    return String.join("\n", lines) + "\n";
+  }
+
+  private static void percentiles(List<String> lines, String prefix, Histogram histogram) {
+    for(var percentile: new double[] { 50, 90, 99, 99.9, 99.99 }) {
+      lines.add(prefix + ".p" + (percentile == (int) percentile? "" + (int) percentile: "" + percentile) + " " + histogram.percentile(percentile));
+    }
+    lines.add(prefix + ".max " + histogram.max());
+  }
+
+  /**
+   * Runs the load generator.
+   * @param args the options
+   * @throws InterruptedException if the load generator is interrupted
+   * @throws IOException if the report can not be written
+   */
+  public static void main(String[] args) throws InterruptedException, IOException {
+    var options = Options.parse(args);
+    System.getProperties().putIfAbsent("sun.net.httpserver.nodelay", "true");
+
+    // a shuffled schedule of requests with the weights of the mix
+    var schedule = new ArrayList<String>();
+    options.mix.forEach((name, weight) -> schedule.addAll(Collections.nCopies(weight, name)));
+    Collections.shuffle(schedule, new Random(0));
+    var requests = schedule.stream().map(name -> {
+      var request = REQUESTS.get(name);
+      var builder = HttpRequest.newBuilder(URI.create("http://localhost:" + options.port + request.get(1)));
+      if (request.get(2) != null) {
+        builder.header("Content-Type", "application/json")
+            .method(request.get(0), HttpRequest.BodyPublishers.ofString(request.get(2)));
+      }
+      return builder.build();
+    }).toList();
+
+    var transport = options.transport.equals("nio")? JExpress.Transport.nio(options.acceptors): JExpress.Transport.httpServer();
+    try(var server = application().listen(JExpress.ServerOptions.of(options.port).withTransport(transport))) {
+      out.println("warmup " + options.warmup + " s");
+      phase(options, options.warmup, schedule, requests);
+      out.println("measure " + options.duration + " s");
+      var result = phase(options, options.duration, schedule, requests);
+      var report = report(options, result);
+      out.print(report);
+      if (options.report != null) {
+        Files.writeString(options.report, report);
+      }
+    }
+  }
+}